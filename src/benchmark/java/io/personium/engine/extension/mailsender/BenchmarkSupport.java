@@ -0,0 +1,112 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+
+import io.personium.engine.extension.support.ExtensionLogger;
+
+/**
+ * ベンチマークで共通に使う Ext_MailSender とリクエストの生成処理.
+ */
+final class BenchmarkSupport {
+
+    private static final String SUBJECT = "ベンチマーク件名 Benchmark subject";
+    private static final String TEXT_LINE = "メール本文です。This is the body of the benchmark message.\n";
+    private static final int TEXT_LINES = 40;
+
+    static {
+        Ext_MailSender.setLogger(Ext_MailSender.class, new ExtensionLogger(Ext_MailSender.class));
+    }
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 送信先 SMTPサーバを指定した Ext_MailSender を生成する.
+     * @param host SMTPサーバのホスト名
+     * @param port SMTPサーバのポート番号
+     * @return Ext_MailSender
+     * @throws ReflectiveOperationException 設定に失敗した場合
+     */
+    static Ext_MailSender newMailSender(String host, int port) throws ReflectiveOperationException {
+        Ext_MailSender mailSender = new Ext_MailSender();
+        setField(mailSender, "smtpHost", host);
+        setField(mailSender, "smtpPort", String.valueOf(port));
+        return mailSender;
+    }
+
+    /**
+     * send() に渡すリクエストを生成する.
+     * @param recipients to の宛先数 (50件まで)
+     * @param charset 文字コード
+     * @return リクエスト
+     */
+    static NativeObject newRequest(int recipients, String charset) {
+        Object[] to = new Object[recipients];
+        for (int i = 0; i < recipients; i++) {
+            to[i] = newAddress("user" + i + "@example.com", "宛先 " + i);
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < TEXT_LINES; i++) {
+            text.append(TEXT_LINE);
+        }
+
+        NativeObject request = new NativeObject();
+        request.put("to", request, new NativeArray(to));
+        request.put("reply-to", request, new NativeArray(new Object[] {newAddress("reply@example.com", "返信先")}));
+        request.put("from", request, newAddress("sender@example.com", "送信者"));
+        request.put("subject", request, SUBJECT);
+        request.put("text", request, text.toString());
+        request.put("charset", request, charset);
+        request.put("envelope-from", request, "sender@example.com");
+        return request;
+    }
+
+    /**
+     * Ext_MailSender の privateメソッドのハンドルを取得する.
+     * @param name メソッド名
+     * @param parameterTypes 引数の型
+     * @return メソッドハンドル
+     * @throws ReflectiveOperationException メソッドが無い場合
+     */
+    static MethodHandle privateMethod(String name, Class<?>... parameterTypes) throws ReflectiveOperationException {
+        Method method = Ext_MailSender.class.getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+
+    private static NativeObject newAddress(String address, String name) {
+        NativeObject json = new NativeObject();
+        json.put("address", json, address);
+        json.put("name", json, name);
+        return json;
+    }
+
+    private static void setField(Ext_MailSender mailSender, String name, Object value)
+            throws ReflectiveOperationException {
+        Field field = Ext_MailSender.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(mailSender, value);
+    }
+}
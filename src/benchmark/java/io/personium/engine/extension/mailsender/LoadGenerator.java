@@ -0,0 +1,243 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.EcmaError;
+import org.mozilla.javascript.NativeObject;
+
+/**
+ * 負荷試験.
+ * プロセス内の SMTPサーバに対して複数スレッドから send() を繰り返し、スループットと所要時間のパーセンタイルを出力する.
+ * <pre>
+ * mvn -P benchmark test-compile exec:exec@load-test -Dload.args="--threads 32 --smtp-latency 20"
+ * </pre>
+ * <ul>
+ * <li>--threads 送信スレッド数 (既定 8)</li>
+ * <li>--warmup 計測前の送信時間(秒) (既定 5)</li>
+ * <li>--duration 計測する送信時間(秒) (既定 30)</li>
+ * <li>--smtp-latency SMTPサーバのメッセージ受信完了の応答遅延(ミリ秒) (既定 0)</li>
+ * <li>--pool-size 接続先毎の最大接続数 (既定 8)</li>
+ * <li>--recipients 1通あたりの宛先数 (既定 1)</li>
+ * <li>--charset 文字コード (既定 ISO-2022-JP)</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+
+    private static final Map<String, String> DEFAULTS = new HashMap<String, String>();
+    static {
+        DEFAULTS.put("threads", "8");
+        DEFAULTS.put("warmup", "5");
+        DEFAULTS.put("duration", "30");
+        DEFAULTS.put("smtp-latency", "0");
+        DEFAULTS.put("pool-size", "8");
+        DEFAULTS.put("recipients", "1");
+        DEFAULTS.put("charset", "ISO-2022-JP");
+    }
+
+    private static final long BORROW_TIMEOUT_MILLIS = 60000L;
+    private static final long IDLE_TIMEOUT_MILLIS = 30000L;
+    private static final double[] PERCENTILES = {50d, 90d, 99d, 99.9d};
+    private static final double PERCENT = 100d;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private LoadGenerator() {
+    }
+
+    /**
+     * 負荷試験を実行する.
+     * @param args オプション
+     * @throws Exception 実行に失敗した場合
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int threads = Integer.parseInt(options.get("threads"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup")));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration")));
+        int poolSize = Integer.parseInt(options.get("pool-size"));
+
+        // 送信スレッド数に関わらず接続数を揃えるため、共有の接続プールを差し替える
+        Field sharedPool = SmtpConnectionPool.class.getDeclaredField("sharedInstance");
+        sharedPool.setAccessible(true);
+        sharedPool.set(null, new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(poolSize)
+                .maxIdle(poolSize)
+                .idleTimeoutMillis(IDLE_TIMEOUT_MILLIS)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(BORROW_TIMEOUT_MILLIS)));
+
+        try (LocalSmtpServer server = new LocalSmtpServer(Long.parseLong(options.get("smtp-latency")))) {
+            int recipients = Integer.parseInt(options.get("recipients"));
+            CountDownLatch ready = new CountDownLatch(threads);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Worker> workers = new ArrayList<Worker>();
+            for (int i = 0; i < threads; i++) {
+                Worker worker = new Worker(BenchmarkSupport.newMailSender(server.getHost(), server.getPort()),
+                        BenchmarkSupport.newRequest(recipients, options.get("charset")), ready, start);
+                workers.add(worker);
+                worker.start();
+            }
+            ready.await();
+
+            long startNanos = System.nanoTime();
+            long measureFrom = startNanos + warmupNanos;
+            long measureUntil = measureFrom + durationNanos;
+            for (Worker worker : workers) {
+                worker.measureFrom = measureFrom;
+                worker.measureUntil = measureUntil;
+            }
+            start.countDown();
+            for (Worker worker : workers) {
+                worker.join();
+            }
+            report(options, workers, durationNanos, server.getReceivedCount());
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i].replaceFirst("^--", "");
+            if (!DEFAULTS.containsKey(name) || args.length <= i + 1) {
+                throw new IllegalArgumentException(String.format(
+                        "Unknown option or missing value: %s. Available options: %s", args[i], DEFAULTS.keySet()));
+            }
+            options.put(name, args[i + 1]);
+        }
+        return options;
+    }
+
+    private static void report(Map<String, String> options, List<Worker> workers, long durationNanos,
+            long receivedCount) {
+        int total = 0;
+        long errors = 0;
+        for (Worker worker : workers) {
+            total += worker.latencyCount;
+            errors += worker.errorCount;
+        }
+        long[] latencies = new long[total];
+        int offset = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.latencyCount);
+            offset += worker.latencyCount;
+        }
+        Arrays.sort(latencies);
+
+        double seconds = durationNanos / (double) TimeUnit.SECONDS.toNanos(1L);
+        System.out.println("options      : " + options);
+        System.out.println(String.format("completed    : %d (errors %d, received by server incl. warmup %d)",
+                total, errors, receivedCount));
+        System.out.println(String.format("throughput   : %.1f messages/s", total / seconds));
+        for (double percentile : PERCENTILES) {
+            System.out.println(String.format("p%-11s : %.3f ms", formatPercentile(percentile),
+                    toMillis(percentile(latencies, percentile))));
+        }
+        if (0 < total) {
+            System.out.println(String.format("max          : %.3f ms", toMillis(latencies[total - 1])));
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (0 == sorted.length) {
+            return 0L;
+        }
+        int rank = (int) Math.ceil(sorted.length * percentile / PERCENT);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String formatPercentile(double percentile) {
+        if (percentile == Math.rint(percentile)) {
+            return String.valueOf((long) percentile);
+        }
+        return String.valueOf(percentile).replace(".", "");
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1L);
+    }
+
+    /**
+     * 送信スレッド. 計測期間中の送信の所要時間を保持する.
+     */
+    private static final class Worker extends Thread {
+        private final Ext_MailSender mailSender;
+        private final NativeObject request;
+        private final CountDownLatch ready;
+        private final CountDownLatch start;
+        private volatile long measureFrom;
+        private volatile long measureUntil;
+        private long[] latencies = new long[INITIAL_CAPACITY];
+        private int latencyCount = 0;
+        private long errorCount = 0;
+
+        Worker(Ext_MailSender mailSender, NativeObject request, CountDownLatch ready, CountDownLatch start) {
+            super("LoadGenerator");
+            this.mailSender = mailSender;
+            this.request = request;
+            this.ready = ready;
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            ready.countDown();
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long from = measureFrom;
+            long until = measureUntil;
+            while (true) {
+                long begin = System.nanoTime();
+                if (until <= begin) {
+                    return;
+                }
+                boolean failed = false;
+                try {
+                    mailSender.send(request);
+                } catch (EcmaError e) {
+                    failed = true;
+                }
+                long end = System.nanoTime();
+                if (from <= begin) {
+                    if (failed) {
+                        errorCount++;
+                    } else {
+                        record(end - begin);
+                    }
+                }
+            }
+        }
+
+        private void record(long nanos) {
+            if (latencies.length == latencyCount) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[latencyCount] = nanos;
+            latencyCount++;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ベンチマーク用の SMTPサーバ.
+ * 全てのコマンドを受理し、受信したメッセージは件数だけ数えて破棄する. 接続毎に 1スレッドで応答し、接続は再利用できる.
+ * メッセージ受信完了の応答は指定した時間だけ遅らせることができる.
+ */
+final class LocalSmtpServer implements Closeable {
+
+    private static final int BACKLOG = 128;
+    private static final String CRLF = "\r\n";
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LocalSmtpServer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final long replyDelayMillis;
+    private volatile boolean closed = false;
+
+    /**
+     * ループバックアドレスの空きポートで待ち受けを開始する.
+     * @throws IOException 待ち受けに失敗した場合
+     */
+    LocalSmtpServer() throws IOException {
+        this(0L);
+    }
+
+    /**
+     * ループバックアドレスの空きポートで待ち受けを開始する.
+     * @param replyDelayMillis メッセージ受信完了の応答を遅らせる時間(ミリ秒)
+     * @throws IOException 待ち受けに失敗した場合
+     */
+    LocalSmtpServer(long replyDelayMillis) throws IOException {
+        this.replyDelayMillis = replyDelayMillis;
+        this.serverSocket = new ServerSocket(0, BACKLOG, InetAddress.getLoopbackAddress());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    /**
+     * @return 待ち受けアドレス
+     */
+    String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * @return 待ち受けポート
+     */
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return 受信したメッセージの数
+     */
+    long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // close()による待ち受けの終了
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = s.getOutputStream();
+            reply(out, "220 localhost ESMTP");
+            boolean inData = false;
+            String line = reader.readLine();
+            for (; null != line; line = reader.readLine()) {
+                if (inData) {
+                    if (".".equals(line)) {
+                        inData = false;
+                        receivedCount.incrementAndGet();
+                        delayReply();
+                        reply(out, "250 OK");
+                    }
+                    continue;
+                }
+                String command = line.toUpperCase(Locale.ROOT);
+                if (command.startsWith("EHLO") || command.startsWith("HELO")) {
+                    reply(out, "250 localhost");
+                } else if (command.startsWith("DATA")) {
+                    inData = true;
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                } else if (command.startsWith("QUIT")) {
+                    reply(out, "221 Bye");
+                    return;
+                } else {
+                    // MAIL, RCPT, RSET, NOOP
+                    reply(out, "250 OK");
+                }
+            }
+        } catch (IOException e) {
+            // クライアントによる切断
+            return;
+        }
+    }
+
+    private void delayReply() throws IOException {
+        if (0 < replyDelayMillis) {
+            try {
+                Thread.sleep(replyDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while delaying the reply.", e);
+            }
+        }
+    }
+
+    private static void reply(OutputStream out, String line) throws IOException {
+        out.write((line + CRLF).getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import org.mozilla.javascript.NativeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MIMEメッセージの組み立ての所要時間を文字コード毎に測る.
+ * 本文のエンコードは書き出し時に行われるため、組み立てのみの場合と書き出しまでの場合を分けて測る.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MimeBuildBenchmark {
+
+    /** 件名・本文・表示名の文字コード. */
+    @Param({"ISO-2022-JP", "UTF-8"})
+    private String charset;
+
+    private Ext_MailSender mailSender;
+    private MailRequest request;
+    private MethodHandle buildMessage;
+
+    /**
+     * 解析済みのリクエストを用意する.
+     * @throws Throwable 生成に失敗した場合
+     */
+    @Setup
+    public void setUp() throws Throwable {
+        mailSender = BenchmarkSupport.newMailSender("localhost", 1);
+        MethodHandle parseFields = BenchmarkSupport.privateMethod("parseFields", NativeObject.class);
+        request = (MailRequest) parseFields.invoke(mailSender, BenchmarkSupport.newRequest(1, charset));
+        buildMessage = BenchmarkSupport.privateMethod("buildMessage", MailRequest.class);
+    }
+
+    /**
+     * メッセージの組み立て (saveChanges まで).
+     * @return メッセージ
+     * @throws Throwable 組み立てに失敗した場合
+     */
+    @Benchmark
+    public Object build() throws Throwable {
+        return buildMessage.invoke(mailSender, request);
+    }
+
+    /**
+     * メッセージの組み立てと書き出し.
+     * @return 書き出したバイト数
+     * @throws Throwable 組み立てまたは書き出しに失敗した場合
+     */
+    @Benchmark
+    public long buildAndWrite() throws Throwable {
+        MimeMessage message = (MimeMessage) buildMessage.invoke(mailSender, request);
+        CountingOutputStream out = new CountingOutputStream();
+        message.writeTo(out);
+        return out.count;
+    }
+
+    /**
+     * 書き出したバイト数だけを数える出力先.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+        }
+    }
+}
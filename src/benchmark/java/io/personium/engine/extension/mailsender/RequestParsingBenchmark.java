@@ -0,0 +1,126 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * リクエスト(NativeObject)の解析と検証の所要時間.
+ * 宛先の解析は AddressCache を経由するため、同じ宛先を繰り返す本ベンチマークではキャッシュにヒットした場合の値となる.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RequestParsingBenchmark {
+
+    private static final String CHARSET = "UTF-8";
+
+    /** to の宛先数. 上限は 50件. */
+    @Param({"1", "10", "50"})
+    private int recipients;
+
+    private Ext_MailSender mailSender;
+    private NativeObject request;
+    private NativeArray to;
+    private MailRequest parsed;
+
+    private MethodHandle retrieveObjectAs;
+    private MethodHandle getInternetAddresses;
+    private MethodHandle validateRequests;
+    private MethodHandle parseFields;
+
+    /**
+     * リクエストを生成する.
+     * @throws Throwable 生成に失敗した場合
+     */
+    @Setup
+    public void setUp() throws Throwable {
+        mailSender = BenchmarkSupport.newMailSender("localhost", 1);
+        request = BenchmarkSupport.newRequest(recipients, CHARSET);
+        to = (NativeArray) request.get("to", request);
+
+        retrieveObjectAs = BenchmarkSupport.privateMethod("retrieveObjectAs",
+                Class.class, NativeObject.class, String.class);
+        getInternetAddresses = BenchmarkSupport.privateMethod("getInternetAddresses",
+                NativeArray.class, String.class);
+        validateRequests = BenchmarkSupport.privateMethod("validateRequests",
+                InternetAddress[].class, InternetAddress[].class, InternetAddress[].class, InternetAddress[].class,
+                InternetAddress.class, String.class, String.class);
+        parseFields = BenchmarkSupport.privateMethod("parseFields", NativeObject.class);
+        parsed = (MailRequest) parseFields.invoke(mailSender, request);
+    }
+
+    /**
+     * retrieveObjectAs による値の取り出し.
+     * @return 取り出した値
+     * @throws Throwable 取り出しに失敗した場合
+     */
+    @Benchmark
+    public Object retrieveObjectAs() throws Throwable {
+        return retrieveObjectAs.invoke(mailSender, NativeArray.class, request, "to");
+    }
+
+    /**
+     * getInternetAddresses による宛先の解析.
+     * @return 解析した宛先
+     * @throws Throwable 解析に失敗した場合
+     */
+    @Benchmark
+    public Object getInternetAddresses() throws Throwable {
+        return getInternetAddresses.invoke(mailSender, to, CHARSET);
+    }
+
+    /**
+     * validateRequests によるリクエストの検証.
+     * @throws Throwable 検証に失敗した場合
+     */
+    @Benchmark
+    public void validateRequests() throws Throwable {
+        validateRequests.invoke(mailSender, parsed.toAddresses, parsed.ccAddresses, parsed.bccAddresses,
+                parsed.replyToAddresses, parsed.fromAddress, parsed.subject, parsed.mailBody);
+    }
+
+    /**
+     * リクエスト全体の解析.
+     * @return 解析結果
+     * @throws Throwable 解析に失敗した場合
+     */
+    @Benchmark
+    public Object parseFields() throws Throwable {
+        return parseFields.invoke(mailSender, request);
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.NativeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * プロセス内の SMTPサーバに対する send() 全体の所要時間.
+ * SMTP接続は共有の接続プールから再利用される.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SendBenchmark {
+
+    /**
+     * 全スレッドで共有する SMTPサーバ.
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+        private LocalSmtpServer server;
+
+        /**
+         * SMTPサーバを起動する.
+         * @throws IOException 起動に失敗した場合
+         */
+        @Setup
+        public void start() throws IOException {
+            server = new LocalSmtpServer();
+        }
+
+        /**
+         * SMTPサーバを停止する.
+         * @throws IOException 停止に失敗した場合
+         */
+        @TearDown
+        public void stop() throws IOException {
+            server.close();
+        }
+    }
+
+    /**
+     * スレッド毎の Ext_MailSender とリクエスト.
+     */
+    @State(Scope.Thread)
+    public static class Sender {
+        /** 件名・本文・表示名の文字コード. */
+        @Param({"ISO-2022-JP", "UTF-8"})
+        private String charset;
+
+        private Ext_MailSender mailSender;
+        private NativeObject request;
+
+        /**
+         * Ext_MailSender とリクエストを生成する.
+         * @param server SMTPサーバ
+         * @throws ReflectiveOperationException 生成に失敗した場合
+         */
+        @Setup
+        public void setUp(Server server) throws ReflectiveOperationException {
+            mailSender = BenchmarkSupport.newMailSender(server.server.getHost(), server.server.getPort());
+            request = BenchmarkSupport.newRequest(1, charset);
+        }
+    }
+
+    /**
+     * send() による同期送信.
+     * @param sender Ext_MailSender とリクエスト
+     */
+    @Benchmark
+    public void send(Sender sender) {
+        sender.mailSender.send(sender.request);
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Properties;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * 解析・検証済みのメールアドレスのキャッシュ.
+ * (アドレス, 表示名, 文字コード) 毎に、厳密な解析と表示名の RFC 2047エンコードを済ませた InternetAddress、
+ * または検証エラーを保持し、同じ宛先の繰り返しの解析を省く.
+ */
+class AddressCache {
+
+    private static final String ADDRESS_CACHE_SIZE = "address.cacheSize";
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+    private static final char KEY_SEPARATOR = '\0';
+    /** 全ての送信で参照するため、区画に分けて排他の競合を抑える. */
+    private static final int CONCURRENCY = 16;
+
+    private static AddressCache sharedInstance = null;
+
+    private final LruCache<String, Entry> addresses;
+
+    /**
+     * コンストラクタ.
+     * @param maxSize 保持するアドレスの最大数
+     */
+    AddressCache(int maxSize) {
+        this.addresses = new LruCache<String, Entry>(maxSize, CONCURRENCY);
+    }
+
+    /**
+     * プロセス内で共有されるキャッシュを取得する. 初回呼び出し時の設定でキャッシュを生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有キャッシュ
+     */
+    static synchronized AddressCache getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            sharedInstance = new AddressCache(
+                    ExtensionProperties.getInt(properties, ADDRESS_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * メールアドレスを解析する. キャッシュに無い場合は解析して結果を格納する.
+     * InternetAddressは変更可能なため、呼び出し毎に複製を返す.
+     * @param address メールアドレス
+     * @param name 表示名. 指定しない場合は null
+     * @param charset 表示名の文字コード
+     * @return InternetAddress
+     * @throws AddressException メールアドレスが不正な場合
+     * @throws UnsupportedEncodingException 文字コードが未対応の場合
+     */
+    InternetAddress resolve(String address, String name, String charset)
+            throws AddressException, UnsupportedEncodingException {
+        StringBuilder keyBuilder = new StringBuilder(address).append(KEY_SEPARATOR);
+        if (null != name) {
+            keyBuilder.append(name);
+        }
+        String key = keyBuilder.append(KEY_SEPARATOR).append(charset).toString();
+
+        Entry entry = addresses.get(key);
+        if (null == entry) {
+            entry = addresses.putIfAbsent(key, parse(address, name, charset));
+        }
+        return entry.toAddress();
+    }
+
+    /**
+     * @return ヒット数
+     */
+    long getHitCount() {
+        return addresses.getHitCount();
+    }
+
+    /**
+     * @return ミス数
+     */
+    long getMissCount() {
+        return addresses.getMissCount();
+    }
+
+    /**
+     * @return 保持しているアドレスの数
+     */
+    int size() {
+        return addresses.size();
+    }
+
+    private static Entry parse(String address, String name, String charset) {
+        try {
+            InternetAddress iAddress = new InternetAddress(address, true);
+            if (null != name && !name.isEmpty()) {
+                iAddress.setPersonal(name, charset);
+            }
+            return new Entry(iAddress, null, false);
+        } catch (UnsupportedEncodingException e) {
+            return new Entry(null, e.getMessage(), true);
+        } catch (AddressException e) {
+            return new Entry(null, e.getMessage(), false);
+        }
+    }
+
+    /**
+     * 解析結果.
+     */
+    private static final class Entry {
+        private final InternetAddress address;
+        private final String error;
+        private final boolean unsupportedEncoding;
+
+        Entry(InternetAddress address, String error, boolean unsupportedEncoding) {
+            this.address = address;
+            this.error = error;
+            this.unsupportedEncoding = unsupportedEncoding;
+        }
+
+        InternetAddress toAddress() throws AddressException, UnsupportedEncodingException {
+            if (null != address) {
+                return (InternetAddress) address.clone();
+            }
+            if (unsupportedEncoding) {
+                throw new UnsupportedEncodingException(error);
+            }
+            throw new AddressException(error);
+        }
+    }
+}
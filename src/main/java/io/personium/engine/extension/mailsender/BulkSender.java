@@ -0,0 +1,232 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * 宛先の多いメールを、SMTPリレーが受け付ける宛先数毎のチャンクに分けて送信する (sendBulk).
+ * メッセージは 1度だけエンコードし、チャンク毎には RCPT TOの宛先のみを差し替える.
+ * チャンクはプールから借り出した接続で送信し、設定した並列数まではワーカースレッドでも同時に送信する.
+ */
+class BulkSender {
+
+    private static final String BULK_CHUNK_SIZE = "bulk.chunkSize";
+    private static final String BULK_MAX_RECIPIENTS = "bulk.maxRecipients";
+    private static final String BULK_CONCURRENCY = "bulk.concurrency";
+
+    /** send の宛先数の上限と同じ. */
+    private static final int DEFAULT_CHUNK_SIZE = 50;
+    private static final int DEFAULT_MAX_RECIPIENTS = 1000;
+    private static final int DEFAULT_CONCURRENCY = 4;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60L;
+
+    private static BulkSender sharedInstance = null;
+
+    private final int chunkSize;
+    private final int maxRecipients;
+    private final int concurrency;
+    /** 呼び出し元のスレッドと並行して送信するワーカー. 並列数が 1の場合は null. */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * コンストラクタ.
+     * @param chunkSize 1つのチャンクの最大宛先数
+     * @param maxRecipients 1回の送信の最大宛先数
+     * @param concurrency 1回の送信で同時に送信するチャンクの最大数
+     */
+    BulkSender(int chunkSize, int maxRecipients, int concurrency) {
+        this.chunkSize = Math.max(1, chunkSize);
+        this.maxRecipients = Math.max(1, maxRecipients);
+        this.concurrency = Math.max(1, concurrency);
+        if (1 < this.concurrency) {
+            // 空いているワーカーが無ければ、その分は呼び出し元のスレッドで送信する
+            int workers = this.concurrency - 1;
+            this.executor = new ThreadPoolExecutor(workers, workers, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new WorkerThreadFactory());
+            this.executor.allowCoreThreadTimeOut(true);
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * プロセス内で共有されるインスタンスを取得する. 初回呼び出し時の設定で生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有インスタンス
+     */
+    static synchronized BulkSender getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            sharedInstance = new BulkSender(
+                    ExtensionProperties.getInt(properties, BULK_CHUNK_SIZE, DEFAULT_CHUNK_SIZE),
+                    ExtensionProperties.getInt(properties, BULK_MAX_RECIPIENTS, DEFAULT_MAX_RECIPIENTS),
+                    ExtensionProperties.getInt(properties, BULK_CONCURRENCY, DEFAULT_CONCURRENCY));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * @return 1回の送信の最大宛先数
+     */
+    int getMaxRecipients() {
+        return maxRecipients;
+    }
+
+    /**
+     * 宛先をチャンクに分け、チャンク毎のメッセージを生成する.
+     * @param session Session
+     * @param content Bccヘッダを含まないエンコード済みのメッセージ
+     * @param recipients 全ての宛先
+     * @param envelopeFrom envelope-from
+     * @return チャンク毎のメッセージ
+     */
+    List<RenderedMessage> split(Session session, byte[] content, Address[] recipients, String envelopeFrom) {
+        List<RenderedMessage> chunks = new ArrayList<RenderedMessage>();
+        for (int from = 0; from < recipients.length; from += chunkSize) {
+            Address[] chunk = Arrays.copyOfRange(recipients, from, Math.min(recipients.length, from + chunkSize));
+            // 全てのチャンクで同じメッセージ(Message-IDを含む)を共有し、宛先は RCPT TOにのみ用いる
+            chunks.add(RenderedMessage.of(session, content, chunk, envelopeFrom));
+        }
+        return chunks;
+    }
+
+    /**
+     * チャンク毎のメッセージを送信する. 呼び出し元のスレッドと空いているワーカーが、未送信のチャンクを順に取り出して
+     * それぞれ 1つの接続で続けて送信する. 全てのチャンクの送信を終えるまで復帰しない.
+     * @param dispatcher 送信に用いるディスパッチャ
+     * @param relays 送信先のリレー
+     * @param messages チャンク毎のメッセージ. null の要素は送信しない
+     * @return チャンク毎の送信エラー. 送信できた、または送信しなかったチャンクの要素は null
+     */
+    MessagingException[] sendAll(final SmtpDispatcher dispatcher, final RelayGroup relays,
+            final SMTPMessage[] messages) {
+        final MessagingException[] errors = new MessagingException[messages.length];
+        final AtomicInteger next = new AtomicInteger();
+        Runnable sender = new Runnable() {
+            @Override
+            public void run() {
+                SmtpDispatcher.Batch batch = dispatcher.openBatch(relays);
+                try {
+                    for (int i = next.getAndIncrement(); i < messages.length; i = next.getAndIncrement()) {
+                        if (null == messages[i]) {
+                            continue;
+                        }
+                        try {
+                            batch.send(messages[i]);
+                        } catch (MessagingException e) {
+                            errors[i] = e;
+                        } catch (RuntimeException e) {
+                            // 他のチャンクの送信は続ける
+                            errors[i] = new MessagingException("Failed to send message.", e);
+                        }
+                    }
+                } finally {
+                    batch.close();
+                }
+            }
+        };
+
+        int helpers = 0;
+        if (null != executor) {
+            helpers = Math.min(concurrency, messages.length) - 1;
+        }
+        final CountDownLatch finished = new CountDownLatch(Math.max(0, helpers));
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(new Worker(sender, finished));
+            } catch (RejectedExecutionException e) {
+                finished.countDown();
+            }
+        }
+        sender.run();
+
+        // 各チャンクの送信は SMTPのタイムアウトで終わるため、割り込まれても送信の終了を待つ
+        boolean interrupted = false;
+        while (0 < finished.getCount()) {
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return errors;
+    }
+
+    /**
+     * ワーカーを停止する. 送信中のチャンクの完了は待たない.
+     */
+    void shutdown() {
+        if (null != executor) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 送信を終えたことを通知するワーカーの処理.
+     */
+    private static final class Worker implements Runnable {
+        private final Runnable sender;
+        private final CountDownLatch finished;
+
+        Worker(Runnable sender, CountDownLatch finished) {
+            this.sender = sender;
+            this.finished = finished;
+        }
+
+        @Override
+        public void run() {
+            try {
+                sender.run();
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * ワーカースレッドの生成.
+     */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger sequence = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MailSender-bulk-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
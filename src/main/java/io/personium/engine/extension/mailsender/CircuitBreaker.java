@@ -0,0 +1,149 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * SMTPリレー毎のサーキットブレーカ.
+ * 一時的な失敗が連続した場合に一定時間送信を即座に失敗させ (OPEN)、
+ * 時間経過後に 1件だけ試行を許して (HALF_OPEN) 復旧を確認する.
+ */
+class CircuitBreaker {
+
+    /**
+     * 状態.
+     */
+    enum State {
+        /** 通常. */
+        CLOSED,
+        /** 遮断中. */
+        OPEN,
+        /** 復旧確認中. */
+        HALF_OPEN
+    }
+
+    private static final String CIRCUIT_FAILURE_THRESHOLD = "circuit.failureThreshold";
+    private static final String CIRCUIT_OPEN_MILLIS = "circuit.openMillis";
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final long DEFAULT_OPEN_MILLIS = 30000L;
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong openedAt = new AtomicLong();
+
+    /**
+     * コンストラクタ.
+     * @param failureThreshold 遮断するまでの連続失敗回数. 0以下の場合は遮断しない
+     * @param openMillis 遮断を続ける時間(ミリ秒)
+     */
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * リレー毎のサーキットブレーカを取得する. プロセス内で共有される.
+     * @param relay リレーの識別子 (host:port)
+     * @param properties Ext_MailSender.properties の内容
+     * @return サーキットブレーカ
+     */
+    static CircuitBreaker forRelay(String relay, Properties properties) {
+        CircuitBreaker breaker = BREAKERS.get(relay);
+        if (null == breaker) {
+            CircuitBreaker created = new CircuitBreaker(
+                    ExtensionProperties.getInt(properties, CIRCUIT_FAILURE_THRESHOLD, DEFAULT_FAILURE_THRESHOLD),
+                    ExtensionProperties.getLong(properties, CIRCUIT_OPEN_MILLIS, DEFAULT_OPEN_MILLIS));
+            breaker = BREAKERS.putIfAbsent(relay, created);
+            if (null == breaker) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * 送信を試行してよいかを判定する. 遮断時間を過ぎていれば 1件だけ試行を許す.
+     * @return 試行してよい場合 true
+     */
+    boolean allowRequest() {
+        State current = state.get();
+        if (State.CLOSED == current) {
+            return true;
+        }
+        if (State.OPEN == current && openMillis <= System.currentTimeMillis() - openedAt.get()) {
+            return state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        }
+        return false;
+    }
+
+    /**
+     * 遮断中かどうかを判定する. 状態は変更しない.
+     * @return 遮断中で、遮断時間を過ぎていない場合 true
+     */
+    boolean isOpen() {
+        State current = state.get();
+        if (State.HALF_OPEN == current) {
+            return true;
+        }
+        return State.OPEN == current && openMillis > System.currentTimeMillis() - openedAt.get();
+    }
+
+    /**
+     * 送信の成功(またはリレーが応答したこと)を記録する.
+     */
+    void onSuccess() {
+        consecutiveFailures.set(0);
+        state.set(State.CLOSED);
+    }
+
+    /**
+     * 一時的な失敗を記録する.
+     */
+    void onFailure() {
+        if (State.HALF_OPEN == state.get()) {
+            trip();
+            return;
+        }
+        if (0 < failureThreshold && failureThreshold <= consecutiveFailures.incrementAndGet()) {
+            trip();
+        }
+    }
+
+    /**
+     * @return 現在の状態
+     */
+    State getState() {
+        return state.get();
+    }
+
+    private void trip() {
+        openedAt.set(System.currentTimeMillis());
+        state.set(State.OPEN);
+    }
+}
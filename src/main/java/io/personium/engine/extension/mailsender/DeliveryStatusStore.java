@@ -0,0 +1,197 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 非同期送信の配送状況の保持領域.
+ * 固定長のリングバッファに新しい順に記録し、容量を超えると最も古い記録から上書きする. メモリ使用量は容量で決まり、送信量に依らない.
+ * 記録の追加・更新はロックを取らず、配列要素への書き込みと CASのみで行う. 上書き済みの記録への更新は破棄する.
+ * 照会はバッファ全体を新しい順に走査するため、送信経路には用いない.
+ */
+class DeliveryStatusStore {
+
+    /** 配送状況. */
+    enum State {
+        /** 送信キューで待機中. */
+        QUEUED,
+        /** 送信中 (再試行の待機を含む). */
+        SENDING,
+        /** 送信済み. */
+        SENT,
+        /** 送信失敗. */
+        FAILED;
+
+        /**
+         * @return スクリプトに返す名前
+         */
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final String STATUS_CAPACITY = "status.capacity";
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int MAX_CAPACITY = 1 << 20;
+
+    private static DeliveryStatusStore sharedInstance = null;
+
+    private final AtomicReferenceArray<Record> slots;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * コンストラクタ.
+     * @param capacity 保持する記録の最大数. 2のべき乗に切り上げる
+     */
+    DeliveryStatusStore(int capacity) {
+        int size = 1;
+        while (size < Math.min(Math.max(1, capacity), MAX_CAPACITY)) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<Record>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * プロセス内で共有される保持領域を取得する. 初回呼び出し時の設定で生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有の保持領域
+     */
+    static synchronized DeliveryStatusStore getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            sharedInstance = new DeliveryStatusStore(
+                    ExtensionProperties.getInt(properties, STATUS_CAPACITY, DEFAULT_CAPACITY));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * 送信キューに積んだメッセージを記録する.
+     * @param messageId メッセージID
+     * @param from 送信元アドレス. 不明な場合は null
+     * @return 記録. 以降の更新に用いる
+     */
+    Record queued(String messageId, String from) {
+        long seq = sequence.getAndIncrement();
+        long now = System.currentTimeMillis();
+        Record record = new Record(seq, messageId, from, State.QUEUED, 0, null, now, now);
+        slots.set(index(seq), record);
+        return record;
+    }
+
+    /**
+     * 記録を更新する. 新しい記録に上書きされていた場合は更新しない.
+     * @param previous 直前の記録
+     * @param state 配送状況
+     * @param replyCode SMTPサーバの応答コード. 無い場合は 0
+     * @param reply 失敗の内容. 無い場合は null
+     * @return 更新後の記録. 上書きされていた場合は null
+     */
+    Record update(Record previous, State state, int replyCode, String reply) {
+        if (null == previous) {
+            return null;
+        }
+        Record record = new Record(previous.sequence, previous.messageId, previous.from, state, replyCode, reply,
+                previous.queuedAt, System.currentTimeMillis());
+        if (slots.compareAndSet(index(previous.sequence), previous, record)) {
+            return record;
+        }
+        return null;
+    }
+
+    /**
+     * メッセージの最新の記録を取得する.
+     * @param messageId メッセージID
+     * @return 記録. 記録が無い場合、上書きされた場合は null
+     */
+    Record get(String messageId) {
+        long last = sequence.get() - 1;
+        for (long seq = last; 0 <= seq && last - seq <= mask; seq--) {
+            Record record = slots.get(index(seq));
+            if (null != record && record.sequence == seq && record.messageId.equals(messageId)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 条件に合う記録を新しい順に取得する.
+     * @param state 配送状況. 条件としない場合は null
+     * @param from 送信元アドレス. 条件としない場合は null
+     * @param limit 最大件数
+     * @return 記録
+     */
+    List<Record> listRecent(State state, String from, int limit) {
+        List<Record> records = new ArrayList<Record>();
+        long last = sequence.get() - 1;
+        for (long seq = last; 0 <= seq && last - seq <= mask && records.size() < limit; seq--) {
+            Record record = slots.get(index(seq));
+            if (null == record || record.sequence != seq) {
+                continue;
+            }
+            if ((null == state || state == record.state) && (null == from || from.equalsIgnoreCase(record.from))) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return 保持できる記録の最大数
+     */
+    int capacity() {
+        return slots.length();
+    }
+
+    private int index(long seq) {
+        return (int) (seq & mask);
+    }
+
+    /**
+     * 配送状況の記録. 不変.
+     */
+    static final class Record {
+        final long sequence;
+        final String messageId;
+        final String from;
+        final State state;
+        final int replyCode;
+        final String reply;
+        final long queuedAt;
+        final long updatedAt;
+
+        Record(long sequence, String messageId, String from, State state, int replyCode, String reply,
+                long queuedAt, long updatedAt) {
+            this.sequence = sequence;
+            this.messageId = messageId;
+            this.from = from;
+            this.state = state;
+            this.replyCode = replyCode;
+            this.reply = reply;
+            this.queuedAt = queuedAt;
+            this.updatedAt = updatedAt;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.MessagingException;
+
+/**
+ * DKIM署名 (RFC 6376, rsa-sha256, relaxed/relaxed).
+ * 送信元アドレスのドメイン毎に dkim.keys で指定したセレクタと秘密鍵で署名する. 秘密鍵はセレクタ毎に初回だけ読み込み、
+ * 解析済みの鍵を保持する. 本文ハッシュは {@link BodyHashes} を渡すことで、同じ本文のメッセージ間で使い回せる.
+ */
+class DkimSigner {
+
+    /** 署名ヘッダ名. */
+    static final String HEADER_NAME = "DKIM-Signature";
+
+    private static final String DKIM_KEYS = "dkim.keys";
+    private static final String DKIM_HEADERS = "dkim.headers";
+    private static final String DEFAULT_HEADERS =
+            "From:Reply-To:Subject:Date:To:Cc:Message-ID:MIME-Version:Content-Type:Content-Transfer-Encoding";
+
+    private static final String PEM_BEGIN = "-----BEGIN";
+    private static final String PEM_END = "-----END";
+    private static final String PEM_RSA_PRIVATE_KEY = "RSA PRIVATE KEY";
+    private static final String KEY_ALGORITHM = "RSA";
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final byte[] CRLF = new byte[] {'\r', '\n'};
+    private static final int MILLIS_PER_SECOND = 1000;
+
+    private static DkimSigner sharedInstance = null;
+
+    /** 送信元ドメイン(小文字)毎の署名設定. */
+    private final Map<String, Selector> selectors;
+    /** 署名するヘッダ名(小文字). */
+    private final List<String> signedHeaders;
+    /** セレクタ毎の解析済みの秘密鍵. */
+    private final ConcurrentMap<String, PrivateKey> keys = new ConcurrentHashMap<String, PrivateKey>();
+
+    /**
+     * コンストラクタ.
+     * @param keysValue "domain:selector:keyFile,..." 形式の署名設定
+     * @param headersValue ":" 区切りの署名するヘッダ名
+     */
+    DkimSigner(String keysValue, String headersValue) {
+        Map<String, Selector> parsed = new HashMap<String, Selector>();
+        if (null != keysValue) {
+            for (String item : keysValue.split(",")) {
+                String[] parts = item.trim().split(":", 3);
+                if (3 > parts.length || parts[0].isEmpty() || parts[1].isEmpty() || parts[2].isEmpty()) {
+                    continue;
+                }
+                String domain = parts[0].trim().toLowerCase(Locale.ROOT);
+                parsed.put(domain, new Selector(domain, parts[1].trim(), parts[2].trim()));
+            }
+        }
+        this.selectors = Collections.unmodifiableMap(parsed);
+        List<String> headers = new ArrayList<String>();
+        for (String name : headersValue.split(":")) {
+            if (!name.trim().isEmpty()) {
+                headers.add(name.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        this.signedHeaders = Collections.unmodifiableList(headers);
+    }
+
+    /**
+     * プロセス内で共有されるインスタンスを取得する. 初回呼び出し時の設定で生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有インスタンス
+     */
+    static synchronized DkimSigner getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            sharedInstance = new DkimSigner(ExtensionProperties.getString(properties, DKIM_KEYS, null),
+                    ExtensionProperties.getString(properties, DKIM_HEADERS, DEFAULT_HEADERS));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * 送信元アドレスのドメインに署名の設定があるかを判定する.
+     * @param from 送信元アドレス
+     * @return 署名する場合 true
+     */
+    boolean canSign(String from) {
+        return !selectors.isEmpty() && null != selectors.get(domainOf(from));
+    }
+
+    /**
+     * メッセージに署名し、先頭に付けるヘッダを返す.
+     * @param message 送信する形式に書き出したメッセージ (ヘッダ、空行、本文)
+     * @param from 送信元アドレス
+     * @param bodyHashes 本文ハッシュの使い回し先. 使い回さない場合は null
+     * @return 末尾に CRLFを含む DKIM-Signatureヘッダ. 送信元のドメインに署名の設定が無い場合は null
+     * @throws MessagingException 秘密鍵を読み込めない場合、署名に失敗した場合
+     */
+    byte[] sign(byte[] message, String from, BodyHashes bodyHashes) throws MessagingException {
+        Selector selector = selectors.get(domainOf(from));
+        if (null == selector) {
+            return null;
+        }
+        int bodyStart = indexOfBody(message);
+        String bodyHash = null;
+        ByteBuffer body = ByteBuffer.wrap(message, bodyStart, message.length - bodyStart).slice();
+        if (null != bodyHashes) {
+            bodyHash = bodyHashes.get(body);
+        }
+        if (null == bodyHash) {
+            bodyHash = Base64.getEncoder().encodeToString(hashBody(message, bodyStart, message.length - bodyStart));
+            if (null != bodyHashes) {
+                bodyHashes.put(body, bodyHash);
+            }
+        }
+
+        List<String> fields = parseHeaders(message, bodyStart);
+        StringBuilder names = new StringBuilder();
+        StringBuilder canonical = new StringBuilder();
+        for (String name : signedHeaders) {
+            String field = findLast(fields, name);
+            if (null == field) {
+                continue;
+            }
+            if (0 < names.length()) {
+                names.append(':');
+            }
+            names.append(name);
+            canonical.append(canonicalizeHeader(field)).append("\r\n");
+        }
+
+        StringBuilder header = new StringBuilder(HEADER_NAME).append(": v=1; a=rsa-sha256; c=relaxed/relaxed; d=")
+                .append(selector.domain).append("; s=").append(selector.name).append(";\r\n\tt=")
+                .append(System.currentTimeMillis() / MILLIS_PER_SECOND).append("; h=").append(names)
+                .append(";\r\n\tbh=").append(bodyHash).append(";\r\n\tb=");
+        canonical.append(canonicalizeHeader(header.toString()));
+        try {
+            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signature.initSign(getKey(selector));
+            signature.update(canonical.toString().getBytes(StandardCharsets.ISO_8859_1));
+            header.append(Base64.getEncoder().encodeToString(signature.sign())).append("\r\n");
+        } catch (GeneralSecurityException e) {
+            throw new MessagingException(String.format("Failed to sign message with DKIM key (%s).", selector), e);
+        }
+        return header.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 本文を relaxed方式で正規化し、SHA-256のハッシュを計算する.
+     * @param message メッセージ
+     * @param offset 本文の開始位置
+     * @param length 本文の長さ
+     * @return ハッシュ
+     */
+    static byte[] hashBody(byte[] message, int offset, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int emptyLines = 0;
+        int end = offset + length;
+        int pos = offset;
+        while (pos < end) {
+            int lineEnd = pos;
+            while (lineEnd < end && '\n' != message[lineEnd]) {
+                lineEnd++;
+            }
+            int contentEnd = lineEnd;
+            if (contentEnd > pos && '\r' == message[contentEnd - 1]) {
+                contentEnd--;
+            }
+            line.reset();
+            boolean space = false;
+            for (int i = pos; i < contentEnd; i++) {
+                byte b = message[i];
+                if (' ' == b || '\t' == b) {
+                    space = true;
+                    continue;
+                }
+                if (space) {
+                    line.write(' ');
+                    space = false;
+                }
+                line.write(b);
+            }
+            // 末尾の空行は取り除くため、空でない行が続くまで出力を保留する
+            if (0 == line.size()) {
+                emptyLines++;
+            } else {
+                for (int i = 0; i < emptyLines; i++) {
+                    digest.update(CRLF);
+                }
+                emptyLines = 0;
+                digest.update(line.toByteArray());
+                digest.update(CRLF);
+            }
+            pos = lineEnd + 1;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * ヘッダを relaxed方式で正規化する.
+     * @param field ヘッダ (名前: 値). 折り返しを含められる. 末尾の CRLFは含めない
+     * @return 正規化したヘッダ. 末尾の CRLFは含まない
+     */
+    static String canonicalizeHeader(String field) {
+        int colon = field.indexOf(':');
+        String name = field.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+        String value = field.substring(colon + 1).replace("\r\n", "").replaceAll("[ \t]+", " ").trim();
+        return name + ":" + value;
+    }
+
+    private static int indexOfBody(byte[] message) {
+        for (int i = 0; i + 3 < message.length; i++) {
+            if ('\r' == message[i] && '\n' == message[i + 1] && '\r' == message[i + 2] && '\n' == message[i + 3]) {
+                return i + 4;
+            }
+        }
+        return message.length;
+    }
+
+    private static List<String> parseHeaders(byte[] message, int bodyStart) {
+        List<String> fields = new ArrayList<String>();
+        String section = new String(message, 0, bodyStart, StandardCharsets.ISO_8859_1);
+        StringBuilder field = null;
+        for (String line : section.split("\r\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            if ((' ' == line.charAt(0) || '\t' == line.charAt(0)) && null != field) {
+                field.append("\r\n").append(line);
+                continue;
+            }
+            if (null != field) {
+                fields.add(field.toString());
+            }
+            field = new StringBuilder(line);
+        }
+        if (null != field) {
+            fields.add(field.toString());
+        }
+        return fields;
+    }
+
+    private static String findLast(List<String> fields, String name) {
+        for (int i = fields.size() - 1; 0 <= i; i--) {
+            String field = fields.get(i);
+            int colon = field.indexOf(':');
+            if (0 < colon && field.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private PrivateKey getKey(Selector selector) throws GeneralSecurityException {
+        PrivateKey key = keys.get(selector.toString());
+        if (null == key) {
+            key = loadKey(selector.keyFile);
+            keys.putIfAbsent(selector.toString(), key);
+        }
+        return key;
+    }
+
+    /**
+     * PKCS#8形式 (PEMまたは DER) の RSA秘密鍵を読み込む.
+     * @param keyFile 秘密鍵のファイル
+     * @return 秘密鍵
+     * @throws GeneralSecurityException 読み込めない場合
+     */
+    static PrivateKey loadKey(String keyFile) throws GeneralSecurityException {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(Paths.get(keyFile));
+        } catch (IOException | RuntimeException e) {
+            throw new GeneralSecurityException(String.format("Failed to read DKIM private key file (%s).", keyFile), e);
+        }
+        String text = new String(content, StandardCharsets.ISO_8859_1);
+        if (text.contains(PEM_BEGIN)) {
+            if (text.contains(PEM_RSA_PRIVATE_KEY)) {
+                throw new GeneralSecurityException("PKCS#1 private key is not supported. "
+                        + "Convert it to PKCS#8 with 'openssl pkcs8 -topk8 -nocrypt'.");
+            }
+            int begin = text.indexOf('\n', text.indexOf(PEM_BEGIN));
+            int end = text.indexOf(PEM_END, begin);
+            content = Base64.getMimeDecoder().decode(text.substring(begin + 1, end));
+        }
+        return KeyFactory.getInstance(KEY_ALGORITHM).generatePrivate(new PKCS8EncodedKeySpec(content));
+    }
+
+    private static String domainOf(String address) {
+        if (null == address) {
+            return "";
+        }
+        return address.substring(address.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 署名の設定.
+     */
+    private static final class Selector {
+        private final String domain;
+        private final String name;
+        private final String keyFile;
+
+        Selector(String domain, String name, String keyFile) {
+            this.domain = domain;
+            this.name = name;
+            this.keyFile = keyFile;
+        }
+
+        @Override
+        public String toString() {
+            return name + "._domainkey." + domain;
+        }
+    }
+
+    /**
+     * 本文ハッシュの使い回し先.
+     */
+    interface BodyHashes {
+        /**
+         * @param body 本文
+         * @return 本文ハッシュ. 計算していない場合は null
+         */
+        String get(ByteBuffer body);
+
+        /**
+         * @param body 本文
+         * @param hash 計算した本文ハッシュ
+         */
+        void put(ByteBuffer body, String hash);
+    }
+
+    /**
+     * 同じ本文の本文ハッシュを使い回すためのキャッシュ. 1回の一括送信等の間だけ使う.
+     * 保持する本文は上限までとし、それを超えた本文は毎回計算する.
+     */
+    static final class BodyHashCache implements BodyHashes {
+        private final int maxSize;
+        private final ConcurrentMap<ByteBuffer, String> hashes = new ConcurrentHashMap<ByteBuffer, String>();
+
+        /**
+         * コンストラクタ.
+         * @param maxSize 保持する本文の最大数
+         */
+        BodyHashCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public String get(ByteBuffer body) {
+            return hashes.get(body);
+        }
+
+        @Override
+        public void put(ByteBuffer body, String hash) {
+            if (maxSize > hashes.size()) {
+                hashes.putIfAbsent(body, hash);
+            }
+        }
+
+        /**
+         * @return 保持している本文の数
+         */
+        int size() {
+            return hashes.size();
+        }
+    }
+
+    /**
+     * 本文が変わらないメッセージの本文ハッシュ. 最初に計算した本文ハッシュを本文と比べずに使い回し、本文も保持しない.
+     * 同じ本文のメッセージの署名にのみ使うこと.
+     */
+    static final class ConstantBodyHash implements BodyHashes {
+        private volatile String hash;
+
+        @Override
+        public String get(ByteBuffer body) {
+            return hash;
+        }
+
+        @Override
+        public void put(ByteBuffer body, String bodyHash) {
+            this.hash = bodyHash;
+        }
+    }
+}
@@ -16,28 +16,49 @@
  */
 package io.personium.engine.extension.mailsender;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.activation.DataHandler;
+import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Part;
 import javax.mail.SendFailedException;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
 
 import org.mozilla.javascript.EcmaError;
 import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Wrapper;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 
+import com.sun.mail.smtp.SMTPMessage;
+
+import io.personium.engine.extension.mailsender.SendMetrics.Phase;
 import io.personium.engine.extension.support.AbstractExtensionScriptableObject;
 import io.personium.engine.extension.support.ExtensionErrorConstructor;
 
@@ -47,20 +68,39 @@ import io.personium.engine.extension.support.ExtensionErrorConstructor;
 @SuppressWarnings("serial")
 public class Ext_MailSender extends AbstractExtensionScriptableObject { // CHECKSTYLE IGNORE
 
-    private static final String JAVAMAIL_SMTP_FROM_KEY = "mail.smtp.from";
-    private static final String JAVAMAIL_SMTP_PORT_KEY = "mail.smtp.port";
-    private static final String JAVAMAIL_SMTP_HOST_KEY = "mail.smtp.host";
-    private static final String EXT_MAILSENDER_SMTP_HOST = "io.personium.engine.extension.MailSender.smtp.host";
-    private static final String EXT_MAILSENDER_SMTP_PORT = "io.personium.engine.extension.MailSender.smtp.port";
-
-    private static final String DEFAULT_SMTP_PORT = "25";
-
     private static final String DEFAULT_BODY_ENCODING = "ISO-2022-JP";
     private static final int MAX_RECIPIENTS = 50;
     private static final int MAX_REPLY_TO = 50;
+    private static final double MAX_SAFE_INTEGER = 9007199254740992d;
+    private static final int MAX_ATTACHMENTS = 20;
+    private static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
+    private static final String ENCODING_BASE64 = "base64";
+    private static final String IDEMPOTENCY_KEY = "idempotency-key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 256;
+    private static final int MAX_DKIM_BODY_HASHES = 64;
+    /** 書き出したメッセージをそのまま送信する際に含めないヘッダ. */
+    private static final String[] RENDER_IGNORED_HEADERS = new String[] {"Bcc", "Content-Length"};
+    private static final int DEFAULT_LIST_LIMIT = 100;
 
+    private MailSenderConfig config = null;
     private String smtpHost = null;
     private String smtpPort = null;
+    private RelayGroup relayGroup = null;
+    private SmtpDispatcher dispatcher = null;
+    private SendMetrics metrics = null;
+    private RateLimiter rateLimiter = null;
+    private SharedQuota sharedQuota = null;
+    private IdempotencyIndex idempotencyIndex = null;
+    private BulkSender bulkSender = null;
+    private DkimSigner dkimSigner = null;
+    private SessionCache sessionCache = null;
+    private TemplateRegistry templateRegistry = null;
+    private PreparedMessageRegistry preparedMessages = null;
+    private AddressCache addressCache = null;
+    private Path attachmentBaseDir = null;
+    private OutboundQueue outboundQueue = null;
+    private DeliveryStatusStore deliveryStatus = null;
+    private MailSpool mailSpool = null;
 
     /**
      * JavaScriptへの公開名.
@@ -75,12 +115,35 @@ public class Ext_MailSender extends AbstractExtensionScriptableObject { // CHECK
      */
     @JSConstructor
     public Ext_MailSender() {
-        smtpHost = getProperties().getProperty(EXT_MAILSENDER_SMTP_HOST);
-        smtpPort = getProperties().getProperty(EXT_MAILSENDER_SMTP_PORT, DEFAULT_SMTP_PORT);
+        // 設定はプロセス全体で共有するスナップショットから取得し、このインスタンスでは同じスナップショットを使い続ける
+        config = MailSenderConfig.getInstance(getProperties(), this.getLogger());
+        Properties properties = config.getProperties();
+        smtpHost = config.getSmtpHost();
+        smtpPort = config.getSmtpPort();
+        relayGroup = config.getRelayGroup();
+        attachmentBaseDir = config.getAttachmentBaseDir();
+        // 共有するサービスは初回に 1度だけ取得し、開けなかったサービスも開き直さない
+        SharedServices services = SharedServices.getInstance(properties, this.getLogger());
+        metrics = services.getMetrics();
+        rateLimiter = services.getRateLimiter();
+        sharedQuota = services.getSharedQuota();
+        dispatcher = new SmtpDispatcher(services.getPool(), config.getRetryPolicy(), metrics);
+        bulkSender = services.getBulkSender();
+        dkimSigner = services.getDkimSigner();
+        sessionCache = services.getSessionCache();
+        templateRegistry = services.getTemplateRegistry();
+        preparedMessages = services.getPreparedMessages();
+        addressCache = services.getAddressCache();
+        idempotencyIndex = services.getIdempotencyIndex();
+        outboundQueue = services.getOutboundQueue();
+        deliveryStatus = services.getDeliveryStatus();
+        mailSpool = services.getMailSpool();
 
         if (null == smtpHost || smtpHost.isEmpty()) {
             String message = "smtp host is not specified in configuration.";
             this.getLogger().warn(message);
+        } else if (null != mailSpool && mailSpool.hasRecovered()) {
+            scheduleRecovery();
         }
     }
 
@@ -103,18 +166,741 @@ public class Ext_MailSender extends AbstractExtensionScriptableObject { // CHECK
     @JSFunction
     public void send(NativeObject reqJson) throws EcmaError {
 
-        if (null == smtpHost || smtpHost.isEmpty()) {
-            String message = "smtp host is not specified in configuration.";
+        checkSmtpHost();
+
+        if (null == reqJson) {
+            String message = "Invalid argument for send method.: null.";
             this.getLogger().info(message);
             throw ExtensionErrorConstructor.construct(message);
         }
 
+        MailRequest request;
+        SMTPMessage objMsg;
+        String idempotencyKey;
+        try {
+            request = parseRequest(reqJson);
+            objMsg = signDkim(buildMessage(request), request, null);
+            idempotencyKey = getIdempotencyKey(reqJson, request);
+        } catch (EcmaError e) {
+            metrics.recordInvalidRequest();
+            throw e;
+        }
+        if (null != beginIdempotent(idempotencyKey)) {
+            // 送信済みのため、SMTPサーバには接続しない
+            return;
+        }
+
+        boolean sent = false;
+        try {
+            acquireSendPermit(request.fromAddress);
+            // メール送信
+            // この APIでの失敗は、SMTPサーバとの接続後の問題であるため、warnレベルでログを出しておく。
+            transmit(objMsg, isRetryable(request, objMsg));
+            sent = true;
+        } catch (MessagingException e) {
+            throw ExtensionErrorConstructor.construct(describeSendFailure(e));
+        } finally {
+            finishIdempotent(idempotencyKey, sent, "");
+        }
+    }
+
+    /**
+     * 引数で指定された JSONの記述に従い、メールを非同期に送信する.
+     * リクエストの検証とメッセージの生成までを行い、送信処理を送信キューに積んで直ちに復帰する.
+     * 送信時のエラーはログに出力される.
+     * @param reqJson メール送信内容の JSON
+     * @return メッセージID
+     * @throws EcmaError リクエスト内容の不備、送信キューが満杯の場合
+     */
+    @JSFunction
+    public String sendAsync(NativeObject reqJson) throws EcmaError {
+
+        checkSmtpHost();
+
         if (null == reqJson) {
-            String message = "Invalid argument for send method.: null.";
+            String message = "Invalid argument for sendAsync method.: null.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+
+        SMTPMessage objMsg;
+        MailRequest request;
+        String idempotencyKey;
+        try {
+            request = parseRequest(reqJson);
+            // 送信は後で別スレッドから行うため、1度しか読み出せない添付ファイルは受け付けない
+            checkReusableAttachments(request, "sendAsync");
+            objMsg = signDkim(buildMessage(request), request, null);
+            idempotencyKey = getIdempotencyKey(reqJson, request);
+        } catch (EcmaError e) {
+            metrics.recordInvalidRequest();
+            throw e;
+        }
+        IdempotencyIndex.Entry previous = beginIdempotent(idempotencyKey);
+        if (null != previous) {
+            // 受け付け済みのため、最初に受け付けた時のメッセージIDを返す
+            return previous.getResult();
+        }
+        String messageId = UUID.randomUUID().toString();
+        boolean accepted = false;
+        try {
+            acquireSendPermit(request.fromAddress);
+            enqueue(messageId, request, objMsg);
+            accepted = true;
+        } finally {
+            finishIdempotent(idempotencyKey, accepted, messageId);
+        }
+        return messageId;
+    }
+
+    /**
+     * メッセージをスプールに書き込み、送信キューに積む.
+     * @param messageId メッセージID
+     * @param request リクエスト
+     * @param objMsg メッセージ
+     * @throws EcmaError スプールへの書き込みに失敗した場合、送信キューが満杯の場合
+     */
+    private void enqueue(String messageId, MailRequest request, SMTPMessage objMsg) throws EcmaError {
+        // 再起動で失われないよう、キューに積む前にスプールへ書き込む
+        if (null != mailSpool) {
+            try {
+                // Bccはヘッダから除き、回収時に宛先を失わないようエンベロープの宛先を別に書き込む
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                objMsg.writeTo(content, RENDER_IGNORED_HEADERS);
+                mailSpool.append(messageId, request.envelopeFrom, request.fromAddress.getAddress(),
+                        toAddressStrings(objMsg.getAllRecipients()), content.toByteArray());
+            } catch (IOException | MessagingException e) {
+                String message = "Failed to write message to mail spool.";
+                this.getLogger().warn(message, e);
+                String errorMessage = String.format("%s Cause: [%s]", message, e.getMessage());
+                throw ExtensionErrorConstructor.construct(errorMessage);
+            }
+        }
+
+        DeliveryStatusStore.Record queued = deliveryStatus.queued(messageId, request.fromAddress.getAddress());
+        try {
+            outboundQueue.submit(newDelivery(messageId, objMsg, queued));
+        } catch (RejectedExecutionException e) {
+            if (null != mailSpool) {
+                mailSpool.acknowledge(messageId);
+            }
+            String message = "Outbound queue is full.";
+            deliveryStatus.update(queued, DeliveryStatusStore.State.FAILED, 0, message);
+            this.getLogger().warn(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+    }
+
+    /**
+     * 引数で指定された JSONの配列に従い、複数のメールを送信する.
+     * 全てのリクエストを先に検証した上で、プールから借り出した接続で続けて送信する.
+     * 個々のメールの失敗は例外とせず、結果の配列に記録する.
+     * @param reqJsonArray メール送信内容の JSONの配列
+     * @return 送信結果の配列. 要素は {index, sent, error}
+     * @throws EcmaError 引数の不備、SMTPの設定が存在しない場合
+     */
+    @JSFunction
+    public NativeArray sendBatch(NativeArray reqJsonArray) throws EcmaError {
+
+        checkSmtpHost();
+
+        if (null == reqJsonArray) {
+            String message = "Invalid argument for sendBatch method.: null.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+
+        int size = reqJsonArray.size();
+        Object[] results = new Object[size];
+        SMTPMessage[] messages = new SMTPMessage[size];
+        InternetAddress[] senders = new InternetAddress[size];
+        String[] idempotencyKeys = new String[size];
+        boolean[] retryable = new boolean[size];
+        // 同じ本文のメッセージでは DKIMの本文ハッシュを使い回す
+        DkimSigner.BodyHashCache bodyHashes = new DkimSigner.BodyHashCache(MAX_DKIM_BODY_HASHES);
+
+        // 送信前に全てのリクエストを検証し、メッセージを生成する
+        for (int i = 0; i < size; i++) {
+            try {
+                NativeObject reqJson = castTo(NativeObject.class, reqJsonArray.get(i));
+                if (null == reqJson) {
+                    String message = "Invalid argument for sendBatch method.: null.";
+                    this.getLogger().info(message);
+                    throw ExtensionErrorConstructor.construct(message);
+                }
+                MailRequest request = parseRequest(reqJson);
+                messages[i] = signDkim(buildMessage(request), request, bodyHashes);
+                retryable[i] = isRetryable(request, messages[i]);
+                senders[i] = request.fromAddress;
+                idempotencyKeys[i] = getIdempotencyKey(reqJson, request);
+            } catch (EcmaError e) {
+                metrics.recordInvalidRequest();
+                results[i] = toResult(i, e.getErrorMessage());
+            }
+        }
+
+        // 1つの接続で続けて送信する. 送信に失敗した接続は破棄し、以降は新しい接続で送信する
+        SmtpDispatcher.Batch batch = dispatcher.openBatch(getRelayGroup());
+        try {
+            for (int i = 0; i < size; i++) {
+                if (null == messages[i]) {
+                    continue;
+                }
+                try {
+                    if (null != beginIdempotent(idempotencyKeys[i])) {
+                        // 送信済み
+                        results[i] = toResult(i, null);
+                        continue;
+                    }
+                    boolean sent = false;
+                    try {
+                        acquireSendPermit(senders[i]);
+                        batch.send(messages[i], retryable[i]);
+                        sent = true;
+                    } finally {
+                        finishIdempotent(idempotencyKeys[i], sent, "");
+                    }
+                    results[i] = toResult(i, null);
+                } catch (EcmaError e) {
+                    results[i] = toResult(i, e.getErrorMessage());
+                } catch (MessagingException e) {
+                    results[i] = toResult(i, describeSendFailure(e));
+                }
+            }
+        } finally {
+            batch.close();
+        }
+        return new NativeArray(results);
+    }
+
+    /**
+     * 件名・本文をテンプレートとして、宛先毎に差し込み値を置換したメールを送信する (差し込み印刷).
+     * テンプレートは 1度だけ解析し、宛先毎のメッセージは生成したものから順にプールした接続へ送信する.
+     * 宛先は recipients に {address, name, vars} の配列で指定し、TOとなる. その他の項目は send と同じ.
+     * 個々のメールの失敗は例外とせず、結果の配列に記録する.
+     * @param reqJson メール送信内容の JSON
+     * @return 送信結果の配列. 要素は {index, sent, error}
+     * @throws EcmaError リクエスト内容の不備、SMTPの設定が存在しない場合
+     */
+    @JSFunction
+    public NativeArray sendMerge(NativeObject reqJson) throws EcmaError {
+
+        checkSmtpHost();
+
+        if (null == reqJson) {
+            String message = "Invalid argument for sendMerge method.: null.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+
+        NativeArray recipients = retrieveObjectAs(NativeArray.class, reqJson, "recipients");
+        if (null == recipients || 0 == recipients.size()) {
+            String message = "No mail recipients are specified in request.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        MailRequest base = parseFields(reqJson);
+        // 宛先毎にメッセージを生成するため、1度しか読み出せない添付ファイルは受け付けない
+        checkReusableAttachments(base, "sendMerge");
+        MailTemplate subjectTemplate;
+        MailTemplate bodyTemplate;
+        TemplateRegistry.Entry registered = findTemplate(reqJson);
+        if (null != registered) {
+            subjectTemplate = registered.subject;
+            bodyTemplate = registered.text;
+        } else {
+            subjectTemplate = compileTemplate(base.subject, "subject");
+            bodyTemplate = compileTemplate(base.mailBody, "text");
+        }
+
+        int size = recipients.size();
+        Object[] results = new Object[size];
+        DkimSigner.BodyHashCache bodyHashes = new DkimSigner.BodyHashCache(MAX_DKIM_BODY_HASHES);
+        SmtpDispatcher.Batch batch = dispatcher.openBatch(getRelayGroup());
+        try {
+            for (int i = 0; i < size; i++) {
+                SMTPMessage objMsg;
+                try {
+                    NativeObject recipient = castTo(NativeObject.class, recipients.get(i));
+                    if (null == recipient) {
+                        String message = "Invalid argument for sendMerge method.: null.";
+                        this.getLogger().info(message);
+                        throw ExtensionErrorConstructor.construct(message);
+                    }
+                    InternetAddress[] to = new InternetAddress[] {parseJsonAsInternetAddress(recipient, base.charset)};
+                    Map<String, String> vars = toStringMap(retrieveObjectAs(NativeObject.class, recipient, "vars"));
+                    MailRequest request = base.personalize(to, subjectTemplate.render(vars),
+                            bodyTemplate.render(vars));
+                    validateRequests(request.toAddresses, request.ccAddresses, request.bccAddresses,
+                            request.replyToAddresses, request.fromAddress, request.subject, request.mailBody);
+                    objMsg = signDkim(buildMessage(request), request, bodyHashes);
+                } catch (EcmaError e) {
+                    metrics.recordInvalidRequest();
+                    results[i] = toResult(i, e.getErrorMessage());
+                    continue;
+                }
+                try {
+                    acquireSendPermit(base.fromAddress);
+                    batch.send(objMsg);
+                    results[i] = toResult(i, null);
+                } catch (EcmaError e) {
+                    results[i] = toResult(i, e.getErrorMessage());
+                } catch (MessagingException e) {
+                    results[i] = toResult(i, describeSendFailure(e));
+                }
+            }
+        } finally {
+            batch.close();
+        }
+        return new NativeArray(results);
+    }
+
+    /**
+     * 同じ内容のメールを宛先毎に別のメッセージとして送信する (ファンアウト).
+     * メッセージは 1度だけ生成・エンコードし、宛先毎には To, Message-IDヘッダと RCPT TOのみを差し替える.
+     * 宛先は recipients に {address, name} の配列で指定する. cc, bccは指定できない. その他の項目は send と同じ.
+     * 個々のメールの失敗は例外とせず、結果の配列に記録する.
+     * @param reqJson メール送信内容の JSON
+     * @return 送信結果の配列. 要素は {index, sent, error}
+     * @throws EcmaError リクエスト内容の不備、SMTPの設定が存在しない場合
+     */
+    @JSFunction
+    public NativeArray sendFanOut(NativeObject reqJson) throws EcmaError {
+
+        checkSmtpHost();
+
+        if (null == reqJson) {
+            String message = "Invalid argument for sendFanOut method.: null.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+
+        NativeArray recipients = retrieveObjectAs(NativeArray.class, reqJson, "recipients");
+        if (null == recipients || 0 == recipients.size()) {
+            String message = "No mail recipients are specified in request.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        MailRequest request = parseFields(reqJson);
+        if (null != request.toAddresses || null != request.ccAddresses || null != request.bccAddresses) {
+            String message = "to, cc and bcc cannot be specified for sendFanOut method. Use recipients instead.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        // 宛先は送信毎に差し替えるため、宛先の件数のみ 1件として検証する
+        validateRequests(new InternetAddress[1], null, null, request.replyToAddresses, request.fromAddress,
+                request.subject, request.mailBody);
+
+        String envelopeFrom = request.envelopeFrom;
+        if (null == envelopeFrom || envelopeFrom.isEmpty()) {
+            envelopeFrom = request.fromAddress.getAddress();
+        }
+        Session session = sessionCache.getSession(smtpHost, smtpPort);
+        byte[] content;
+        try {
+            content = RenderedMessage.render(buildMessage(request));
+        } catch (IOException | MessagingException e) {
+            String message = "Invalid message content/configuration were detected.";
+            this.getLogger().info(message, e);
+            String errorMessage = String.format("%s Cause: [%s]", message, e.getMessage());
+            throw ExtensionErrorConstructor.construct(errorMessage);
+        }
+
+        int size = recipients.size();
+        Object[] results = new Object[size];
+        DkimSigner.BodyHashCache bodyHashes = new DkimSigner.BodyHashCache(MAX_DKIM_BODY_HASHES);
+        SmtpDispatcher.Batch batch = dispatcher.openBatch(getRelayGroup());
+        try {
+            for (int i = 0; i < size; i++) {
+                InternetAddress to;
+                try {
+                    NativeObject recipient = castTo(NativeObject.class, recipients.get(i));
+                    if (null == recipient) {
+                        String message = "Invalid argument for sendFanOut method.: null.";
+                        this.getLogger().info(message);
+                        throw ExtensionErrorConstructor.construct(message);
+                    }
+                    to = parseJsonAsInternetAddress(recipient, request.charset);
+                } catch (EcmaError e) {
+                    metrics.recordInvalidRequest();
+                    results[i] = toResult(i, e.getErrorMessage());
+                    continue;
+                }
+                try {
+                    acquireSendPermit(request.fromAddress);
+                    // 本文は全ての宛先で同じため、DKIMの本文ハッシュは 1度だけ計算される
+                    batch.send(signDkim(new RenderedMessage(session, content, to, envelopeFrom), request,
+                            bodyHashes));
+                    results[i] = toResult(i, null);
+                } catch (EcmaError e) {
+                    results[i] = toResult(i, e.getErrorMessage());
+                } catch (MessagingException e) {
+                    results[i] = toResult(i, describeSendFailure(e));
+                }
+            }
+        } finally {
+            batch.close();
+        }
+        return new NativeArray(results);
+    }
+
+    /**
+     * bccに多数の宛先を指定したメールを、宛先をチャンクに分けて送信する (一括送信).
+     * メッセージは 1度だけ生成・エンコードし、to, cc, bccの順に並べた宛先を bulk.chunkSize 件毎に RCPT TOとして送信する.
+     * to, cc の合計は send と同じく 50件まで、bccを含めた合計は bulk.maxRecipients 件まで指定できる.
+     * チャンクの送信の失敗は例外とせず、結果の配列に記録する.
+     * @param reqJson メール送信内容の JSON. 項目は send と同じ
+     * @return チャンク毎の送信結果の配列. 要素は {index, sent, error, recipients}
+     * @throws EcmaError リクエスト内容の不備、SMTPの設定が存在しない場合
+     */
+    @JSFunction
+    public NativeArray sendBulk(NativeObject reqJson) throws EcmaError {
+
+        checkSmtpHost();
+
+        if (null == reqJson) {
+            String message = "Invalid argument for sendBulk method.: null.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+
+        MailRequest request;
+        Address[] recipients;
+        byte[] content;
+        try {
+            request = parseFields(reqJson);
+            recipients = getBulkRecipients(request);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            buildMessage(request.withoutBcc()).writeTo(out);
+            content = out.toByteArray();
+        } catch (IOException | MessagingException e) {
+            metrics.recordInvalidRequest();
+            String message = "Invalid message content/configuration were detected.";
+            this.getLogger().info(message, e);
+            String errorMessage = String.format("%s Cause: [%s]", message, e.getMessage());
+            throw ExtensionErrorConstructor.construct(errorMessage);
+        } catch (EcmaError e) {
+            metrics.recordInvalidRequest();
+            throw e;
+        }
+
+        // チャンク毎のメッセージは同じ内容のため、署名は 1度だけ行う
+        content = signDkim(content, request);
+        String envelopeFrom = request.envelopeFrom;
+        if (null == envelopeFrom || envelopeFrom.isEmpty()) {
+            envelopeFrom = request.fromAddress.getAddress();
+        }
+        Session session = sessionCache.getSession(smtpHost, smtpPort);
+        List<RenderedMessage> chunks = bulkSender.split(session, content, recipients, envelopeFrom);
+
+        int size = chunks.size();
+        Object[] results = new Object[size];
+        SMTPMessage[] messages = new SMTPMessage[size];
+        for (int i = 0; i < size; i++) {
+            try {
+                acquireSendPermit(request.fromAddress);
+                messages[i] = chunks.get(i);
+            } catch (EcmaError e) {
+                results[i] = toResult(i, e.getErrorMessage());
+            }
+        }
+        MessagingException[] errors = bulkSender.sendAll(dispatcher, getRelayGroup(), messages);
+        for (int i = 0; i < size; i++) {
+            if (null == results[i]) {
+                String error = null;
+                if (null != errors[i]) {
+                    error = describeSendFailure(errors[i]);
+                }
+                results[i] = toResult(i, error);
+            }
+            NativeObject result = (NativeObject) results[i];
+            result.put("recipients", result, chunks.get(i).getAllRecipients().length);
+        }
+        return new NativeArray(results);
+    }
+
+    /**
+     * メールを送信せずに検証・エンコードまでを行い、繰り返し送信するためのハンドルを返す.
+     * send と同じく、件名・本文は template または vars を指定した場合のみ ${name} 形式のテンプレートとして扱い、
+     * それ以外はそのままの文字列とする. vars は送信毎の差し込み値の既定値となる. プレースホルダを含まない場合は
+     * To, Cc, Message-IDを除いたメッセージを 1度だけエンコードしておき、送信時は宛先のヘッダのみを付け加える.
+     * ハンドルは prepared.cacheSize 件まで保持され、最も使われていないものから破棄される.
+     * @param reqJson メール送信内容の JSON. 項目は send と同じ
+     * @return ハンドル
+     * @throws EcmaError リクエスト内容の不備
+     */
+    @JSFunction
+    public String prepare(NativeObject reqJson) throws EcmaError {
+
+        if (null == reqJson) {
+            String message = "Invalid argument for prepare method.: null.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+
+        PreparedMessageRegistry.Entry prepared;
+        try {
+            MailRequest request = parseRequest(reqJson);
+            Map<String, String> vars = toStringMap(retrieveObjectAs(NativeObject.class, reqJson, "vars"));
+            // send と同じく、テンプレートを使わない件名・本文は ${name} を含んでいてもそのまま送る
+            MailTemplate subjectTemplate = MailTemplate.literal(request.subject);
+            MailTemplate bodyTemplate = MailTemplate.literal(request.mailBody);
+            TemplateRegistry.Entry registered = findTemplate(reqJson);
+            if (null != registered) {
+                // 明示された件名・本文は登録済みテンプレートより優先する
+                if (null == retrieveObjectAs(String.class, reqJson, "subject")) {
+                    subjectTemplate = registered.subject;
+                }
+                if (null == retrieveObjectAs(String.class, reqJson, "text")) {
+                    bodyTemplate = registered.text;
+                }
+            } else if (reqJson.containsKey("vars")) {
+                subjectTemplate = compileTemplate(request.subject, "subject");
+                bodyTemplate = compileTemplate(request.mailBody, "text");
+            }
+            byte[] content = null;
+            if (subjectTemplate.isConstant() && bodyTemplate.isConstant()) {
+                content = RenderedMessage.render(buildMessage(request.withRecipients(null, null, null)
+                        .personalize(null, subjectTemplate.render(vars), bodyTemplate.render(vars))));
+            } else {
+                // 送信毎にメッセージを生成するため、1度しか読み出せない添付ファイルは受け付けない
+                checkReusableAttachments(request, "prepare");
+            }
+            prepared = new PreparedMessageRegistry.Entry(request, subjectTemplate, bodyTemplate, vars, content);
+        } catch (IOException | MessagingException e) {
+            metrics.recordInvalidRequest();
+            String message = "Invalid message content/configuration were detected.";
+            this.getLogger().info(message, e);
+            String errorMessage = String.format("%s Cause: [%s]", message, e.getMessage());
+            throw ExtensionErrorConstructor.construct(errorMessage);
+        } catch (EcmaError e) {
+            metrics.recordInvalidRequest();
+            throw e;
+        }
+        return preparedMessages.register(prepared);
+    }
+
+    /**
+     * prepare で準備したメールを送信する. リクエストの解析・検証とメッセージのエンコードは行わない.
+     * overrides には送信毎に差し替える to, cc, bcc (指定したもののみ置き換える) と、テンプレートの差し込み値 vars を指定できる.
+     * 宛先を差し替えた場合は宛先の件数のみを検証する.
+     * @param handle prepare で取得したハンドル
+     * @param overrides 送信毎に差し替える項目の JSON. 差し替えない場合は null
+     * @throws EcmaError ハンドルが存在しない場合、差し替える項目の不備、メール送信時のエラー
+     */
+    @JSFunction
+    public void sendPrepared(String handle, NativeObject overrides) throws EcmaError {
+
+        checkSmtpHost();
+
+        PreparedMessageRegistry.Entry prepared = null;
+        if (null != handle) {
+            prepared = preparedMessages.get(handle);
+        }
+        if (null == prepared) {
+            String message = "Prepared message is not found. It may have been discarded; call prepare again.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+
+        MailRequest request = prepared.request;
+        SMTPMessage objMsg;
+        try {
+            Map<String, String> vars = prepared.vars;
+            if (null != overrides) {
+                request = overrideRecipients(request, overrides);
+                if (overrides.containsKey("vars")) {
+                    vars = new HashMap<String, String>(prepared.vars);
+                    vars.putAll(toStringMap(retrieveObjectAs(NativeObject.class, overrides, "vars")));
+                }
+            }
+            if (null == prepared.content) {
+                request = request.personalize(request.toAddresses, prepared.subject.render(vars),
+                        prepared.text.render(vars));
+                validateRequests(request.toAddresses, request.ccAddresses, request.bccAddresses,
+                        request.replyToAddresses, request.fromAddress, request.subject, request.mailBody);
+                // 送信毎に本文が変わるため本文ハッシュは使い回さない
+                objMsg = signDkim(buildMessage(request), request, null);
+            } else {
+                if (null != overrides) {
+                    validateRequests(request.toAddresses, request.ccAddresses, request.bccAddresses,
+                            request.replyToAddresses, request.fromAddress, request.subject, request.mailBody);
+                }
+                String envelopeFrom = request.envelopeFrom;
+                if (null == envelopeFrom || envelopeFrom.isEmpty()) {
+                    envelopeFrom = request.fromAddress.getAddress();
+                }
+                Session session = sessionCache.getSession(smtpHost, smtpPort);
+                objMsg = new RenderedMessage(session, prepared.content, request.toAddresses, request.ccAddresses,
+                        toEnvelopeRecipients(request), envelopeFrom);
+                objMsg = signDkim(objMsg, request, prepared.bodyHash);
+            }
+        } catch (EcmaError e) {
+            metrics.recordInvalidRequest();
+            throw e;
+        }
+
+        acquireSendPermit(request.fromAddress);
+        try {
+            transmit(objMsg);
+        } catch (MessagingException e) {
+            throw ExtensionErrorConstructor.construct(describeSendFailure(e));
+        }
+    }
+
+    private MailRequest overrideRecipients(MailRequest request, NativeObject overrides) throws EcmaError {
+        InternetAddress[] to = request.toAddresses;
+        InternetAddress[] cc = request.ccAddresses;
+        InternetAddress[] bcc = request.bccAddresses;
+        if (overrides.containsKey("to")) {
+            to = getInternetAddresses(retrieveObjectAs(NativeArray.class, overrides, "to"), request.charset);
+        }
+        if (overrides.containsKey("cc")) {
+            cc = getInternetAddresses(retrieveObjectAs(NativeArray.class, overrides, "cc"), request.charset);
+        }
+        if (overrides.containsKey("bcc")) {
+            bcc = getInternetAddresses(retrieveObjectAs(NativeArray.class, overrides, "bcc"), request.charset);
+        }
+        return request.withRecipients(to, cc, bcc);
+    }
+
+    /**
+     * 件名・本文のテンプレートを名前を付けて登録する. 同じ名前のテンプレートは置き換える.
+     * 登録したテンプレートは send 等で {template: name, vars: {...}} と指定して利用できる.
+     * @param name テンプレート名
+     * @param templateJson {subject, text}. ${name} 形式のプレースホルダを含められる
+     * @throws EcmaError 引数の不備、テンプレートの書式が不正な場合
+     */
+    @JSFunction
+    public void registerTemplate(String name, NativeObject templateJson) throws EcmaError {
+        if (null == name || name.isEmpty() || null == templateJson) {
+            String message = "Invalid argument for registerTemplate method.: null.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        String subject = retrieveObjectAs(String.class, templateJson, "subject");
+        String text = retrieveObjectAs(String.class, templateJson, "text");
+        // 書式を検証する
+        compileTemplate(subject, "subject");
+        compileTemplate(text, "text");
+        templateRegistry.register(name, subject, text);
+    }
+
+    /**
+     * キャッシュの統計情報を返す.
+     * @return キャッシュ毎のヒット数, ミス数, 保持件数
+     */
+    @JSFunction
+    public NativeObject getCacheStatistics() {
+        NativeObject result = new NativeObject();
+        result.put("session", result, toStatistics(sessionCache.getHitCount(), sessionCache.getMissCount(),
+                sessionCache.size()));
+        result.put("template", result, toStatistics(templateRegistry.getHitCount(),
+                templateRegistry.getMissCount(), templateRegistry.size()));
+        result.put("address", result, toStatistics(addressCache.getHitCount(), addressCache.getMissCount(),
+                addressCache.size()));
+        result.put("prepared", result, toStatistics(preparedMessages.getHitCount(),
+                preparedMessages.getMissCount(), preparedMessages.size()));
+        return result;
+    }
+
+    /**
+     * sendAsync で受け付けたメールの配送状況を返す.
+     * @param messageId sendAsync が返したメッセージID
+     * @return {messageId, state, from, replyCode, error, queuedAt, updatedAt}.
+     *         state は queued, sending, sent, failed のいずれか. 失敗した場合は replyCode にSMTPサーバの応答コードを設定する.
+     *         記録が無い場合 (status.capacity 件より前に受け付けた場合を含む) は null
+     */
+    @JSFunction
+    public NativeObject getStatus(String messageId) {
+        if (null == messageId) {
+            return null;
+        }
+        DeliveryStatusStore.Record record = deliveryStatus.get(messageId);
+        if (null == record) {
+            return null;
+        }
+        return toStatus(record);
+    }
+
+    /**
+     * sendAsync で受け付けたメールの配送状況を新しい順に返す.
+     * filter には state (queued, sending, sent, failed), from (送信元アドレス), limit (最大件数. 既定は 100) を指定できる.
+     * @param filter 条件の JSON. 条件を指定しない場合は null
+     * @return 配送状況の配列. 要素は getStatus と同じ
+     * @throws EcmaError 条件の不備
+     */
+    @JSFunction
+    public NativeArray listRecent(NativeObject filter) throws EcmaError {
+        DeliveryStatusStore.State state = null;
+        String from = null;
+        int limit = DEFAULT_LIST_LIMIT;
+        if (null != filter) {
+            String stateName = retrieveObjectAs(String.class, filter, "state");
+            if (null != stateName) {
+                try {
+                    state = DeliveryStatusStore.State.valueOf(stateName.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    String message = String.format(
+                            "Invalid state (%s) for listRecent method. Use queued, sending, sent or failed.",
+                            stateName);
+                    this.getLogger().info(message);
+                    throw ExtensionErrorConstructor.construct(message);
+                }
+            }
+            from = retrieveObjectAs(String.class, filter, "from");
+            Number limitValue = retrieveObjectAs(Number.class, filter, "limit");
+            if (null != limitValue) {
+                limit = (int) Math.max(0, Math.min(limitValue.doubleValue(), deliveryStatus.capacity()));
+            }
+        }
+        List<DeliveryStatusStore.Record> records = deliveryStatus.listRecent(state, from, limit);
+        Object[] results = new Object[records.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = toStatus(records.get(i));
+        }
+        return new NativeArray(results);
+    }
+
+    private static NativeObject toStatus(DeliveryStatusStore.Record record) {
+        NativeObject status = new NativeObject();
+        status.put("messageId", status, record.messageId);
+        status.put("state", status, record.state.label());
+        status.put("from", status, record.from);
+        status.put("replyCode", status, record.replyCode);
+        status.put("error", status, record.reply);
+        status.put("queuedAt", status, record.queuedAt);
+        status.put("updatedAt", status, record.updatedAt);
+        return status;
+    }
+
+    private static NativeObject toStatistics(long hits, long misses, int size) {
+        NativeObject statistics = new NativeObject();
+        statistics.put("hits", statistics, hits);
+        statistics.put("misses", statistics, misses);
+        statistics.put("size", statistics, size);
+        return statistics;
+    }
+
+    private void checkSmtpHost() throws EcmaError {
+        if (null == smtpHost || smtpHost.isEmpty()) {
+            String message = "smtp host is not specified in configuration.";
             this.getLogger().info(message);
             throw ExtensionErrorConstructor.construct(message);
         }
+    }
+
+    private MailRequest parseRequest(NativeObject reqJson) throws EcmaError {
+        long start = System.nanoTime();
+        MailRequest request = parseFields(reqJson);
+        start = metrics.record(Phase.EXTRACT, start);
+        validateRequests(request.toAddresses, request.ccAddresses, request.bccAddresses, request.replyToAddresses,
+                request.fromAddress, request.subject, request.mailBody);
+        metrics.record(Phase.VALIDATE, start);
+        return request;
+    }
 
+    private MailRequest parseFields(NativeObject reqJson) throws EcmaError {
         // Request(JSON)の解析
         String charset = retrieveObjectAs(String.class, reqJson, "charset");
         if (null == charset || charset.isEmpty()) {
@@ -141,69 +927,218 @@ public class Ext_MailSender extends AbstractExtensionScriptableObject { // CHECK
 
         String subject = retrieveObjectAs(String.class, reqJson, "subject");
         String mailBody = retrieveObjectAs(String.class, reqJson, "text");
+
+        // 登録済みテンプレートの指定. 件名・本文が明示されている場合はそちらを優先する
+        TemplateRegistry.Entry template = findTemplate(reqJson);
+        if (null != template) {
+            Map<String, String> vars = toStringMap(retrieveObjectAs(NativeObject.class, reqJson, "vars"));
+            if (null == subject) {
+                subject = template.subject.render(vars);
+            }
+            if (null == mailBody) {
+                mailBody = template.text.render(vars);
+            }
+        }
         String envelopeFrom = retrieveObjectAs(String.class, reqJson, "envelope-from");
 
         // カスタムヘッダへの対応
         NativeObject headers = retrieveObjectAs(NativeObject.class, reqJson, "headers");
+        Map<String, String> customHeaders = new LinkedHashMap<String, String>();
+        if (null != headers) {
+            for (Entry<Object, Object> entry : headers.entrySet()) {
+                if (null == entry.getKey() || null == entry.getValue()) {
+                    continue;
+                }
+                customHeaders.put(entry.getKey().toString(), entry.getValue().toString());
+            }
+        }
 
-        validateRequests(toAddresses, ccAddresses, bccAddresses, replyToAddresses, fromAddress, subject, mailBody);
+        NativeArray attachments = retrieveObjectAs(NativeArray.class, reqJson, "attachments");
+        List<MailAttachment> mailAttachments = getAttachments(attachments);
 
-        // ここからが JavaMailによる送信処理
-        Properties prop = new Properties();
-        prop.put(JAVAMAIL_SMTP_HOST_KEY, smtpHost);
-        prop.put(JAVAMAIL_SMTP_PORT_KEY, smtpPort);
+        return new MailRequest(charset, toAddresses, ccAddresses, bccAddresses, replyToAddresses, fromAddress,
+                subject, mailBody, envelopeFrom, customHeaders, mailAttachments);
+    }
+
+    private List<MailAttachment> getAttachments(NativeArray jsonAttachments) throws EcmaError {
+        List<MailAttachment> result = new ArrayList<MailAttachment>();
+        if (null == jsonAttachments) {
+            return result;
+        }
+        if (MAX_ATTACHMENTS < jsonAttachments.size()) {
+            String message = String.format("Number of attachments exceeds the limit(%d).", MAX_ATTACHMENTS);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        for (int i = 0; i < jsonAttachments.size(); i++) {
+            NativeObject jsonAttachment = castTo(NativeObject.class, jsonAttachments.get(i));
+            if (null == jsonAttachment) {
+                continue;
+            }
+            String fileName = castTo(String.class, jsonAttachment.get("filename", jsonAttachment));
+            String contentType = castTo(String.class, jsonAttachment.get("contentType", jsonAttachment));
+            String path = castTo(String.class, jsonAttachment.get("path", jsonAttachment));
+            Object stream = jsonAttachment.get("stream", jsonAttachment);
+            if (stream instanceof Wrapper) {
+                stream = ((Wrapper) stream).unwrap();
+            }
 
-        // envelope-fromを設定する場合
-        if (null != envelopeFrom && !envelopeFrom.isEmpty()) {
-            prop.put(JAVAMAIL_SMTP_FROM_KEY, envelopeFrom);
+            if (null == fileName || fileName.isEmpty()) {
+                String message = "'filename' field of attachment is not specified or empty.";
+                this.getLogger().info(message);
+                throw ExtensionErrorConstructor.construct(message);
+            }
+            if (stream instanceof InputStream) {
+                result.add(MailAttachment.fromStream((InputStream) stream, fileName, contentType));
+            } else if (null != path && !path.isEmpty()) {
+                result.add(MailAttachment.fromFile(resolveAttachmentPath(path), fileName, contentType));
+            } else {
+                String message = "Either 'path' or 'stream' field of attachment must be specified.";
+                this.getLogger().info(message);
+                throw ExtensionErrorConstructor.construct(message);
+            }
         }
+        return result;
+    }
 
-        Session session = Session.getInstance(prop);
+    private Path resolveAttachmentPath(String path) throws EcmaError {
+        if (null == attachmentBaseDir) {
+            String message = "attachment base directory is not specified in configuration.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        try {
+            // 基準ディレクトリの外 (シンボリックリンクの先を含む) のファイルは添付させない
+            Path base = attachmentBaseDir.toRealPath();
+            Path file = base.resolve(path).toRealPath();
+            if (file.startsWith(base) && Files.isRegularFile(file) && Files.isReadable(file)) {
+                return file;
+            }
+        } catch (IOException | InvalidPathException e) {
+            // 存在しないファイルと同じ扱いとする
+        }
+        String message = String.format("Attachment file '%s' is not found.", path);
+        this.getLogger().info(message);
+        throw ExtensionErrorConstructor.construct(message);
+    }
+
+    private void checkReusableAttachments(MailRequest request, String method) throws EcmaError {
+        if (request.hasOneShotAttachment()) {
+            String message = String.format("Attachments given as 'stream' cannot be used with %s method. "
+                    + "Use 'path' instead.", method);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+    }
+
+    private TemplateRegistry.Entry findTemplate(NativeObject reqJson) throws EcmaError {
+        String name = retrieveObjectAs(String.class, reqJson, "template");
+        if (null == name) {
+            return null;
+        }
+        TemplateRegistry.Entry template = templateRegistry.get(name);
+        if (null == template) {
+            String message = String.format("Template '%s' is not registered.", name);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return template;
+    }
+
+    private MailTemplate compileTemplate(String source, String key) throws EcmaError {
+        if (null == source || source.isEmpty()) {
+            String message = String.format("Empty %s is not permitted.", key);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        try {
+            return MailTemplate.compile(source);
+        } catch (IllegalArgumentException e) {
+            String message = String.format("Invalid template in '%s'. Cause: [%s]", key, e.getMessage());
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+    }
+
+    private static Map<String, String> toStringMap(NativeObject source) {
+        Map<String, String> result = new HashMap<String, String>();
+        if (null == source) {
+            return result;
+        }
+        for (Entry<Object, Object> entry : source.entrySet()) {
+            if (null == entry.getKey() || null == entry.getValue()) {
+                continue;
+            }
+            result.put(entry.getKey().toString(), toText(entry.getValue()));
+        }
+        return result;
+    }
+
+    private static String toText(Object value) {
+        // JavaScriptの数値は Doubleとして渡されるため、整数値は小数点なしで表す
+        if (value instanceof Double) {
+            double number = (Double) value;
+            if (number == Math.rint(number) && !Double.isInfinite(number) && Math.abs(number) < MAX_SAFE_INTEGER) {
+                return Long.toString((long) number);
+            }
+        }
+        return value.toString();
+    }
+
+    private SMTPMessage buildMessage(MailRequest request) throws EcmaError {
+        long start = System.nanoTime();
+        // ここからが JavaMailによる送信処理
+        Session session = sessionCache.getSession(smtpHost, smtpPort);
         // session.setDebug(true);
 
         // 送信メッセージを生成
-        MimeMessage objMsg = new MimeMessage(session);
+        // プールした接続は別の Sessionに属するため、envelope-fromはメッセージ側に持たせる
+        SMTPMessage objMsg = new SMTPMessage(session);
         try {
+            if (null != request.envelopeFrom && !request.envelopeFrom.isEmpty()) {
+                objMsg.setEnvelopeFrom(request.envelopeFrom);
+            }
             // 送信先（TOのほか、CCやBCCも設定可能）
             // TO
-            if (toAddresses != null && 0 < toAddresses.length) {
-                objMsg.setRecipients(Message.RecipientType.TO, toAddresses);
+            if (request.toAddresses != null && 0 < request.toAddresses.length) {
+                objMsg.setRecipients(Message.RecipientType.TO, request.toAddresses);
             }
             // CC
-            if (ccAddresses != null && 0 < ccAddresses.length) {
-                objMsg.setRecipients(Message.RecipientType.CC, ccAddresses);
+            if (request.ccAddresses != null && 0 < request.ccAddresses.length) {
+                objMsg.setRecipients(Message.RecipientType.CC, request.ccAddresses);
             }
             // BCC
-            if (bccAddresses != null && 0 < bccAddresses.length) {
-                objMsg.setRecipients(Message.RecipientType.BCC, bccAddresses);
+            if (request.bccAddresses != null && 0 < request.bccAddresses.length) {
+                objMsg.setRecipients(Message.RecipientType.BCC, request.bccAddresses);
             }
             // Reply-To
-            if (replyToAddresses != null && 0 < replyToAddresses.length) {
-                objMsg.setReplyTo(replyToAddresses);
+            if (request.replyToAddresses != null && 0 < request.replyToAddresses.length) {
+                objMsg.setReplyTo(request.replyToAddresses);
             }
 
             // Fromヘッダ
-            objMsg.setFrom(fromAddress);
+            objMsg.setFrom(request.fromAddress);
             // 件名
-            objMsg.setSubject(subject, charset);
+            objMsg.setSubject(request.subject, request.charset);
 
             // 本文
-            objMsg.setText(mailBody, charset);
+            if (request.attachments.isEmpty()) {
+                objMsg.setText(request.mailBody, request.charset);
+            } else {
+                objMsg.setContent(buildMultipart(request));
+            }
             objMsg.setSentDate(new Date());
 
             // カスタムヘッダへの対応
-            if (null != headers) {
-                for (Entry<Object, Object> entry : headers.entrySet()) {
-                    if (null == entry.getKey() || null == entry.getValue()) {
-                        continue;
-                    }
-                    objMsg.setHeader(entry.getKey().toString(), entry.getValue().toString());
-                }
+            for (Entry<String, String> entry : request.headers.entrySet()) {
+                objMsg.setHeader(entry.getKey(), entry.getValue());
             }
 
             // Updates the appropriate header fields of this message
             // to be consistent with the message's contents.
+            start = metrics.record(Phase.BUILD, start);
             objMsg.saveChanges();
+            metrics.record(Phase.SAVE_CHANGES, start);
 
         } catch (MessagingException e) {
             // ここまでは、SMTPサーバへの送信前なので、クリティカルな状態にはないと考えている。このためログレベルは INFO.
@@ -212,24 +1147,383 @@ public class Ext_MailSender extends AbstractExtensionScriptableObject { // CHECK
             String errorMessage = String.format("%s Cause: [%s]", message, e.getMessage());
             throw ExtensionErrorConstructor.construct(errorMessage);
         }
+        return objMsg;
+    }
+
+    private MimeMultipart buildMultipart(MailRequest request) throws MessagingException {
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart textPart = new MimeBodyPart();
+        textPart.setText(request.mailBody, request.charset);
+        multipart.addBodyPart(textPart);
+        for (MailAttachment attachment : request.attachments) {
+            MimeBodyPart part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(attachment.getDataSource()));
+            part.setDisposition(Part.ATTACHMENT);
+            try {
+                part.setFileName(MimeUtility.encodeText(attachment.getFileName(), request.charset, null));
+            } catch (UnsupportedEncodingException e) {
+                throw new MessagingException("Unsupported encoding is specified for attachment file name.", e);
+            }
+            // 符号化方式を決めるために JavaMailが内容を読み出さないよう、予め base64と指定する
+            part.setHeader(CONTENT_TRANSFER_ENCODING, ENCODING_BASE64);
+            multipart.addBodyPart(part);
+        }
+        return multipart;
+    }
 
+    private Runnable newDelivery(final String messageId, final SMTPMessage objMsg,
+            final DeliveryStatusStore.Record queued) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                DeliveryStatusStore.Record sending = deliveryStatus.update(queued, DeliveryStatusStore.State.SENDING,
+                        0, null);
+                try {
+                    transmit(objMsg);
+                    deliveryStatus.update(sending, DeliveryStatusStore.State.SENT, 0, null);
+                } catch (MessagingException e) {
+                    deliveryStatus.update(sending, DeliveryStatusStore.State.FAILED, RetryPolicy.findReturnCode(e),
+                            describeSendFailure(e));
+                } finally {
+                    if (null != mailSpool) {
+                        mailSpool.acknowledge(messageId);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * 起動時にスプールから回収したメッセージの再送を、送信キューのワーカースレッドで行う.
+     * スクリプトのスレッドで再送しないよう、コンストラクタからは処理を積むだけとする.
+     */
+    private void scheduleRecovery() {
         try {
-            // メール送信
-            // この APIでの失敗は、SMTPサーバとの接続後の問題であるため、warnレベルでログを出しておく。
-            Transport.send(objMsg);
-        } catch (SendFailedException e) {
-            String message = "Message could not be sent to some recipients.";
-            this.getLogger().warn(message, e);
-            String errorMessage = String.format("%s Cause: [%s]", message, e.getMessage());
-            throw ExtensionErrorConstructor.construct(errorMessage);
+            outboundQueue.submitInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    resubmitRecoveredMessages();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 回収したメッセージはスプールに残し、次にインスタンスを生成した際に改めて積む
+            String message = "Outbound queue is full. Recovery of spooled messages is postponed.";
+            this.getLogger().warn(message);
+        }
+    }
+
+    private void resubmitRecoveredMessages() {
+        for (MailSpool.Entry entry : mailSpool.drainRecovered()) {
+            SMTPMessage objMsg;
+            try {
+                // 回収したメッセージを一度に読み込まないよう、積む直前に読み出す
+                MailSpool.Content content = mailSpool.read(entry);
+                if (null == content) {
+                    continue;
+                }
+                // ヘッダに現れない Bccの宛先にも届くよう、書き込んだエンベロープの宛先に送信する
+                String envelopeFrom = entry.envelopeFrom;
+                if (null == envelopeFrom) {
+                    envelopeFrom = entry.from;
+                }
+                Session session = sessionCache.getSession(smtpHost, smtpPort);
+                objMsg = RenderedMessage.of(session, content.message, toAddresses(content.recipients), envelopeFrom);
+            } catch (IOException | MessagingException e) {
+                String message = String.format("Discarded unreadable spooled message (%s).", entry.messageId);
+                this.getLogger().warn(message, e);
+                mailSpool.acknowledge(entry.messageId);
+                continue;
+            }
+            Runnable delivery = newDelivery(entry.messageId, objMsg,
+                    deliveryStatus.queued(entry.messageId, entry.from));
+            try {
+                outboundQueue.submit(delivery);
+            } catch (RejectedExecutionException e) {
+                if (outboundQueue.isShutdown()) {
+                    // 残りのメッセージはスプールに残し、次回起動時に再送する
+                    String message = "Outbound queue is stopped. Spooled messages are kept.";
+                    this.getLogger().warn(message);
+                    return;
+                }
+                // キューが満杯の場合は破棄せず、このワーカースレッドで送信してから次を積む
+                delivery.run();
+            }
+        }
+    }
+
+    /**
+     * 送信元のドメインに DKIMの署名の設定がある場合、メッセージを書き出して署名する.
+     * @param objMsg メッセージ
+     * @param request リクエスト
+     * @param bodyHashes 本文ハッシュの使い回し先. 使い回さない場合は null
+     * @return 署名したメッセージ. 署名しない場合は objMsg
+     * @throws EcmaError 署名に失敗した場合
+     */
+    private SMTPMessage signDkim(SMTPMessage objMsg, MailRequest request, DkimSigner.BodyHashes bodyHashes)
+            throws EcmaError {
+        String from = request.fromAddress.getAddress();
+        if (!dkimSigner.canSign(from)) {
+            return objMsg;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            objMsg.writeTo(out, RENDER_IGNORED_HEADERS);
+            byte[] content = out.toByteArray();
+            byte[] signature = dkimSigner.sign(content, from, bodyHashes);
+            String envelopeFrom = request.envelopeFrom;
+            if (null == envelopeFrom || envelopeFrom.isEmpty()) {
+                envelopeFrom = from;
+            }
+            Session session = sessionCache.getSession(smtpHost, smtpPort);
+            return RenderedMessage.withHeader(session, signature, content, objMsg.getAllRecipients(), envelopeFrom);
+        } catch (IOException | MessagingException e) {
+            throw dkimSigningFailure(e);
+        }
+    }
 
+    /**
+     * 送信元のドメインに DKIMの署名の設定がある場合、書き出したメッセージに署名する.
+     * @param content 書き出したメッセージ. Bccヘッダを含まないこと
+     * @param request リクエスト
+     * @return 先頭に署名ヘッダを付けたメッセージ. 署名しない場合は content
+     * @throws EcmaError 署名に失敗した場合
+     */
+    private byte[] signDkim(byte[] content, MailRequest request) throws EcmaError {
+        String from = request.fromAddress.getAddress();
+        if (!dkimSigner.canSign(from)) {
+            return content;
+        }
+        try {
+            byte[] signature = dkimSigner.sign(content, from, null);
+            byte[] signed = Arrays.copyOf(signature, signature.length + content.length);
+            System.arraycopy(content, 0, signed, signature.length, content.length);
+            return signed;
         } catch (MessagingException e) {
-            String message = "Failed to send message.";
+            throw dkimSigningFailure(e);
+        }
+    }
+
+    private EcmaError dkimSigningFailure(Exception e) {
+        // 秘密鍵の設定の問題であるため、warnレベルでログを出しておく
+        String message = "Failed to sign message with DKIM.";
+        this.getLogger().warn(message, e);
+        String errorMessage = String.format("%s Cause: [%s]", message, e.getMessage());
+        return ExtensionErrorConstructor.construct(errorMessage);
+    }
+
+    private void transmit(SMTPMessage objMsg) throws MessagingException {
+        transmit(objMsg, true);
+    }
+
+    private void transmit(SMTPMessage objMsg, boolean retryable) throws MessagingException {
+        // 接続はプールから借り出し、一時的な失敗は再試行する。
+        dispatcher.send(getRelayGroup(), objMsg, retryable);
+    }
+
+    /**
+     * @param request リクエスト
+     * @param objMsg 送信するメッセージ
+     * @return 送信に失敗した場合に再送できる場合 true. ストリームの添付ファイルは 1度しか読み出せないため再送できない
+     */
+    private static boolean isRetryable(MailRequest request, SMTPMessage objMsg) {
+        // DKIM署名したメッセージは書き出し済みのため再送できる
+        return !request.hasOneShotAttachment() || objMsg instanceof RenderedMessage;
+    }
+
+    private RelayGroup getRelayGroup() {
+        if (null != relayGroup) {
+            return relayGroup;
+        }
+        return RelayGroup.single(smtpHost, smtpPort, config.getProperties());
+    }
+
+    private static String[] toAddressStrings(Address[] addresses) {
+        String[] strings = new String[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i] instanceof InternetAddress) {
+                strings[i] = ((InternetAddress) addresses[i]).getAddress();
+            } else {
+                strings[i] = addresses[i].toString();
+            }
+        }
+        return strings;
+    }
+
+    private static Address[] toAddresses(String[] strings) throws AddressException {
+        Address[] addresses = new Address[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            addresses[i] = new InternetAddress(strings[i]);
+        }
+        return addresses;
+    }
+
+    /**
+     * 一括送信のリクエストを検証し、エンベロープの宛先を to, cc, bcc の順に並べて返す.
+     * @param request 解析済みのリクエスト
+     * @return 全ての宛先
+     * @throws EcmaError リクエスト内容の不備
+     */
+    private Address[] getBulkRecipients(MailRequest request) throws EcmaError {
+        Address[] recipients = toEnvelopeRecipients(request);
+        // bccはチャンクに分けて送信するため、send と同じ件数の上限は to, cc のみに適用する.
+        // bccのみが指定されている場合は 1件として検証する
+        InternetAddress[] countedBcc = null;
+        if (null != request.bccAddresses && recipients.length == request.bccAddresses.length) {
+            countedBcc = new InternetAddress[1];
+        }
+        validateRequests(request.toAddresses, request.ccAddresses, countedBcc, request.replyToAddresses,
+                request.fromAddress, request.subject, request.mailBody);
+        if (bulkSender.getMaxRecipients() < recipients.length) {
+            String message = String.format("Number of recipients exceeds the limit(%d).",
+                    bulkSender.getMaxRecipients());
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return recipients;
+    }
+
+    /**
+     * エンベロープの宛先を to, cc, bcc の順に並べて返す.
+     * @param request 解析済みのリクエスト
+     * @return 全ての宛先
+     */
+    private static Address[] toEnvelopeRecipients(MailRequest request) {
+        List<Address> recipients = new ArrayList<Address>();
+        if (null != request.toAddresses) {
+            recipients.addAll(Arrays.asList(request.toAddresses));
+        }
+        if (null != request.ccAddresses) {
+            recipients.addAll(Arrays.asList(request.ccAddresses));
+        }
+        if (null != request.bccAddresses) {
+            recipients.addAll(Arrays.asList(request.bccAddresses));
+        }
+        return recipients.toArray(new Address[recipients.size()]);
+    }
+
+    /**
+     * リクエストの冪等キーを取得する. キーは送信元アドレス毎に区別する.
+     * @param reqJson メール送信内容の JSON
+     * @param request 解析済みのリクエスト
+     * @return 送信元アドレスを含めた冪等キー. 指定されていない場合、索引が利用できない場合は null
+     * @throws EcmaError キーが長すぎる場合
+     */
+    private String getIdempotencyKey(NativeObject reqJson, MailRequest request) throws EcmaError {
+        String key = retrieveObjectAs(String.class, reqJson, IDEMPOTENCY_KEY);
+        if (null == idempotencyIndex || null == key || key.isEmpty()) {
+            return null;
+        }
+        if (MAX_IDEMPOTENCY_KEY_LENGTH < key.length()) {
+            String message = String.format("%s exceeds the limit of %d characters.", IDEMPOTENCY_KEY,
+                    MAX_IDEMPOTENCY_KEY_LENGTH);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return request.fromAddress.getAddress().toLowerCase(Locale.ROOT) + " " + key;
+    }
+
+    /**
+     * 冪等キーの処理を開始する.
+     * @param idempotencyKey 冪等キー. null の場合は何もしない
+     * @return 送信済みの場合はその記録. 送信してよい場合は null
+     * @throws EcmaError 同じキーのリクエストを処理中の場合
+     */
+    private IdempotencyIndex.Entry beginIdempotent(String idempotencyKey) throws EcmaError {
+        if (null == idempotencyKey) {
+            return null;
+        }
+        IdempotencyIndex.Entry previous = idempotencyIndex.begin(idempotencyKey);
+        if (null == previous) {
+            return null;
+        }
+        if (previous.isPending()) {
+            String message = String.format("A request with the same %s is in progress.", IDEMPOTENCY_KEY);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        this.getLogger().info(String.format("Request with the same %s has already been sent. Skipped.",
+                IDEMPOTENCY_KEY));
+        return previous;
+    }
+
+    /**
+     * 冪等キーの処理を終える. 送信した場合は結果を記録し、しなかった場合は同じキーで再び送信できるようにする.
+     * @param idempotencyKey 冪等キー. null の場合は何もしない
+     * @param sent 送信した(送信キューに積んだ)場合 true
+     * @param result 同じキーで再送信された場合に返す値
+     */
+    private void finishIdempotent(String idempotencyKey, boolean sent, String result) {
+        if (null == idempotencyKey) {
+            return;
+        }
+        if (!sent) {
+            idempotencyIndex.abort(idempotencyKey);
+            return;
+        }
+        try {
+            idempotencyIndex.complete(idempotencyKey, result);
+        } catch (IOException e) {
+            // プロセス内では記録済み. 次の記録時にファイルの書き直しを試みる
+            this.getLogger().warn(String.format(
+                    "Failed to persist idempotency key (%s). It is kept in memory only.", idempotencyKey), e);
+        }
+    }
+
+    /**
+     * 送信元アドレス毎、プロセス全体、およびホスト全体の送信数の上限を確認する.
+     * 上限を超えている場合は設定された時間まで待ち、それでも超えている場合はエラーとする.
+     * ホスト全体の上限で送信しない場合は、取得した送信元アドレス毎とプロセス全体の許可を返却する.
+     * @param from 送信元アドレス
+     * @throws EcmaError 送信数の上限を超えている場合
+     */
+    private void acquireSendPermit(InternetAddress from) throws EcmaError {
+        if (!rateLimiter.acquire(from.getAddress())) {
+            metrics.recordRateLimited();
+            String message = String.format("Sending rate limit exceeded for %s. Try again later.", from.getAddress());
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        if (null == sharedQuota) {
+            return;
+        }
+        boolean acquired;
+        try {
+            acquired = sharedQuota.acquire();
+        } catch (IOException e) {
+            rateLimiter.release(from.getAddress());
+            // 上限を確認できないまま送信すると上限が無効になるため、送信しない
+            String message = "Failed to update host-wide sending quota. Try again later.";
             this.getLogger().warn(message, e);
-            String errorMessage = String.format("%s Cause: [%s]", message, e.getMessage());
-            throw ExtensionErrorConstructor.construct(errorMessage);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        if (!acquired) {
+            rateLimiter.release(from.getAddress());
+            metrics.recordRateLimited();
+            String message = "Host-wide sending quota exceeded. Try again later.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
         }
+    }
+
+    private String describeSendFailure(MessagingException e) {
+        String message;
+        if (e instanceof SendFailedException) {
+            message = "Message could not be sent to some recipients.";
+        } else {
+            message = "Failed to send message.";
+        }
+        this.getLogger().warn(message, e);
+        return String.format("%s Cause: [%s]", message, e.getMessage());
+    }
 
+    private static NativeObject toResult(int index, String error) {
+        NativeObject result = new NativeObject();
+        result.put("index", result, index);
+        result.put("sent", result, null == error);
+        if (null != error) {
+            result.put("error", result, error);
+        }
+        return result;
     }
 
     private void validateRequests(InternetAddress[] toAddresses,
@@ -321,11 +1615,7 @@ public class Ext_MailSender extends AbstractExtensionScriptableObject { // CHECK
             throw ExtensionErrorConstructor.construct(message);
         }
         try {
-            InternetAddress iAddress = new InternetAddress(address, true);
-            if (null != name && !name.isEmpty()) {
-                iAddress.setPersonal(name, charset);
-            }
-            return iAddress;
+            return addressCache.resolve(address, name, charset);
         } catch (UnsupportedEncodingException e) {
             String message = "Unsupported encoding is specified for mail display name.";
             this.getLogger().info(message);
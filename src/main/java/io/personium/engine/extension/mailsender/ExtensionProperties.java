@@ -0,0 +1,121 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.Properties;
+
+/**
+ * Ext_MailSender.properties の設定値読み出しユーティリティ.
+ */
+final class ExtensionProperties {
+
+    /** 設定キーの接頭辞. */
+    static final String PREFIX = "io.personium.engine.extension.MailSender.";
+
+    private ExtensionProperties() {
+    }
+
+    /**
+     * 文字列の設定値を取得する.
+     * @param properties 設定
+     * @param name 接頭辞を除いた設定キー
+     * @param defaultValue 未設定時の値
+     * @return 設定値
+     */
+    static String getString(Properties properties, String name, String defaultValue) {
+        if (null == properties) {
+            return defaultValue;
+        }
+        String value = properties.getProperty(PREFIX + name);
+        if (null == value || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * 整数の設定値を取得する. 数値として解釈できない場合は既定値を返す.
+     * @param properties 設定
+     * @param name 接頭辞を除いた設定キー
+     * @param defaultValue 未設定時の値
+     * @return 設定値
+     */
+    static int getInt(Properties properties, String name, int defaultValue) {
+        String value = getString(properties, name, null);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * long値の設定値を取得する. 数値として解釈できない場合は既定値を返す.
+     * @param properties 設定
+     * @param name 接頭辞を除いた設定キー
+     * @param defaultValue 未設定時の値
+     * @return 設定値
+     */
+    static long getLong(Properties properties, String name, long defaultValue) {
+        String value = getString(properties, name, null);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 実数の設定値を取得する. 数値として解釈できない場合は既定値を返す.
+     * @param properties 設定
+     * @param name 接頭辞を除いた設定キー
+     * @param defaultValue 未設定時の値
+     * @return 設定値
+     */
+    static double getDouble(Properties properties, String name, double defaultValue) {
+        String value = getString(properties, name, null);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 真偽値の設定値を取得する.
+     * @param properties 設定
+     * @param name 接頭辞を除いた設定キー
+     * @param defaultValue 未設定時の値
+     * @return 設定値
+     */
+    static boolean getBoolean(Properties properties, String name, boolean defaultValue) {
+        String value = getString(properties, name, null);
+        if (null == value) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 送信済みの冪等キーの索引.
+ * 送信に成功したリクエストの冪等キーと結果 (メッセージID) を一定時間保持し、同じキーでの再送信を抑止する.
+ * 保持する件数には上限があり、期限切れまたは上限を超えたものから古い順に破棄する.
+ * ファイルを指定した場合は記録を追記し、再起動後も保持期間内のキーを引き継ぐ.
+ * 追記は送信したスレッドで行う. 割り込みでファイルが閉じられた場合は、保持中のキーを書き直して開き直す.
+ */
+class IdempotencyIndex {
+
+    private static final String IDEMPOTENCY_TTL_MILLIS = "idempotency.ttlMillis";
+    private static final String IDEMPOTENCY_MAX_KEYS = "idempotency.maxKeys";
+    private static final String IDEMPOTENCY_FILE = "idempotency.file";
+
+    private static final long DEFAULT_TTL_MILLIS = 3600000L;
+    private static final int DEFAULT_MAX_KEYS = 100000;
+    private static final String COMPACT_FILE_SUFFIX = ".compact";
+
+    private static IdempotencyIndex sharedInstance = null;
+
+    private final long ttlMillis;
+    private final int maxKeys;
+    private final File file;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /** 記録済みのエントリ. 記録した順に並ぶ. */
+    private final Queue<Entry> completed = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private FileChannel channel;
+    private int appendedSinceCompaction = 0;
+    private boolean closed = false;
+
+    /**
+     * コンストラクタ. ファイルを指定した場合は保持期間内の記録を読み込む.
+     * @param ttlMillis キーを保持する時間(ミリ秒)
+     * @param maxKeys 保持するキーの最大数
+     * @param file 記録を追記するファイル. 永続化しない場合は null
+     * @throws IOException ファイルの読み書きに失敗した場合
+     */
+    IdempotencyIndex(long ttlMillis, int maxKeys, File file) throws IOException {
+        this.ttlMillis = ttlMillis;
+        this.maxKeys = Math.max(1, maxKeys);
+        this.file = file;
+        if (null != file) {
+            load();
+            rewrite();
+        }
+    }
+
+    /**
+     * プロセス内で共有される索引を取得する. 初回呼び出し時の設定で生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有の索引
+     * @throws IOException ファイルの読み書きに失敗した場合
+     */
+    static synchronized IdempotencyIndex getInstance(Properties properties) throws IOException {
+        if (null == sharedInstance) {
+            String file = ExtensionProperties.getString(properties, IDEMPOTENCY_FILE, null);
+            sharedInstance = new IdempotencyIndex(
+                    ExtensionProperties.getLong(properties, IDEMPOTENCY_TTL_MILLIS, DEFAULT_TTL_MILLIS),
+                    ExtensionProperties.getInt(properties, IDEMPOTENCY_MAX_KEYS, DEFAULT_MAX_KEYS),
+                    toFile(file));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * キーの処理を開始する. 送信済みでも処理中でもなければ処理中として登録する.
+     * 処理中として登録された場合、呼び出し側は必ず {@link #complete} または {@link #abort} を呼ぶこと.
+     * @param key 冪等キー
+     * @return 登録できた場合 null. 送信済み、または処理中の場合は既存のエントリ
+     */
+    Entry begin(String key) {
+        Entry pending = new Entry(key);
+        while (true) {
+            Entry current = entries.putIfAbsent(key, pending);
+            if (null == current) {
+                return null;
+            }
+            if (!current.isExpired(System.currentTimeMillis(), ttlMillis)) {
+                return current;
+            }
+            if (entries.replace(key, current, pending)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 送信の成功を記録する.
+     * @param key 冪等キー
+     * @param result 送信結果. 同じキーで再送信された場合に返す値
+     * @throws IOException ファイルへの記録に失敗した場合. プロセス内では記録される
+     */
+    void complete(String key, String result) throws IOException {
+        Entry entry = new Entry(key, result, System.currentTimeMillis());
+        entries.put(key, entry);
+        completed.add(entry);
+        completedCount.incrementAndGet();
+        evict(entry.recordedAt);
+        if (null != file) {
+            append(entry);
+        }
+    }
+
+    /**
+     * 送信の失敗などで処理を中止する. 同じキーで再び送信できるようになる.
+     * @param key 冪等キー
+     */
+    void abort(String key) {
+        Entry current = entries.get(key);
+        if (null != current && current.isPending()) {
+            entries.remove(key, current);
+        }
+    }
+
+    /**
+     * @return 保持しているキーの数 (処理中のものを含む)
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * ファイルを閉じる.
+     * @throws IOException ファイルを閉じるのに失敗した場合
+     */
+    synchronized void close() throws IOException {
+        closed = true;
+        if (null != channel) {
+            channel.close();
+        }
+    }
+
+    private void evict(long now) {
+        while (true) {
+            Entry oldest = completed.peek();
+            if (null == oldest || (maxKeys >= completedCount.get() && !oldest.isExpired(now, ttlMillis))) {
+                return;
+            }
+            if (completed.remove(oldest)) {
+                completedCount.decrementAndGet();
+                entries.remove(oldest.key, oldest);
+            }
+        }
+    }
+
+    private synchronized void append(Entry entry) throws IOException {
+        if (closed) {
+            throw new IOException("Idempotency file is closed.");
+        }
+        // FileChannelは割り込まれたスレッドが書き込むと閉じられるため、書き込み中は呼び出し元の割り込み状態を退避する
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (channel.isOpen()) {
+                try {
+                    write(channel, entry);
+                    appendedSinceCompaction++;
+                    if (2 * maxKeys >= appendedSinceCompaction) {
+                        return;
+                    }
+                    // 破棄済みの記録が溜まったら保持中のキーだけを書き直す
+                } catch (ClosedChannelException e) {
+                    // 書き込み途中で閉じられた場合は途切れた記録ごと書き直す
+                    if (Thread.interrupted()) {
+                        interrupted = true;
+                    }
+                }
+                channel.close();
+            }
+            // 以前の書き込みに失敗して閉じられている場合も、保持中のキー (entry を含む) を書き直して開き直す
+            rewrite();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())));
+        try {
+            while (true) {
+                Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readLong());
+                if (!entry.isExpired(now, ttlMillis)) {
+                    entries.put(entry.key, entry);
+                    completed.add(entry);
+                    completedCount.incrementAndGet();
+                }
+            }
+        } catch (EOFException e) {
+            // 終端、または書き込み途中で途切れた記録
+        } finally {
+            in.close();
+        }
+        evict(now);
+    }
+
+    private void rewrite() throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (null != directory && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create idempotency directory: " + directory);
+        }
+        File compactFile = new File(file.getPath() + COMPACT_FILE_SUFFIX);
+        FileChannel compact = FileChannel.open(compactFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (Entry entry : completed) {
+                write(compact, entry);
+            }
+            compact.force(true);
+        } finally {
+            compact.close();
+        }
+        Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        appendedSinceCompaction = 0;
+    }
+
+    private static void write(FileChannel target, Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(encode(entry));
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(entry.key);
+        out.writeUTF(entry.result);
+        out.writeLong(entry.recordedAt);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static File toFile(String path) {
+        if (null == path) {
+            return null;
+        }
+        return new File(path);
+    }
+
+    /**
+     * 冪等キーの状態.
+     */
+    static final class Entry {
+        private final String key;
+        private final String result;
+        private final long recordedAt;
+
+        /**
+         * 処理中のエントリ.
+         */
+        private Entry(String key) {
+            this(key, null, 0L);
+        }
+
+        private Entry(String key, String result, long recordedAt) {
+            this.key = key;
+            this.result = result;
+            this.recordedAt = recordedAt;
+        }
+
+        /**
+         * @return 処理中の場合 true
+         */
+        boolean isPending() {
+            return null == result;
+        }
+
+        /**
+         * @return 送信結果. 処理中の場合は null
+         */
+        String getResult() {
+            return result;
+        }
+
+        private boolean isExpired(long now, long ttl) {
+            return !isPending() && recordedAt + ttl <= now;
+        }
+    }
+}
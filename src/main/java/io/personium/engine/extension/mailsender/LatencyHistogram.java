@@ -0,0 +1,125 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所要時間のヒストグラム.
+ * マイクロ秒単位の値を 2の冪の区間で数える. 記録はロックを取らず、区間の上限値で近似したパーセンタイルを返す.
+ */
+class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+    private static final double PERCENT = 100d;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * コンストラクタ.
+     */
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 所要時間を記録する.
+     * @param nanos 所要時間(ナノ秒)
+     */
+    void record(long nanos) {
+        long micros = Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos));
+        // 区間 i は [2^(i-1), 2^i) マイクロ秒. 0 は区間 0
+        int index = Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(micros));
+        buckets[index].increment();
+        count.increment();
+        totalMicros.add(micros);
+        long current = maxMicros.get();
+        while (current < micros && !maxMicros.compareAndSet(current, micros)) {
+            current = maxMicros.get();
+        }
+    }
+
+    /**
+     * @return 記録した件数
+     */
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return 平均(マイクロ秒)
+     */
+    long getMeanMicros() {
+        long n = count.sum();
+        if (0 == n) {
+            return 0L;
+        }
+        return totalMicros.sum() / n;
+    }
+
+    /**
+     * @return 最大(マイクロ秒)
+     */
+    long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * パーセンタイルを求める. 値は該当する区間の上限で、実際の値以上となる.
+     * @param percentile パーセンタイル (0 - 100)
+     * @return パーセンタイル(マイクロ秒)
+     */
+    long getPercentileMicros(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            n += counts[i];
+        }
+        if (0 == n) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(n * percentile / PERCENT));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (rank <= seen) {
+                return Math.min((1L << i) - 1L, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * 記録を消去する.
+     */
+    void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        totalMicros.reset();
+        maxMicros.set(0L);
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 件数上限付きの LRUキャッシュ. ヒット数/ミス数を計数する.
+ * 同時に参照するスレッドが多い場合は、キーのハッシュで区画に分け、区画毎に排他と LRUの追い出しを行える.
+ * 区画に分けた場合の追い出しは区画内での LRUとなる.
+ * @param <K> キーの型
+ * @param <V> 値の型
+ */
+class LruCache<K, V> {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+    /** 区画の最小の件数. 区画が小さすぎて追い出しが偏らないようにする. */
+    private static final int MIN_SEGMENT_SIZE = 64;
+
+    private final List<Map<K, V>> segments;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * コンストラクタ. 区画に分けず、全体で LRUの追い出しを行う.
+     * @param maxSize 保持する最大件数
+     */
+    LruCache(int maxSize) {
+        this(maxSize, 1);
+    }
+
+    /**
+     * コンストラクタ.
+     * @param maxSize 保持する最大件数
+     * @param concurrency 区画の最大数. 各区画が {@value #MIN_SEGMENT_SIZE}件以上を保持できる数までに抑える
+     */
+    LruCache(int maxSize, int concurrency) {
+        int size = Math.max(1, maxSize);
+        int count = Math.max(1, Math.min(concurrency, size / MIN_SEGMENT_SIZE));
+        this.segments = new ArrayList<Map<K, V>>(count);
+        for (int i = 0; i < count; i++) {
+            // 余りは先頭の区画から 1件ずつ割り当て、合計が maxSizeになるようにする
+            int segmentSize = size / count;
+            if (i < size % count) {
+                segmentSize++;
+            }
+            segments.add(newSegment(segmentSize));
+        }
+    }
+
+    private static <K, V> Map<K, V> newSegment(final int maxSize) {
+        return new LinkedHashMap<K, V>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return maxSize < size();
+            }
+        };
+    }
+
+    private Map<K, V> segmentFor(K key) {
+        if (1 == segments.size()) {
+            return segments.get(0);
+        }
+        int hash = key.hashCode();
+        // 下位ビットの偏りを上位ビットで崩す
+        return segments.get(Math.floorMod(hash ^ (hash >>> 16), segments.size()));
+    }
+
+    /**
+     * キャッシュから値を取得する.
+     * @param key キー
+     * @return 値. 存在しない場合は null
+     */
+    V get(K key) {
+        Map<K, V> entries = segmentFor(key);
+        V value;
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+        if (null == value) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * キャッシュに値を格納する. 既に値が存在する場合は既存の値を返す.
+     * @param key キー
+     * @param value 値
+     * @return キャッシュに保持されている値
+     */
+    V putIfAbsent(K key, V value) {
+        Map<K, V> entries = segmentFor(key);
+        synchronized (entries) {
+            V current = entries.get(key);
+            if (null != current) {
+                return current;
+            }
+            entries.put(key, value);
+            return value;
+        }
+    }
+
+    /**
+     * キャッシュに値を格納する.
+     * @param key キー
+     * @param value 値
+     */
+    void put(K key, V value) {
+        Map<K, V> entries = segmentFor(key);
+        synchronized (entries) {
+            entries.put(key, value);
+        }
+    }
+
+    /**
+     * キャッシュから値を削除する.
+     * @param key キー
+     * @return 削除した値. 存在しない場合は null
+     */
+    V remove(K key) {
+        Map<K, V> entries = segmentFor(key);
+        synchronized (entries) {
+            return entries.remove(key);
+        }
+    }
+
+    /**
+     * 全ての値を削除する.
+     */
+    void clear() {
+        for (Map<K, V> entries : segments) {
+            synchronized (entries) {
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * @return 保持している件数
+     */
+    int size() {
+        int size = 0;
+        for (Map<K, V> entries : segments) {
+            synchronized (entries) {
+                size += entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return ヒット数
+     */
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return ミス数
+     */
+    long getMissCount() {
+        return missCount.get();
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.activation.DataSource;
+import javax.activation.FileTypeMap;
+
+/**
+ * 添付ファイル.
+ * 内容はメモリに読み込まず、SMTPへの書き出し時にファイルまたはストリームから少しずつ読み出す.
+ */
+final class MailAttachment {
+
+    private final DataSource dataSource;
+    private final boolean reusable;
+
+    private MailAttachment(DataSource dataSource, boolean reusable) {
+        this.dataSource = dataSource;
+        this.reusable = reusable;
+    }
+
+    /**
+     * ファイルを内容とする添付ファイルを生成する. 内容は読み出しの度にファイルを開いて読む.
+     * @param file ファイル
+     * @param fileName 添付ファイル名
+     * @param contentType Content-Type. null の場合はファイル名から推測する
+     * @return 添付ファイル
+     */
+    static MailAttachment fromFile(Path file, String fileName, String contentType) {
+        return new MailAttachment(new FileChannelDataSource(file, fileName, resolveContentType(fileName,
+                contentType)), true);
+    }
+
+    /**
+     * ストリームを内容とする添付ファイルを生成する. 内容は 1度しか読み出せない.
+     * @param stream ストリーム
+     * @param fileName 添付ファイル名
+     * @param contentType Content-Type. null の場合はファイル名から推測する
+     * @return 添付ファイル
+     */
+    static MailAttachment fromStream(InputStream stream, String fileName, String contentType) {
+        return new MailAttachment(new StreamDataSource(stream, fileName, resolveContentType(fileName,
+                contentType)), false);
+    }
+
+    /**
+     * @return 内容
+     */
+    DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * @return 添付ファイル名
+     */
+    String getFileName() {
+        return dataSource.getName();
+    }
+
+    /**
+     * @return 内容を繰り返し読み出せる場合 true
+     */
+    boolean isReusable() {
+        return reusable;
+    }
+
+    private static String resolveContentType(String fileName, String contentType) {
+        if (null != contentType && !contentType.isEmpty()) {
+            return contentType;
+        }
+        return FileTypeMap.getDefaultFileTypeMap().getContentType(fileName);
+    }
+
+    /**
+     * ファイルチャネルから読み出す DataSource.
+     */
+    private static final class FileChannelDataSource implements DataSource {
+        private final Path file;
+        private final String name;
+        private final String contentType;
+
+        FileChannelDataSource(Path file, String name, String contentType) {
+            this.file = file;
+            this.name = name;
+            this.contentType = contentType;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ));
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Attachment is read-only.");
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * 1度だけ読み出せるストリームの DataSource.
+     */
+    private static final class StreamDataSource implements DataSource {
+        private final InputStream stream;
+        private final String name;
+        private final String contentType;
+        private final AtomicBoolean consumed = new AtomicBoolean();
+
+        StreamDataSource(InputStream stream, String name, String contentType) {
+            this.stream = stream;
+            this.name = name;
+            this.contentType = contentType;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (!consumed.compareAndSet(false, true)) {
+                throw new IOException(String.format("Attachment stream (%s) has already been consumed.", name));
+            }
+            return stream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Attachment is read-only.");
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+}
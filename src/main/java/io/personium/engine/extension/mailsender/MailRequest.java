@@ -0,0 +1,123 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * 解析済みのメール送信リクエスト.
+ */
+final class MailRequest {
+
+    final String charset;
+    final InternetAddress[] toAddresses;
+    final InternetAddress[] ccAddresses;
+    final InternetAddress[] bccAddresses;
+    final InternetAddress[] replyToAddresses;
+    final InternetAddress fromAddress;
+    final String subject;
+    final String mailBody;
+    final String envelopeFrom;
+    final Map<String, String> headers;
+    final List<MailAttachment> attachments;
+
+    /**
+     * コンストラクタ.
+     * @param charset 件名・本文・表示名の文字コード
+     * @param toAddresses TO
+     * @param ccAddresses CC
+     * @param bccAddresses BCC
+     * @param replyToAddresses Reply-To
+     * @param fromAddress From
+     * @param subject 件名
+     * @param mailBody 本文
+     * @param envelopeFrom envelope-from
+     * @param headers カスタムヘッダ
+     * @param attachments 添付ファイル
+     */
+    MailRequest(String charset,
+            InternetAddress[] toAddresses,
+            InternetAddress[] ccAddresses,
+            InternetAddress[] bccAddresses,
+            InternetAddress[] replyToAddresses,
+            InternetAddress fromAddress,
+            String subject,
+            String mailBody,
+            String envelopeFrom,
+            Map<String, String> headers,
+            List<MailAttachment> attachments) {
+        this.charset = charset;
+        this.toAddresses = toAddresses;
+        this.ccAddresses = ccAddresses;
+        this.bccAddresses = bccAddresses;
+        this.replyToAddresses = replyToAddresses;
+        this.fromAddress = fromAddress;
+        this.subject = subject;
+        this.mailBody = mailBody;
+        this.envelopeFrom = envelopeFrom;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.attachments = Collections.unmodifiableList(attachments);
+    }
+
+    /**
+     * @return 1度しか読み出せない添付ファイルを含む場合 true
+     */
+    boolean hasOneShotAttachment() {
+        for (MailAttachment attachment : attachments) {
+            if (!attachment.isReusable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * BCCを除いたリクエストを生成する. その他の項目は引き継ぐ.
+     * @return リクエスト
+     */
+    MailRequest withoutBcc() {
+        return withRecipients(toAddresses, ccAddresses, null);
+    }
+
+    /**
+     * 宛先(TO, CC, BCC)を差し替えたリクエストを生成する. その他の項目は引き継ぐ.
+     * @param to TO
+     * @param cc CC
+     * @param bcc BCC
+     * @return リクエスト
+     */
+    MailRequest withRecipients(InternetAddress[] to, InternetAddress[] cc, InternetAddress[] bcc) {
+        return new MailRequest(charset, to, cc, bcc, replyToAddresses, fromAddress, subject, mailBody, envelopeFrom,
+                headers, attachments);
+    }
+
+    /**
+     * 宛先(TO), 件名, 本文を差し替えたリクエストを生成する. その他の項目は引き継ぐ.
+     * @param to TO
+     * @param personalSubject 件名
+     * @param personalBody 本文
+     * @return リクエスト
+     */
+    MailRequest personalize(InternetAddress[] to, String personalSubject, String personalBody) {
+        return new MailRequest(charset, to, ccAddresses, bccAddresses, replyToAddresses, fromAddress,
+                personalSubject, personalBody, envelopeFrom, headers, attachments);
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+
+import io.personium.engine.extension.support.ExtensionLogger;
+
+/**
+ * プロセス全体で共有する設定のスナップショット.
+ * Ext_MailSender.properties は初回に 1度だけ読み込み、全ての Ext_MailSenderインスタンスで同じスナップショットを共有する.
+ * config.file が設定されている場合はファイルの変更を監視し、読み直したスナップショットに丸ごと差し替える.
+ * インスタンスは生成時のスナップショットを使い続けるため、送信中に設定が混ざることはない.
+ * 差し替えで反映されるのは送信先 (smtp.host, smtp.port, smtp.relays 等)、再試行、添付ファイルの基準ディレクトリの設定で、
+ * 接続プールやキュー等の共有資源の設定は再起動まで反映されない.
+ */
+final class MailSenderConfig {
+
+    private static final String SMTP_HOST = "smtp.host";
+    private static final String SMTP_PORT = "smtp.port";
+    private static final String ATTACHMENT_BASE_DIR = "attachment.baseDir";
+    private static final String CONFIG_FILE = "config.file";
+
+    private static final String DEFAULT_SMTP_PORT = "25";
+
+    private static volatile MailSenderConfig current = null;
+    private static Watcher watcher = null;
+
+    private final Properties properties;
+    private final String smtpHost;
+    private final String smtpPort;
+    private final RelayGroup relayGroup;
+    private final RetryPolicy retryPolicy;
+    private final Path attachmentBaseDir;
+
+    private MailSenderConfig(Properties properties, SmtpConnectionPool pool) {
+        this.properties = properties;
+        this.relayGroup = RelayGroup.create(properties, pool);
+        String host = ExtensionProperties.getString(properties, SMTP_HOST, null);
+        String port = ExtensionProperties.getString(properties, SMTP_PORT, DEFAULT_SMTP_PORT);
+        if (null != relayGroup && null == host) {
+            // smtp.relays のみが設定されている場合、Sessionの生成には先頭のリレーを用いる
+            host = relayGroup.getRelays().get(0).getHost();
+            port = relayGroup.getRelays().get(0).getPort();
+        }
+        this.smtpHost = host;
+        this.smtpPort = port;
+        this.retryPolicy = RetryPolicy.fromProperties(properties);
+        String baseDir = ExtensionProperties.getString(properties, ATTACHMENT_BASE_DIR, null);
+        if (null != baseDir) {
+            this.attachmentBaseDir = Paths.get(baseDir);
+        } else {
+            this.attachmentBaseDir = null;
+        }
+    }
+
+    /**
+     * 現在のスナップショットを取得する. 初回呼び出し時に設定を読み込み、config.file の監視を開始する.
+     * @param properties Ext_MailSender.properties の内容. 2回目以降の呼び出しでは参照しない
+     * @param logger 監視中のエラーの出力先
+     * @return スナップショット
+     */
+    static MailSenderConfig getInstance(Properties properties, ExtensionLogger logger) {
+        MailSenderConfig config = current;
+        if (null != config) {
+            return config;
+        }
+        synchronized (MailSenderConfig.class) {
+            if (null == current) {
+                Properties snapshot = new Properties();
+                if (null != properties) {
+                    snapshot.putAll(properties);
+                }
+                current = new MailSenderConfig(snapshot, SmtpConnectionPool.getInstance(snapshot));
+                startWatching(snapshot, logger);
+            }
+            return current;
+        }
+    }
+
+    /**
+     * 設定ファイルを読み直し、内容が変わっていればスナップショットを差し替える.
+     * @param file 設定ファイル
+     * @return 差し替えた場合 true
+     * @throws IOException 設定ファイルを読み込めない場合
+     */
+    static synchronized boolean reload(Path file) throws IOException {
+        Properties loaded = new Properties();
+        InputStream in = Files.newInputStream(file);
+        try {
+            loaded.load(in);
+        } finally {
+            in.close();
+        }
+        MailSenderConfig previous = current;
+        if (null != previous && previous.properties.equals(loaded)) {
+            return false;
+        }
+        MailSenderConfig config = new MailSenderConfig(loaded, SmtpConnectionPool.getInstance(loaded));
+        if (null == config.smtpHost) {
+            // 送信先の無い設定は書き換え途中とみなし、差し替えない
+            config.close();
+            throw new IOException("smtp host is not specified in configuration.");
+        }
+        current = config;
+        if (null != previous) {
+            previous.close();
+        }
+        return true;
+    }
+
+    /**
+     * 設定ファイルの監視を停止し、スナップショットを破棄する. 次の {@link #getInstance} で読み込み直す.
+     */
+    static synchronized void shutdown() {
+        if (null != watcher) {
+            watcher.close();
+            watcher = null;
+        }
+        if (null != current) {
+            current.close();
+            current = null;
+        }
+    }
+
+    private static void startWatching(Properties properties, ExtensionLogger logger) {
+        String file = ExtensionProperties.getString(properties, CONFIG_FILE, null);
+        if (null == file || null != watcher) {
+            return;
+        }
+        try {
+            Path path = Paths.get(file).toAbsolutePath();
+            WatchService service = FileSystems.getDefault().newWatchService();
+            path.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watcher = new Watcher(path, service, logger);
+            watcher.start();
+        } catch (IOException | InvalidPathException e) {
+            logger.warn(String.format("Failed to watch configuration file (%s). Changes are not reloaded.", file), e);
+        }
+    }
+
+    private void close() {
+        if (null != relayGroup) {
+            relayGroup.close();
+        }
+    }
+
+    /**
+     * @return 設定値. 変更しないこと
+     */
+    Properties getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return SMTPホスト. 設定されていない場合は null
+     */
+    String getSmtpHost() {
+        return smtpHost;
+    }
+
+    /**
+     * @return SMTPポート
+     */
+    String getSmtpPort() {
+        return smtpPort;
+    }
+
+    /**
+     * @return smtp.relays に設定されたリレーの集合. 設定されていない場合は null
+     */
+    RelayGroup getRelayGroup() {
+        return relayGroup;
+    }
+
+    /**
+     * @return 再試行方針
+     */
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @return 添付ファイルの基準ディレクトリ. 設定されていない場合は null
+     */
+    Path getAttachmentBaseDir() {
+        return attachmentBaseDir;
+    }
+
+    /**
+     * 設定ファイルの変更を監視するスレッド.
+     */
+    private static final class Watcher extends Thread {
+        private final Path file;
+        private final WatchService service;
+        private final ExtensionLogger logger;
+
+        Watcher(Path file, WatchService service, ExtensionLogger logger) {
+            super("MailSender-config-watcher");
+            setDaemon(true);
+            this.file = file;
+            this.service = service;
+            this.logger = logger;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = service.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (file.getFileName().equals(event.context())
+                            || StandardWatchEventKinds.OVERFLOW == event.kind()) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    reloadQuietly();
+                }
+            }
+        }
+
+        private void reloadQuietly() {
+            try {
+                if (reload(file)) {
+                    logger.info(String.format("Reloaded configuration file (%s).", file));
+                }
+            } catch (IOException | RuntimeException e) {
+                // 書き換え途中のファイル等は読み込まず、現在の設定を使い続ける
+                logger.warn(String.format("Failed to reload configuration file (%s). Current settings are kept.",
+                        file), e);
+            }
+        }
+
+        void close() {
+            interrupt();
+            try {
+                service.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close configuration file watcher.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+/**
+ * MailSenderの送信処理の計測値を公開する MXBean.
+ * ObjectNameは {@value SendMetrics#OBJECT_NAME}.
+ */
+public interface MailSenderMetricsMXBean {
+
+    /**
+     * @return 送信に成功したメッセージ数
+     */
+    long getSuccessCount();
+
+    /**
+     * @return リクエスト内容の不備で送信しなかったリクエスト数
+     */
+    long getInvalidRequestCount();
+
+    /**
+     * @return 一部または全部の宛先に送信できなかった (SendFailedException) メッセージ数
+     */
+    long getSendFailedCount();
+
+    /**
+     * @return その他の送信エラー (MessagingException) となったメッセージ数
+     */
+    long getMessagingErrorCount();
+
+    /**
+     * @return 送信レートの上限を超えたため送信しなかったメッセージ数
+     */
+    long getRateLimitedCount();
+
+    /**
+     * @return JSONからの値の取り出しの所要時間
+     */
+    PhaseStatistics getExtract();
+
+    /**
+     * @return リクエストの検証の所要時間
+     */
+    PhaseStatistics getValidate();
+
+    /**
+     * @return MIMEメッセージの組み立ての所要時間 (saveChangesを除く)
+     */
+    PhaseStatistics getBuild();
+
+    /**
+     * @return saveChangesの所要時間
+     */
+    PhaseStatistics getSaveChanges();
+
+    /**
+     * @return SMTP接続の取得 (プールからの借り出し、または新規接続) の所要時間
+     */
+    PhaseStatistics getConnect();
+
+    /**
+     * @return MAIL FROM から DATA 終了までの所要時間
+     */
+    PhaseStatistics getData();
+
+    /**
+     * 計測値を消去する.
+     */
+    void reset();
+}
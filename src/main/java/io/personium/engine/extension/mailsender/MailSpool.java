@@ -0,0 +1,592 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 非同期送信を受け付けたメールのスプール.
+ * 受け付けたメッセージ (MimeMessage#writeTo の出力) をエンベロープの宛先と共に追記専用のジャーナルに書き込み、
+ * 送信が完了した時点で完了レコードを追記する. 起動時にジャーナルを読み直し、未完了のメッセージを回収する.
+ * 書き込みは単一の書き込みスレッドがまとめて行い、複数の追記を 1回の fsyncで確定させる (グループコミット).
+ * 書き込みに失敗した場合は途切れたレコードを切り詰め、後から追記したレコードが読み直しで失われないようにする.
+ * ジャーナルが一定のサイズを超えると、送信中のメッセージの有無に関わらず未完了のレコードだけを書き直して切り詰める.
+ * 未完了のメッセージはジャーナル上の位置のみをメモリに保持し、内容は回収時にジャーナルから読み出す.
+ */
+class MailSpool {
+
+    private static final String SPOOL_DIR = "spool.dir";
+    private static final String SPOOL_MAX_BATCH = "spool.maxBatch";
+    private static final String SPOOL_COMPACT_THRESHOLD = "spool.compactThresholdBytes";
+
+    private static final int DEFAULT_MAX_BATCH = 512;
+    private static final long DEFAULT_COMPACT_THRESHOLD_BYTES = 64L * 1024L * 1024L;
+    private static final long COMMIT_TIMEOUT_MILLIS = 30000L;
+
+    private static final String JOURNAL_FILE_NAME = "mailsender.journal";
+    private static final String COMPACT_FILE_NAME = "mailsender.journal.compact";
+    private static final byte TYPE_ENQUEUE = 1;
+    private static final byte TYPE_ACK = 2;
+    /** 停止を書き込みスレッドに伝える目印. ジャーナルには書き込まない. */
+    private static final Record CLOSE_MARKER = new Record((byte) 0, null, null, null, null, null);
+    /** レコード長(int) + CRC(long). */
+    private static final int FRAME_OVERHEAD = 12;
+
+    private static MailSpool sharedInstance = null;
+
+    private final File journalFile;
+    private final int maxBatch;
+    private final long compactThresholdBytes;
+    private final LinkedBlockingQueue<Record> pending = new LinkedBlockingQueue<Record>();
+    /** ジャーナル上で未完了のメッセージ. 書き込みスレッドからのみ更新し、読み出しとはこのインスタンスで排他する. */
+    private Map<String, Entry> outstanding = new LinkedHashMap<String, Entry>();
+    private final List<Entry> recovered;
+    private FileChannel channel;
+    /** 確定したレコードの末尾. これより後ろは書き込み途中で失敗したレコード. 書き込みスレッドからのみ更新する. */
+    private long committedSize;
+    /** このサイズ以上になったらジャーナルを書き直す. 書き込みスレッドからのみ更新する. */
+    private long compactAt;
+    private Thread writer;
+    private volatile boolean closed = false;
+
+    /**
+     * コンストラクタ. ジャーナルを読み直し、未完了のメッセージを回収する.
+     * @param directory スプールディレクトリ
+     * @param maxBatch 1回の fsyncで確定させる最大レコード数
+     * @param compactThresholdBytes ジャーナルを書き直すサイズ(バイト)
+     * @throws IOException ジャーナルの読み書きに失敗した場合
+     */
+    MailSpool(File directory, int maxBatch, long compactThresholdBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create spool directory: " + directory);
+        }
+        this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.compactThresholdBytes = compactThresholdBytes;
+
+        replay();
+        this.recovered = new ArrayList<Entry>(outstanding.values());
+        // 回収したメッセージのみを書き出したジャーナルに置き換える
+        rewrite();
+        this.compactAt = nextCompactionSize();
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "MailSender-spool-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * プロセス内で共有されるスプールを取得する. spool.dir が設定されていない場合は null を返す.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有スプール. 無効な場合は null
+     * @throws IOException スプールの初期化に失敗した場合
+     */
+    static synchronized MailSpool getInstance(Properties properties) throws IOException {
+        if (null == sharedInstance) {
+            String dir = ExtensionProperties.getString(properties, SPOOL_DIR, null);
+            if (null == dir) {
+                return null;
+            }
+            sharedInstance = new MailSpool(new File(dir),
+                    ExtensionProperties.getInt(properties, SPOOL_MAX_BATCH, DEFAULT_MAX_BATCH),
+                    ExtensionProperties.getLong(properties, SPOOL_COMPACT_THRESHOLD,
+                            DEFAULT_COMPACT_THRESHOLD_BYTES));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * メッセージをスプールに書き込む. ディスクに確定するまで復帰しない.
+     * @param messageId メッセージID
+     * @param envelopeFrom envelope-from. 指定しない場合は null
+     * @param from ヘッダの Fromのアドレス. 回収したメッセージの配信状況の記録に用いる
+     * @param recipients エンベロープの宛先. Bccのようにヘッダに現れない宛先も含める
+     * @param content メッセージ (MimeMessage#writeTo の出力)
+     * @throws IOException 書き込みに失敗した場合
+     */
+    void append(String messageId, String envelopeFrom, String from, String[] recipients, byte[] content)
+            throws IOException {
+        Record record = new Record(TYPE_ENQUEUE, messageId, envelopeFrom, from, recipients, content);
+        if (!offer(record)) {
+            throw new IOException("Mail spool is closed.");
+        }
+        try {
+            if (!record.committed.await(COMMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for the spool journal to be committed.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the spool journal.");
+        }
+        if (null != record.failure) {
+            throw record.failure;
+        }
+    }
+
+    /**
+     * メッセージの送信完了(または破棄)を記録する. ディスクへの確定は待たない.
+     * @param messageId メッセージID
+     */
+    void acknowledge(String messageId) {
+        // 停止後の完了記録は失われ、次回起動時に再送される
+        offer(new Record(TYPE_ACK, messageId, null, null, null, null));
+    }
+
+    /**
+     * スプールしたメッセージの内容をジャーナルから読み出す.
+     * @param entry {@link #drainRecovered()} で取り出したメッセージ
+     * @return メッセージとエンベロープの宛先. 既に完了している場合は null
+     * @throws IOException 読み出しに失敗した場合、またはレコードが壊れている場合
+     */
+    synchronized Content read(Entry entry) throws IOException {
+        // 書き直しでレコードの位置が変わるため、現在の位置を引き直す
+        Entry current = outstanding.get(entry.messageId);
+        if (null == current) {
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(current.length);
+        FileChannel source = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ);
+        try {
+            while (frame.hasRemaining()) {
+                if (0 > source.read(frame, current.offset + frame.position())) {
+                    break;
+                }
+            }
+        } finally {
+            source.close();
+        }
+        Record record = decode(new DataInputStream(new ByteArrayInputStream(frame.array(), 0, frame.position())),
+                frame.position(), true);
+        if (null == record || TYPE_ENQUEUE != record.type) {
+            throw new IOException(String.format("Spooled message (%s) is corrupt.", entry.messageId));
+        }
+        return new Content(record.recipients, record.content);
+    }
+
+    /**
+     * @return 起動時にジャーナルから回収し、まだ取り出していないメッセージがある場合 true
+     */
+    synchronized boolean hasRecovered() {
+        return !recovered.isEmpty();
+    }
+
+    /**
+     * 起動時にジャーナルから回収した未完了のメッセージを取り出す. 2回目以降は空のリストを返す.
+     * @return 未完了のメッセージ
+     */
+    synchronized List<Entry> drainRecovered() {
+        List<Entry> drained = new ArrayList<Entry>(recovered);
+        recovered.clear();
+        return drained;
+    }
+
+    /**
+     * スプールを停止する. 停止までに受け付けた書き込みは確定させる.
+     */
+    void close() {
+        closed = true;
+        // FileChannelは割り込まれると閉じられるため、書き込みスレッドへの割り込みではなく目印で停止を伝える
+        pending.add(CLOSE_MARKER);
+        try {
+            writer.join(COMMIT_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean offer(Record record) {
+        if (closed) {
+            return false;
+        }
+        return pending.add(record);
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<Record>(maxBatch);
+        while (!closed || !pending.isEmpty()) {
+            try {
+                Record first = pending.poll(1, TimeUnit.SECONDS);
+                if (null != first && CLOSE_MARKER != first) {
+                    batch.add(first);
+                }
+            } catch (InterruptedException e) {
+                if (pending.isEmpty()) {
+                    break;
+                }
+            }
+            pending.drainTo(batch, maxBatch - batch.size());
+            batch.remove(CLOSE_MARKER);
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 停止時のエラーは無視する
+        }
+    }
+
+    private void commit(List<Record> batch) {
+        IOException failure = null;
+        try {
+            ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+            long remaining = 0;
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = ByteBuffer.wrap(encode(batch.get(i)));
+                remaining += buffers[i].remaining();
+            }
+            // 前回の書き込みが途中で失敗していた場合は、途切れたレコードの後ろに追記しないよう切り詰める
+            if (committedSize < channel.size()) {
+                channel.truncate(committedSize);
+            }
+            long position = committedSize;
+            while (0 < remaining) {
+                remaining -= channel.write(buffers);
+            }
+            channel.force(false);
+
+            synchronized (this) {
+                for (int i = 0; i < buffers.length; i++) {
+                    Record record = batch.get(i);
+                    int length = buffers[i].limit();
+                    if (TYPE_ENQUEUE == record.type) {
+                        outstanding.put(record.messageId,
+                                new Entry(record.messageId, record.envelopeFrom, record.from, position, length));
+                    } else {
+                        outstanding.remove(record.messageId);
+                    }
+                    position += length;
+                }
+            }
+            committedSize = position;
+        } catch (IOException e) {
+            failure = e;
+            discardTornRecords();
+        }
+        for (Record record : batch) {
+            record.failure = failure;
+            record.committed.countDown();
+        }
+        // 書き直しの間、書き込んだレコードの確定を待たせないよう完了を通知してから行う
+        if (null == failure && compactAt <= committedSize) {
+            compact();
+        }
+    }
+
+    private void discardTornRecords() {
+        try {
+            channel.truncate(committedSize);
+        } catch (IOException e) {
+            // 次の書き込みの前に改めて切り詰める
+        }
+    }
+
+    private void compact() {
+        try {
+            // 送信中のメッセージが常にある場合も切り詰められるよう、未完了のレコードだけを書き直す
+            rewrite();
+        } catch (IOException e) {
+            // 元のジャーナルへの追記を続け、次の閾値に達した時に改めて書き直す
+        }
+        compactAt = nextCompactionSize();
+    }
+
+    private void replay() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+        long size = journalFile.length();
+        long position = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile.toPath())));
+        try {
+            while (true) {
+                Record record = decode(in, size - position, false);
+                if (null == record) {
+                    break;
+                }
+                if (TYPE_ENQUEUE == record.type) {
+                    outstanding.put(record.messageId, new Entry(record.messageId, record.envelopeFrom, record.from,
+                            position, record.length));
+                } else {
+                    outstanding.remove(record.messageId);
+                }
+                position += record.length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 未完了のレコードだけを新しいジャーナルに写して置き換える. レコードはファイル間で直接写し、メモリに読み込まない.
+     * 読み出しと排他するのは置き換えの間だけとし、写している間は {@link #read(Entry)} を待たせない.
+     * 失敗した場合は元のジャーナルをそのまま使い続ける.
+     */
+    private void rewrite() throws IOException {
+        File compactFile = new File(journalFile.getParentFile(), COMPACT_FILE_NAME);
+        Map<String, Entry> moved = new LinkedHashMap<String, Entry>();
+        FileChannel compact = FileChannel.open(compactFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            if (!outstanding.isEmpty()) {
+                FileChannel source = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ);
+                try {
+                    long position = 0;
+                    for (Entry entry : outstanding.values()) {
+                        transfer(source, entry.offset, entry.length, compact);
+                        moved.put(entry.messageId, new Entry(entry.messageId, entry.envelopeFrom, entry.from,
+                                position, entry.length));
+                        position += entry.length;
+                    }
+                } finally {
+                    source.close();
+                }
+            }
+            compact.force(true);
+        } finally {
+            compact.close();
+        }
+        // 置き換えた後に開き直せず書き込めなくなることのないよう、置き換える前に開いておく
+        FileChannel next = FileChannel.open(compactFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        synchronized (this) {
+            try {
+                Files.move(compactFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                next.close();
+                throw e;
+            }
+            outstanding = moved;
+        }
+        FileChannel previous = channel;
+        channel = next;
+        committedSize = next.size();
+        if (null != previous) {
+            previous.close();
+        }
+    }
+
+    private static void transfer(FileChannel source, long position, long count, FileChannel target)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = source.transferTo(position + transferred, count - transferred, target);
+            if (0 >= n) {
+                throw new EOFException("Spool journal is shorter than expected.");
+            }
+            transferred += n;
+        }
+    }
+
+    /**
+     * 未完了のレコードが多く書き直しても小さくならない場合に、書き直しを繰り返さないよう次の閾値を決める.
+     */
+    private long nextCompactionSize() {
+        return Math.max(compactThresholdBytes, 2 * committedSize);
+    }
+
+    private static byte[] encode(Record record) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(record.type);
+        out.writeUTF(record.messageId);
+        if (TYPE_ENQUEUE == record.type) {
+            out.writeUTF(emptyIfNull(record.envelopeFrom));
+            out.writeUTF(emptyIfNull(record.from));
+            out.writeInt(record.recipients.length);
+            for (String recipient : record.recipients) {
+                out.writeUTF(recipient);
+            }
+            out.writeInt(record.content.length);
+            out.write(record.content);
+        }
+        out.flush();
+        byte[] bytes = payload.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        ByteBuffer frame = ByteBuffer.allocate(bytes.length + FRAME_OVERHEAD);
+        frame.putInt(bytes.length);
+        frame.put(bytes);
+        frame.putLong(crc.getValue());
+        return frame.array();
+    }
+
+    private static String emptyIfNull(String value) {
+        if (null == value) {
+            return "";
+        }
+        return value;
+    }
+
+    private static String nullIfEmpty(String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * レコードを 1件読み込む. 終端、または書き込み途中で途切れた・壊れたレコードの場合は null を返す.
+     * ディスクから読んだ長さは CRCの確認前に信用せず、残りのサイズを超える場合は壊れたレコードとして扱う.
+     * @param in ジャーナル
+     * @param remaining ジャーナルの残りのバイト数
+     * @param readContent メッセージの内容を読み込む場合 true. false の場合 content は null
+     */
+    private static Record decode(DataInputStream in, long remaining, boolean readContent) throws IOException {
+        try {
+            int length = in.readInt();
+            if (0 >= length || remaining - FRAME_OVERHEAD < length) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            long expected = in.readLong();
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, length);
+            if (expected != crc.getValue()) {
+                return null;
+            }
+
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+            byte type = payload.readByte();
+            String messageId = payload.readUTF();
+            Record record;
+            if (TYPE_ENQUEUE != type) {
+                record = new Record(type, messageId, null, null, null, null);
+            } else {
+                String envelopeFrom = nullIfEmpty(payload.readUTF());
+                String from = nullIfEmpty(payload.readUTF());
+                int count = payload.readInt();
+                // 宛先 1件あたり少なくとも文字列長(short)を書き込むため、残りのサイズで件数を確かめる
+                if (0 > count || payload.available() / 2 < count) {
+                    return null;
+                }
+                String[] recipients = new String[count];
+                for (int i = 0; i < count; i++) {
+                    recipients[i] = payload.readUTF();
+                }
+                int contentLength = payload.readInt();
+                if (payload.available() != contentLength) {
+                    return null;
+                }
+                byte[] content = null;
+                if (readContent) {
+                    content = new byte[contentLength];
+                    payload.readFully(content);
+                }
+                record = new Record(type, messageId, envelopeFrom, from, recipients, content);
+            }
+            record.length = FRAME_OVERHEAD + length;
+            return record;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * スプールされたメッセージ. 内容は {@link MailSpool#read(Entry)} で読み出す.
+     */
+    static final class Entry {
+        final String messageId;
+        final String envelopeFrom;
+        /** ヘッダの Fromのアドレス. */
+        final String from;
+        /** ジャーナル上のレコードの位置. */
+        private final long offset;
+        private final int length;
+
+        Entry(String messageId, String envelopeFrom, String from, long offset, int length) {
+            this.messageId = messageId;
+            this.envelopeFrom = envelopeFrom;
+            this.from = from;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * ジャーナルから読み出したメッセージ.
+     */
+    static final class Content {
+        /** エンベロープの宛先. */
+        final String[] recipients;
+        /** メッセージ (MimeMessage#writeTo の出力). */
+        final byte[] message;
+
+        Content(String[] recipients, byte[] message) {
+            this.recipients = recipients;
+            this.message = message;
+        }
+    }
+
+    /**
+     * ジャーナルのレコード.
+     */
+    private static final class Record {
+        private final byte type;
+        private final String messageId;
+        private final String envelopeFrom;
+        private final String from;
+        private final String[] recipients;
+        private final byte[] content;
+        private final CountDownLatch committed = new CountDownLatch(1);
+        private volatile IOException failure;
+        /** ジャーナル上のレコード長. ジャーナルから読み込んだレコードのみ設定する. */
+        private int length;
+
+        Record(byte type, String messageId, String envelopeFrom, String from, String[] recipients,
+                byte[] content) {
+            this.type = type;
+            this.messageId = messageId;
+            this.envelopeFrom = envelopeFrom;
+            this.from = from;
+            this.recipients = recipients;
+            this.content = content;
+        }
+    }
+}
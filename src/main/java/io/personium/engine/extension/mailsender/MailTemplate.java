@@ -0,0 +1,146 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ${name} 形式のプレースホルダを含む文字列テンプレート.
+ * 生成時に固定文字列とプレースホルダの並びに分解しておき、置換は 1回の走査で行う.
+ * "$${" と書くと "${" そのものを表す. 値の無いプレースホルダは空文字列に置換する.
+ */
+final class MailTemplate {
+
+    private static final String OPEN = "${";
+    private static final String ESCAPED_OPEN = "$${";
+    private static final char CLOSE = '}';
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    /** render で使い回すスレッド毎のバッファ. */
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+
+    /** 固定文字列. literals[i] の後に names[i] の値が続く. */
+    private final String[] literals;
+    /** プレースホルダ名. 末尾の固定文字列に対応する要素は null. */
+    private final String[] names;
+    private final int literalLength;
+
+    private MailTemplate(List<String> literals, List<String> names) {
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.names = names.toArray(new String[names.size()]);
+        int length = 0;
+        for (String literal : this.literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * テンプレートを解析する.
+     * @param source テンプレート文字列
+     * @return テンプレート
+     * @throws IllegalArgumentException プレースホルダが閉じていない場合
+     */
+    static MailTemplate compile(String source) {
+        List<String> literals = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        int pos = 0;
+        while (pos < source.length()) {
+            if (source.startsWith(ESCAPED_OPEN, pos)) {
+                literal.append(OPEN);
+                pos += ESCAPED_OPEN.length();
+            } else if (source.startsWith(OPEN, pos)) {
+                int end = source.indexOf(CLOSE, pos + OPEN.length());
+                if (0 > end) {
+                    throw new IllegalArgumentException(String.format(
+                            "Unclosed placeholder at position %d.", pos));
+                }
+                literals.add(literal.toString());
+                names.add(source.substring(pos + OPEN.length(), end).trim());
+                literal.setLength(0);
+                pos = end + 1;
+            } else {
+                literal.append(source.charAt(pos));
+                pos++;
+            }
+        }
+        literals.add(literal.toString());
+        names.add(null);
+        return new MailTemplate(literals, names);
+    }
+
+    /**
+     * 文字列をそのまま返すテンプレートを生成する. ${name} を解釈しない.
+     * @param text 文字列
+     * @return テンプレート
+     */
+    static MailTemplate literal(String text) {
+        return new MailTemplate(Collections.singletonList(text), Collections.<String>singletonList(null));
+    }
+
+    /**
+     * @return プレースホルダを含まない場合 true
+     */
+    boolean isConstant() {
+        return 1 == names.length;
+    }
+
+    /**
+     * プレースホルダを置換した文字列を buffer に追記する.
+     * @param vars プレースホルダの値
+     * @param buffer 出力先
+     * @return buffer
+     */
+    StringBuilder renderTo(Map<String, String> vars, StringBuilder buffer) {
+        buffer.ensureCapacity(buffer.length() + literalLength);
+        for (int i = 0; i < literals.length; i++) {
+            buffer.append(literals[i]);
+            if (null != names[i]) {
+                String value = vars.get(names[i]);
+                if (null != value) {
+                    buffer.append(value);
+                }
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * プレースホルダを置換した文字列を返す. 置換にはスレッド毎に使い回すバッファを用いる.
+     * @param vars プレースホルダの値
+     * @return 置換後の文字列
+     */
+    String render(Map<String, String> vars) {
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        String rendered = renderTo(vars, buffer).toString();
+        // 大きな本文で伸びたバッファは保持し続けない
+        if (MAX_RETAINED_BUFFER < buffer.capacity()) {
+            BUFFER.remove();
+        }
+        return rendered;
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+
+/**
+ * XOAUTH2で用いる OAuth 2.0 アクセストークンのキャッシュ.
+ * トークンは失効の smtp.auth.oauth2.refreshMarginSeconds 秒前にバックグラウンドのスレッドで更新し、
+ * 送信時はキャッシュしたトークンを返すのみとする. 同期的に取得するのは最初のトークンを取得する前のみ.
+ * 更新に失敗した場合は失効するまで古いトークンを使い続け、一定時間毎に更新を再試行する.
+ * トークンエンドポイントへの問い合わせは最初の取得も含めて同時に 1つしか行わない.
+ */
+final class OAuthTokenCache {
+
+    private static final String SMTP_AUTH_OAUTH2_TOKEN_ENDPOINT = "smtp.auth.oauth2.tokenEndpoint";
+    private static final String SMTP_AUTH_OAUTH2_CLIENT_ID = "smtp.auth.oauth2.clientId";
+    private static final String SMTP_AUTH_OAUTH2_CLIENT_SECRET = "smtp.auth.oauth2.clientSecret";
+    private static final String SMTP_AUTH_OAUTH2_REFRESH_TOKEN = "smtp.auth.oauth2.refreshToken";
+    private static final String SMTP_AUTH_OAUTH2_SCOPE = "smtp.auth.oauth2.scope";
+    private static final String SMTP_AUTH_OAUTH2_REFRESH_MARGIN = "smtp.auth.oauth2.refreshMarginSeconds";
+
+    private static final long DEFAULT_REFRESH_MARGIN_SECONDS = 300L;
+    private static final long DEFAULT_EXPIRES_IN_SECONDS = 3600L;
+    private static final long RETRY_DELAY_MILLIS = 10000L;
+    private static final long MIN_REFRESH_DELAY_MILLIS = 1000L;
+    private static final int HTTP_TIMEOUT_MILLIS = 10000;
+    private static final int HTTP_OK = 200;
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * アクセストークンの取得元.
+     */
+    interface TokenSource {
+        /**
+         * アクセストークンを取得する.
+         * @return アクセストークン
+         * @throws IOException 取得に失敗した場合
+         */
+        Token fetch() throws IOException;
+    }
+
+    private final TokenSource source;
+    /** トークンエンドポイントへの問い合わせを 1つに絞るためのロック. */
+    private final Object fetchLock = new Object();
+    private final long refreshMarginMillis;
+    private final long retryDelayMillis;
+    private volatile Token current = null;
+    private volatile String lastError = null;
+    private ScheduledExecutorService refresher = null;
+
+    /**
+     * コンストラクタ.
+     * @param source アクセストークンの取得元
+     * @param refreshMarginMillis 失効の何ミリ秒前に更新するか
+     * @param retryDelayMillis 更新に失敗した場合に再試行するまでの時間(ミリ秒)
+     */
+    OAuthTokenCache(TokenSource source, long refreshMarginMillis, long retryDelayMillis) {
+        this.source = source;
+        this.refreshMarginMillis = refreshMarginMillis;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Ext_MailSender.properties の内容からキャッシュを生成する. 更新は {@link #start()} で開始する.
+     * refreshToken が設定されている場合は refresh_token グラント、無い場合は client_credentials グラントで取得する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return キャッシュ. トークンエンドポイントが設定されていない場合は null
+     */
+    static OAuthTokenCache fromProperties(Properties properties) {
+        String endpoint = ExtensionProperties.getString(properties, SMTP_AUTH_OAUTH2_TOKEN_ENDPOINT, null);
+        if (null == endpoint) {
+            return null;
+        }
+        TokenSource source = new HttpTokenSource(endpoint,
+                ExtensionProperties.getString(properties, SMTP_AUTH_OAUTH2_CLIENT_ID, null),
+                ExtensionProperties.getString(properties, SMTP_AUTH_OAUTH2_CLIENT_SECRET, null),
+                ExtensionProperties.getString(properties, SMTP_AUTH_OAUTH2_REFRESH_TOKEN, null),
+                ExtensionProperties.getString(properties, SMTP_AUTH_OAUTH2_SCOPE, null));
+        long margin = ExtensionProperties.getLong(properties, SMTP_AUTH_OAUTH2_REFRESH_MARGIN,
+                DEFAULT_REFRESH_MARGIN_SECONDS);
+        return new OAuthTokenCache(source, margin * MILLIS_PER_SECOND, RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * バックグラウンドでの更新を開始する. 最初のトークンは直ちに取得を始める.
+     */
+    synchronized void start() {
+        if (null != refresher) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MailSender-OAuthTokenCache-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        schedule(0L);
+    }
+
+    /**
+     * バックグラウンドでの更新を停止する.
+     */
+    synchronized void stop() {
+        if (null != refresher) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * キャッシュしたアクセストークンを取得する. 最初のトークンの取得前のみ、取得を待つ.
+     * @return アクセストークン
+     * @throws MessagingException トークンを取得できない場合、更新に失敗し続けてトークンが失効した場合
+     */
+    String getToken() throws MessagingException {
+        Token token = current;
+        if (null == token) {
+            token = fetchFirst();
+        }
+        if (token.isExpired(System.currentTimeMillis())) {
+            throw new MessagingException(String.format(
+                    "OAuth2 access token has expired and could not be refreshed. Cause: [%s]", lastError));
+        }
+        return token.value;
+    }
+
+    private Token fetchFirst() throws MessagingException {
+        // バックグラウンドの更新が取得中であれば、その完了を待って結果を使う
+        synchronized (fetchLock) {
+            if (null == current) {
+                try {
+                    current = source.fetch();
+                } catch (IOException | RuntimeException e) {
+                    lastError = e.getMessage();
+                    throw new MessagingException(String.format(
+                            "Failed to get OAuth2 access token. Cause: [%s]", e.getMessage()), e);
+                }
+            }
+            return current;
+        }
+    }
+
+    private void refresh() {
+        long delay;
+        synchronized (fetchLock) {
+            Token token = current;
+            try {
+                // 送信時の取得と重なった場合は、取得したばかりのトークンを使い続ける
+                if (null == token || token.expiresAt - refreshMarginMillis <= System.currentTimeMillis()) {
+                    token = source.fetch();
+                    current = token;
+                    lastError = null;
+                }
+                delay = Math.max(MIN_REFRESH_DELAY_MILLIS,
+                        token.expiresAt - refreshMarginMillis - System.currentTimeMillis());
+            } catch (IOException | RuntimeException e) {
+                lastError = e.getMessage();
+                delay = retryDelayMillis;
+            }
+        }
+        schedule(delay);
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (null == refresher) {
+            return;
+        }
+        refresher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * トークンエンドポイントの応答からアクセストークンを取り出す.
+     * @param json 応答の JSON
+     * @param now 現在時刻(ミリ秒)
+     * @return アクセストークン. 応答に refresh_token が含まれる場合はそれも保持する
+     * @throws IOException access_token が含まれない場合
+     */
+    static Token parseTokenResponse(String json, long now) throws IOException {
+        String value = findJsonValue(json, "access_token");
+        if (null == value || value.isEmpty()) {
+            throw new IOException("access_token is not found in token response.");
+        }
+        long expiresIn = DEFAULT_EXPIRES_IN_SECONDS;
+        String expires = findJsonValue(json, "expires_in");
+        if (null != expires) {
+            try {
+                expiresIn = Long.parseLong(expires);
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("Invalid expires_in in token response (%s).", expires), e);
+            }
+        }
+        return new Token(value, now + expiresIn * MILLIS_PER_SECOND, findJsonValue(json, "refresh_token"));
+    }
+
+    private static String findJsonValue(String json, String name) {
+        Matcher matcher = Pattern.compile("\"" + Pattern.quote(name)
+                + "\"\\s*:\\s*(?:\"((?:[^\"\\\\]|\\\\.)*)\"|(\\d+))").matcher(json);
+        if (!matcher.find()) {
+            return null;
+        }
+        if (null != matcher.group(2)) {
+            return matcher.group(2);
+        }
+        return matcher.group(1).replace("\\/", "/").replace("\\\"", "\"").replace("\\\\", "\\");
+    }
+
+    /**
+     * アクセストークンと失効時刻.
+     */
+    static final class Token {
+        private final String value;
+        private final long expiresAt;
+        private final String refreshToken;
+
+        /**
+         * コンストラクタ.
+         * @param value アクセストークン
+         * @param expiresAt 失効時刻(ミリ秒)
+         */
+        Token(String value, long expiresAt) {
+            this(value, expiresAt, null);
+        }
+
+        /**
+         * コンストラクタ.
+         * @param value アクセストークン
+         * @param expiresAt 失効時刻(ミリ秒)
+         * @param refreshToken 新たに発行されたリフレッシュトークン. 発行されなかった場合は null
+         */
+        Token(String value, long expiresAt, String refreshToken) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.refreshToken = refreshToken;
+        }
+
+        /**
+         * @return アクセストークン
+         */
+        String getValue() {
+            return value;
+        }
+
+        /**
+         * @return 新たに発行されたリフレッシュトークン. 発行されなかった場合は null
+         */
+        String getRefreshToken() {
+            return refreshToken;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+
+    /**
+     * OAuth 2.0 トークンエンドポイントからの取得.
+     * リフレッシュトークンが更新された (ローテーションされた) 場合は、以降の取得で新しいリフレッシュトークンを用いる.
+     */
+    private static final class HttpTokenSource implements TokenSource {
+        private final String endpoint;
+        private final String clientId;
+        private final String clientSecret;
+        /** 取得は fetchLock で 1つに絞られるが、取得するスレッドは変わるため volatile とする. */
+        private volatile String refreshToken;
+        private final String scope;
+
+        HttpTokenSource(String endpoint, String clientId, String clientSecret, String refreshToken, String scope) {
+            this.endpoint = endpoint;
+            this.clientId = clientId;
+            this.clientSecret = clientSecret;
+            this.refreshToken = refreshToken;
+            this.scope = scope;
+        }
+
+        @Override
+        public Token fetch() throws IOException {
+            StringBuilder form = new StringBuilder();
+            if (null != refreshToken) {
+                appendParameter(form, "grant_type", "refresh_token");
+                appendParameter(form, "refresh_token", refreshToken);
+            } else {
+                appendParameter(form, "grant_type", "client_credentials");
+            }
+            appendParameter(form, "client_id", clientId);
+            appendParameter(form, "client_secret", clientSecret);
+            appendParameter(form, "scope", scope);
+
+            HttpURLConnection connection = (HttpURLConnection) new URL(endpoint).openConnection();
+            try {
+                connection.setRequestMethod("POST");
+                connection.setConnectTimeout(HTTP_TIMEOUT_MILLIS);
+                connection.setReadTimeout(HTTP_TIMEOUT_MILLIS);
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                connection.setRequestProperty("Accept", "application/json");
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(form.toString().getBytes(StandardCharsets.UTF_8));
+                } finally {
+                    out.close();
+                }
+                int status = connection.getResponseCode();
+                if (HTTP_OK != status) {
+                    throw new IOException(String.format("Token endpoint returned HTTP status %d.", status));
+                }
+                InputStream in = connection.getInputStream();
+                try {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int read = in.read(buffer);
+                    for (; 0 <= read; read = in.read(buffer)) {
+                        body.write(buffer, 0, read);
+                    }
+                    Token token = parseTokenResponse(new String(body.toByteArray(), StandardCharsets.UTF_8),
+                            System.currentTimeMillis());
+                    if (null != refreshToken && null != token.getRefreshToken()
+                            && !token.getRefreshToken().isEmpty()) {
+                        refreshToken = token.getRefreshToken();
+                    }
+                    return token;
+                } finally {
+                    in.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private static void appendParameter(StringBuilder form, String name, String value) throws IOException {
+            if (null == value) {
+                return;
+            }
+            if (0 < form.length()) {
+                form.append('&');
+            }
+            form.append(name).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8.name()));
+        }
+    }
+}
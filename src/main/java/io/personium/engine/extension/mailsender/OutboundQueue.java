@@ -0,0 +1,182 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 非同期送信用の送信キュー.
+ * 上限付きのキューに積まれた送信処理をワーカースレッドが順次実行する.
+ * キューはプロセス内の全 Ext_MailSenderインスタンスで共有される.
+ */
+class OutboundQueue {
+
+    /** キューが満杯の場合に例外とする. */
+    static final String POLICY_ABORT = "abort";
+    /** キューが満杯の場合に呼び出し元のスレッドで送信する. */
+    static final String POLICY_CALLER_RUNS = "callerRuns";
+
+    private static final String ASYNC_QUEUE_CAPACITY = "async.queueCapacity";
+    private static final String ASYNC_WORKERS = "async.workers";
+    private static final String ASYNC_REJECTION_POLICY = "async.rejectionPolicy";
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    private static final int DEFAULT_WORKERS = 4;
+
+    private static OutboundQueue sharedInstance = null;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * コンストラクタ.
+     * @param queueCapacity キューに積める送信処理の最大数
+     * @param workers ワーカースレッド数
+     * @param rejectionPolicy キューが満杯の場合の動作 ({@link #POLICY_ABORT} または {@link #POLICY_CALLER_RUNS})
+     */
+    OutboundQueue(int queueCapacity, int workers, String rejectionPolicy) {
+        RejectedExecutionHandler handler = new RejectionHandler(POLICY_CALLER_RUNS.equals(rejectionPolicy));
+        int threads = Math.max(1, workers);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)), new WorkerThreadFactory(), handler);
+    }
+
+    /**
+     * プロセス内で共有されるキューを取得する. 初回呼び出し時の設定でキューを生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有キュー
+     */
+    static synchronized OutboundQueue getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            sharedInstance = new OutboundQueue(
+                    ExtensionProperties.getInt(properties, ASYNC_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY),
+                    ExtensionProperties.getInt(properties, ASYNC_WORKERS, DEFAULT_WORKERS),
+                    ExtensionProperties.getString(properties, ASYNC_REJECTION_POLICY, POLICY_ABORT));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * 送信処理をキューに積む.
+     * @param delivery 送信処理
+     * @throws RejectedExecutionException キューが満杯で、拒否する設定の場合
+     */
+    void submit(Runnable delivery) throws RejectedExecutionException {
+        executor.execute(delivery);
+    }
+
+    /**
+     * 処理をワーカースレッドで実行するためにキューに積む.
+     * {@link #submit(Runnable)} と異なり、キューが満杯の場合でも呼び出し元のスレッドでは実行しない.
+     * @param task 処理
+     * @throws RejectedExecutionException キューが満杯の場合、キューが停止している場合
+     */
+    void submitInBackground(Runnable task) throws RejectedExecutionException {
+        executor.execute(new BackgroundTask(task));
+    }
+
+    /**
+     * @return キューが停止している場合 true
+     */
+    boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * @return キューで待機中の送信処理の数
+     */
+    int size() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * キューを停止する. 待機中の送信処理は完了を待たずに破棄される.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * キューを停止し、待機中の送信処理の完了を待つ.
+     * @param timeoutMillis 最大待ち時間(ミリ秒)
+     * @return 全ての送信処理が完了した場合 true
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * キューが満杯の場合の動作.
+     * 呼び出し元で実行する設定でも、{@link #submitInBackground(Runnable)} で積まれた処理は拒否する.
+     */
+    private static final class RejectionHandler implements RejectedExecutionHandler {
+        private final boolean callerRuns;
+
+        RejectionHandler(boolean callerRuns) {
+            this.callerRuns = callerRuns;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (!callerRuns || r instanceof BackgroundTask) {
+                throw new RejectedExecutionException("Outbound queue is full.");
+            }
+            // ThreadPoolExecutor.CallerRunsPolicyと同様に、停止後は実行せずに破棄する
+            if (!executor.isShutdown()) {
+                r.run();
+            }
+        }
+    }
+
+    /**
+     * 呼び出し元のスレッドで実行してはならない処理.
+     */
+    private static final class BackgroundTask implements Runnable {
+        private final Runnable task;
+
+        BackgroundTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * ワーカースレッドの生成.
+     */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger sequence = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MailSender-async-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * 送信処理の 1段階の所要時間の統計. 時間はマイクロ秒.
+ * パーセンタイルは 2の冪の区間で近似した値.
+ */
+public final class PhaseStatistics {
+
+    private final long count;
+    private final long meanMicros;
+    private final long maxMicros;
+    private final long p50Micros;
+    private final long p90Micros;
+    private final long p99Micros;
+
+    /**
+     * コンストラクタ.
+     * @param count 件数
+     * @param meanMicros 平均
+     * @param maxMicros 最大
+     * @param p50Micros 50パーセンタイル
+     * @param p90Micros 90パーセンタイル
+     * @param p99Micros 99パーセンタイル
+     */
+    @ConstructorProperties({"count", "meanMicros", "maxMicros", "p50Micros", "p90Micros", "p99Micros" })
+    public PhaseStatistics(long count, long meanMicros, long maxMicros, long p50Micros, long p90Micros,
+            long p99Micros) {
+        this.count = count;
+        this.meanMicros = meanMicros;
+        this.maxMicros = maxMicros;
+        this.p50Micros = p50Micros;
+        this.p90Micros = p90Micros;
+        this.p99Micros = p99Micros;
+    }
+
+    /**
+     * @return 件数
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return 平均
+     */
+    public long getMeanMicros() {
+        return meanMicros;
+    }
+
+    /**
+     * @return 最大
+     */
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    /**
+     * @return 50パーセンタイル
+     */
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    /**
+     * @return 90パーセンタイル
+     */
+    public long getP90Micros() {
+        return p90Micros;
+    }
+
+    /**
+     * @return 99パーセンタイル
+     */
+    public long getP99Micros() {
+        return p99Micros;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * prepare で検証・エンコード済みのメッセージの保持領域.
+ * 生成したハンドル毎に保持する. 上限を超えた場合は最も使われていないものから破棄する.
+ */
+class PreparedMessageRegistry {
+
+    private static final String PREPARED_CACHE_SIZE = "prepared.cacheSize";
+    private static final int DEFAULT_CACHE_SIZE = 256;
+
+    private static PreparedMessageRegistry sharedInstance = null;
+
+    private final LruCache<String, Entry> messages;
+
+    /**
+     * コンストラクタ.
+     * @param maxSize 保持するメッセージの最大数
+     */
+    PreparedMessageRegistry(int maxSize) {
+        this.messages = new LruCache<String, Entry>(maxSize);
+    }
+
+    /**
+     * プロセス内で共有される保持領域を取得する. 初回呼び出し時の設定で生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有の保持領域
+     */
+    static synchronized PreparedMessageRegistry getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            sharedInstance = new PreparedMessageRegistry(
+                    ExtensionProperties.getInt(properties, PREPARED_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * メッセージを登録する.
+     * @param entry メッセージ
+     * @return ハンドル
+     */
+    String register(Entry entry) {
+        String handle = UUID.randomUUID().toString();
+        messages.put(handle, entry);
+        return handle;
+    }
+
+    /**
+     * メッセージを取得する.
+     * @param handle ハンドル
+     * @return メッセージ. 登録されていない、または破棄された場合は null
+     */
+    Entry get(String handle) {
+        return messages.get(handle);
+    }
+
+    /**
+     * @return ヒット数
+     */
+    long getHitCount() {
+        return messages.getHitCount();
+    }
+
+    /**
+     * @return ミス数
+     */
+    long getMissCount() {
+        return messages.getMissCount();
+    }
+
+    /**
+     * @return 保持しているメッセージの数
+     */
+    int size() {
+        return messages.size();
+    }
+
+    /**
+     * 検証済みのリクエストと、エンコード済みのメッセージまたは件名・本文のテンプレート.
+     */
+    static final class Entry {
+        final MailRequest request;
+        final MailTemplate subject;
+        final MailTemplate text;
+        /** prepare で指定した差し込み値. 送信毎の差し込み値で上書きする. */
+        final Map<String, String> vars;
+        /** To, Cc, Message-IDを除いたエンコード済みのメッセージ. 件名・本文にプレースホルダを含む場合は null. */
+        final byte[] content;
+        /** content の DKIMの本文ハッシュ. 送信毎に本文を差し込む場合は null. */
+        final DkimSigner.ConstantBodyHash bodyHash;
+
+        Entry(MailRequest request, MailTemplate subject, MailTemplate text, Map<String, String> vars,
+                byte[] content) {
+            this.request = request;
+            this.subject = subject;
+            this.text = text;
+            this.vars = vars;
+            this.content = content;
+            if (null != content) {
+                this.bodyHash = new DkimSigner.ConstantBodyHash();
+            } else {
+                this.bodyHash = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 送信レートの制限.
+ * プロセス全体と送信元(From)アドレス毎のトークンバケットで、1通毎に両方のトークンを取得する.
+ * トークンが無い場合は、設定した時間内に補充されるのであれば待ち、そうでなければ直ちに拒否する.
+ */
+class RateLimiter {
+
+    private static final String RATE_LIMIT_GLOBAL_PER_SECOND = "rateLimit.global.perSecond";
+    private static final String RATE_LIMIT_GLOBAL_BURST = "rateLimit.global.burst";
+    private static final String RATE_LIMIT_FROM_PER_SECOND = "rateLimit.from.perSecond";
+    private static final String RATE_LIMIT_FROM_BURST = "rateLimit.from.burst";
+    private static final String RATE_LIMIT_MAX_WAIT_MILLIS = "rateLimit.maxWaitMillis";
+
+    private static final double DEFAULT_PER_SECOND = 0d;
+    private static final int DEFAULT_BURST = 10;
+    private static final long DEFAULT_MAX_WAIT_MILLIS = 0L;
+    /** この数を超えて送信元毎のバケットを保持している場合、満杯のバケットを破棄する. */
+    private static final int PRUNE_THRESHOLD = 10000;
+
+    private static RateLimiter sharedInstance = null;
+
+    private final TokenBucket global;
+    private final double fromPermitsPerSecond;
+    private final int fromBurst;
+    private final long maxWaitNanos;
+    private final ConcurrentMap<String, TokenBucket> fromBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final AtomicBoolean pruning = new AtomicBoolean();
+
+    /**
+     * コンストラクタ.
+     * @param globalPermitsPerSecond プロセス全体の 1秒あたりの送信数. 0以下の場合は制限しない
+     * @param globalBurst プロセス全体で連続して送信できる数
+     * @param fromPermitsPerSecond 送信元アドレス毎の 1秒あたりの送信数. 0以下の場合は制限しない
+     * @param fromBurst 送信元アドレス毎に連続して送信できる数
+     * @param maxWaitMillis トークンの補充を待つ最大時間(ミリ秒). 0の場合は待たずに拒否する
+     */
+    RateLimiter(double globalPermitsPerSecond, int globalBurst, double fromPermitsPerSecond, int fromBurst,
+            long maxWaitMillis) {
+        if (0d < globalPermitsPerSecond) {
+            this.global = new TokenBucket(globalPermitsPerSecond, globalBurst);
+        } else {
+            this.global = null;
+        }
+        this.fromPermitsPerSecond = fromPermitsPerSecond;
+        this.fromBurst = fromBurst;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, maxWaitMillis));
+    }
+
+    /**
+     * プロセス内で共有される制限を取得する. 初回呼び出し時の設定で生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有の制限
+     */
+    static synchronized RateLimiter getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            sharedInstance = new RateLimiter(
+                    ExtensionProperties.getDouble(properties, RATE_LIMIT_GLOBAL_PER_SECOND, DEFAULT_PER_SECOND),
+                    ExtensionProperties.getInt(properties, RATE_LIMIT_GLOBAL_BURST, DEFAULT_BURST),
+                    ExtensionProperties.getDouble(properties, RATE_LIMIT_FROM_PER_SECOND, DEFAULT_PER_SECOND),
+                    ExtensionProperties.getInt(properties, RATE_LIMIT_FROM_BURST, DEFAULT_BURST),
+                    ExtensionProperties.getLong(properties, RATE_LIMIT_MAX_WAIT_MILLIS, DEFAULT_MAX_WAIT_MILLIS));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * 1通分の送信の許可を得る. 必要であれば補充を待つ.
+     * @param from 送信元アドレス
+     * @return 許可された場合 true. 上限を超えている場合、または待機中に割り込まれた場合 false
+     */
+    boolean acquire(String from) {
+        long now = System.nanoTime();
+        TokenBucket fromBucket = getFromBucket(from, now);
+        long wait = 0L;
+        if (null != fromBucket) {
+            wait = fromBucket.reserve(now, maxWaitNanos);
+            if (TokenBucket.REJECTED == wait) {
+                return false;
+            }
+        }
+        if (null != global) {
+            long globalWait = global.reserve(now, maxWaitNanos);
+            if (TokenBucket.REJECTED == globalWait) {
+                if (null != fromBucket) {
+                    fromBucket.cancel();
+                }
+                return false;
+            }
+            wait = Math.max(wait, globalWait);
+        }
+        if (0L < wait) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@link #acquire(String)} で得た許可を返却する. 後続の上限で送信しなかった場合に呼び出す.
+     * @param from 送信元アドレス
+     */
+    void release(String from) {
+        if (null != from) {
+            TokenBucket fromBucket = fromBuckets.get(from.toLowerCase(Locale.ROOT));
+            if (null != fromBucket) {
+                fromBucket.cancel();
+            }
+        }
+        if (null != global) {
+            global.cancel();
+        }
+    }
+
+    /**
+     * @return 送信元アドレス毎のバケットの数
+     */
+    int getTrackedSenderCount() {
+        return fromBuckets.size();
+    }
+
+    private TokenBucket getFromBucket(String from, long now) {
+        if (0d >= fromPermitsPerSecond || null == from) {
+            return null;
+        }
+        String key = from.toLowerCase(Locale.ROOT);
+        TokenBucket bucket = fromBuckets.get(key);
+        if (null == bucket) {
+            if (PRUNE_THRESHOLD < fromBuckets.size()) {
+                prune(now);
+            }
+            TokenBucket created = new TokenBucket(fromPermitsPerSecond, fromBurst);
+            bucket = fromBuckets.putIfAbsent(key, created);
+            if (null == bucket) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    private void prune(long now) {
+        // 他のスレッドが破棄中であれば任せる
+        if (!pruning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Iterator<TokenBucket> it = fromBuckets.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().isFull(now)) {
+                    it.remove();
+                }
+            }
+        } finally {
+            pruning.set(false);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 送信先 SMTPリレーの集合.
+ * 重み付きで送信を振り分け、生存確認 (NOOP) に応答しないリレーや遮断中のリレーを振り分け先から外す.
+ */
+class RelayGroup {
+
+    /** 処理中の送信数が (重みに対して) 最も少ないリレーを選ぶ. */
+    static final String BALANCING_LEAST_OUTSTANDING = "leastOutstanding";
+    /** 重み付きラウンドロビンで選ぶ. */
+    static final String BALANCING_WEIGHTED_ROUND_ROBIN = "weightedRoundRobin";
+
+    private static final String SMTP_RELAYS = "smtp.relays";
+    private static final String SMTP_BALANCING = "smtp.balancing";
+    private static final String RELAY_HEALTH_CHECK_INTERVAL = "relay.healthCheckIntervalMillis";
+
+    private static final String DEFAULT_SMTP_PORT = "25";
+    private static final long DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS = 10000L;
+
+    private final List<Relay> relays;
+    private final boolean roundRobin;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private ScheduledExecutorService healthChecker = null;
+
+    /**
+     * コンストラクタ.
+     * @param relays リレー
+     * @param balancing 振り分け方式
+     */
+    RelayGroup(List<Relay> relays, String balancing) {
+        this.relays = Collections.unmodifiableList(new ArrayList<Relay>(relays));
+        this.roundRobin = BALANCING_WEIGHTED_ROUND_ROBIN.equals(balancing);
+    }
+
+    /**
+     * smtp.relays に設定されたリレーの集合を生成し、生存確認を開始する. 使用後は {@link #close()} を呼ぶこと.
+     * @param properties Ext_MailSender.properties の内容
+     * @param pool 生存確認に使う接続プール
+     * @return リレーの集合. smtp.relays が設定されていない場合は null
+     */
+    static RelayGroup create(Properties properties, SmtpConnectionPool pool) {
+        List<Relay> relays = parseRelays(ExtensionProperties.getString(properties, SMTP_RELAYS, null), properties);
+        if (relays.isEmpty()) {
+            return null;
+        }
+        RelayGroup group = new RelayGroup(relays,
+                ExtensionProperties.getString(properties, SMTP_BALANCING, BALANCING_LEAST_OUTSTANDING));
+        group.startHealthCheck(pool, ExtensionProperties.getLong(properties, RELAY_HEALTH_CHECK_INTERVAL,
+                DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS));
+        return group;
+    }
+
+    /**
+     * リレー 1台だけの集合を生成する. 生存確認は行わない.
+     * @param host SMTPホスト
+     * @param port SMTPポート
+     * @param properties Ext_MailSender.properties の内容
+     * @return リレーの集合
+     */
+    static RelayGroup single(String host, String port, Properties properties) {
+        return new RelayGroup(Collections.singletonList(new Relay(host, port, 1, properties)),
+                BALANCING_LEAST_OUTSTANDING);
+    }
+
+    /**
+     * "host:port:weight,host:port:weight,..." 形式の設定を解析する. port と weight は省略できる.
+     * @param value 設定値
+     * @param properties Ext_MailSender.properties の内容
+     * @return リレー
+     */
+    static List<Relay> parseRelays(String value, Properties properties) {
+        List<Relay> relays = new ArrayList<Relay>();
+        if (null == value) {
+            return relays;
+        }
+        for (String item : value.split(",")) {
+            String[] parts = item.trim().split(":");
+            if (parts[0].isEmpty()) {
+                continue;
+            }
+            String port = DEFAULT_SMTP_PORT;
+            if (1 < parts.length && !parts[1].isEmpty()) {
+                port = parts[1];
+            }
+            int weight = 1;
+            if (2 < parts.length) {
+                try {
+                    weight = Integer.parseInt(parts[2]);
+                } catch (NumberFormatException e) {
+                    weight = 1;
+                }
+            }
+            relays.add(new Relay(parts[0], port, weight, properties));
+        }
+        return relays;
+    }
+
+    /**
+     * @return リレー
+     */
+    List<Relay> getRelays() {
+        return relays;
+    }
+
+    /**
+     * 送信先のリレーを選ぶ. 応答の無いリレーと avoid に含まれるリレーは、他に候補が無い場合に限り選ぶ.
+     * @param avoid 今回の送信で既に失敗したリレー
+     * @return リレー. 全てのリレーが遮断中の場合は null
+     */
+    Relay select(Collection<Relay> avoid) {
+        List<Relay> candidates = new ArrayList<Relay>(relays.size());
+        for (Relay relay : relays) {
+            if (relay.healthy && !relay.breaker.isOpen() && !avoid.contains(relay)) {
+                candidates.add(relay);
+            }
+        }
+        if (candidates.isEmpty()) {
+            for (Relay relay : relays) {
+                if (!relay.breaker.isOpen()) {
+                    candidates.add(relay);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        if (roundRobin) {
+            return selectRoundRobin(candidates);
+        }
+        return selectLeastOutstanding(candidates);
+    }
+
+    /**
+     * avoid に含まれない利用可能なリレーがあるかを判定する.
+     * @param avoid 今回の送信で既に失敗したリレー
+     * @return 他に利用可能なリレーがある場合 true
+     */
+    boolean hasAlternative(Collection<Relay> avoid) {
+        for (Relay relay : relays) {
+            if (relay.healthy && !relay.breaker.isOpen() && !avoid.contains(relay)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 全てのリレーの生存を確認する.
+     * @param pool 接続プール
+     */
+    void checkHealth(SmtpConnectionPool pool) {
+        for (Relay relay : relays) {
+            relay.healthy = pool.probe(relay.host, relay.port);
+        }
+    }
+
+    private Relay selectLeastOutstanding(List<Relay> candidates) {
+        // outstanding / weight が最小のものを選ぶ. 除算を避けて交差乗算で比較し、
+        // 同点の場合に先頭のリレーへ偏らないよう走査の開始位置をずらす
+        int size = candidates.size();
+        int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Relay best = null;
+        for (int i = 0; i < size; i++) {
+            Relay relay = candidates.get((start + i) % size);
+            if (null == best
+                    || (long) relay.outstanding.get() * best.weight < (long) best.outstanding.get() * relay.weight) {
+                best = relay;
+            }
+        }
+        return best;
+    }
+
+    private synchronized Relay selectRoundRobin(List<Relay> candidates) {
+        // smooth weighted round robin
+        int total = 0;
+        Relay best = null;
+        for (Relay relay : candidates) {
+            relay.currentWeight += relay.weight;
+            total += relay.weight;
+            if (null == best || best.currentWeight < relay.currentWeight) {
+                best = relay;
+            }
+        }
+        best.currentWeight -= total;
+        return best;
+    }
+
+    private synchronized void startHealthCheck(final SmtpConnectionPool pool, long intervalMillis) {
+        if (null != healthChecker || 0 >= intervalMillis) {
+            return;
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MailSender-RelayGroup-healthCheck");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkHealth(pool);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 生存確認を停止する. 送信中のメッセージには影響しない.
+     */
+    synchronized void close() {
+        if (null != healthChecker) {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+    }
+
+    /**
+     * SMTPリレー.
+     */
+    static final class Relay {
+        private final String host;
+        private final String port;
+        private final int weight;
+        private final CircuitBreaker breaker;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile boolean healthy = true;
+        private int currentWeight = 0;
+
+        Relay(String host, String port, int weight, Properties properties) {
+            this.host = host;
+            this.port = port;
+            this.weight = Math.max(1, weight);
+            this.breaker = CircuitBreaker.forRelay(host + ":" + port, properties);
+        }
+
+        /**
+         * @return SMTPホスト
+         */
+        String getHost() {
+            return host;
+        }
+
+        /**
+         * @return SMTPポート
+         */
+        String getPort() {
+            return port;
+        }
+
+        /**
+         * @return 重み
+         */
+        int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return サーキットブレーカ
+         */
+        CircuitBreaker getBreaker() {
+            return breaker;
+        }
+
+        /**
+         * @return 処理中の送信数
+         */
+        AtomicInteger getOutstanding() {
+            return outstanding;
+        }
+
+        /**
+         * @return 生存確認に応答している場合 true
+         */
+        boolean isHealthy() {
+            return healthy;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
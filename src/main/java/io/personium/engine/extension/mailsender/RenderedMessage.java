@@ -0,0 +1,178 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/**
+ * エンコード済みの MIMEメッセージを宛先毎に再利用して送信するためのメッセージ.
+ * To, Cc, Date, Message-ID を除いたメッセージを 1度だけバイト列に書き出しておき、送信時はその前に
+ * 宛先毎の To, Cc と送信毎の Date, Message-IDヘッダを付けて書き出す. 宛先毎の再エンコードは行わない.
+ * 書き出し済みのメッセージをそのまま、または DKIM署名などのヘッダを付けて送信する場合にも用いる.
+ */
+final class RenderedMessage extends SMTPMessage {
+
+    private static final String CRLF = "\r\n";
+    private static final String TO_HEADER = "To: ";
+    private static final String CC_HEADER = "Cc: ";
+    private static final String DATE_HEADER_NAME = "Date";
+    private static final String DATE_HEADER = DATE_HEADER_NAME + ": ";
+    private static final String MESSAGE_ID_HEADER_NAME = "Message-ID";
+    private static final String MESSAGE_ID_HEADER = MESSAGE_ID_HEADER_NAME + ": <";
+    private static final String DEFAULT_DOMAIN = "localhost";
+
+    private static final byte[] NO_HEADER = new byte[0];
+
+    /** 全宛先で共有するメッセージ. 変更しないこと. */
+    private final byte[] content;
+    /** content の前に書き出すヘッダ. */
+    private final byte[] prefix;
+    private final Address[] recipients;
+
+    /**
+     * コンストラクタ.
+     * @param session Session
+     * @param content {@link #render(MimeMessage)} で書き出したメッセージ
+     * @param recipient 宛先
+     * @param envelopeFrom envelope-from
+     */
+    RenderedMessage(Session session, byte[] content, InternetAddress recipient, String envelopeFrom) {
+        this(session, content, new InternetAddress[] {recipient}, null, new Address[] {recipient}, envelopeFrom);
+    }
+
+    /**
+     * コンストラクタ.
+     * @param session Session
+     * @param content {@link #render(MimeMessage)} で書き出したメッセージ
+     * @param to Toヘッダの宛先. 無い場合は null
+     * @param cc Ccヘッダの宛先. 無い場合は null
+     * @param recipients エンベロープの宛先 (To, Cc, Bcc の全て)
+     * @param envelopeFrom envelope-from
+     */
+    RenderedMessage(Session session, byte[] content, InternetAddress[] to, InternetAddress[] cc,
+            Address[] recipients, String envelopeFrom) {
+        this(session, buildHeader(to, cc, envelopeFrom), content, recipients, envelopeFrom);
+    }
+
+    private RenderedMessage(Session session, byte[] prefix, byte[] content, Address[] recipients,
+            String envelopeFrom) {
+        super(session);
+        this.prefix = prefix;
+        this.content = content;
+        this.recipients = recipients;
+        setEnvelopeFrom(envelopeFrom);
+    }
+
+    /**
+     * 書き出し済みのメッセージをそのまま送信するメッセージを生成する. ヘッダは追加しない.
+     * @param session Session
+     * @param content 書き出し済みのメッセージ. Bcc, Content-Lengthヘッダを含まないこと
+     * @param recipients エンベロープの宛先
+     * @param envelopeFrom envelope-from
+     * @return メッセージ
+     */
+    static RenderedMessage of(Session session, byte[] content, Address[] recipients, String envelopeFrom) {
+        return new RenderedMessage(session, NO_HEADER, content, recipients, envelopeFrom);
+    }
+
+    /**
+     * 書き出し済みのメッセージの前にヘッダを付けて送信するメッセージを生成する.
+     * @param session Session
+     * @param header 先頭に付けるヘッダ (CRLFで終わること)
+     * @param content 書き出し済みのメッセージ. Bcc, Content-Lengthヘッダを含まないこと
+     * @param recipients エンベロープの宛先
+     * @param envelopeFrom envelope-from
+     * @return メッセージ
+     */
+    static RenderedMessage withHeader(Session session, byte[] header, byte[] content, Address[] recipients,
+            String envelopeFrom) {
+        return new RenderedMessage(session, header, content, recipients, envelopeFrom);
+    }
+
+    /**
+     * 宛先を除いたメッセージをバイト列に書き出す. Date, Message-IDは送信毎に付与するため取り除く.
+     * @param message To, Cc, Bccを設定していない保存済みのメッセージ
+     * @return メッセージのバイト列
+     * @throws MessagingException メッセージが不正な場合
+     * @throws IOException 書き出しに失敗した場合
+     */
+    static byte[] render(MimeMessage message) throws MessagingException, IOException {
+        message.removeHeader(DATE_HEADER_NAME);
+        message.removeHeader(MESSAGE_ID_HEADER_NAME);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Address[] getAllRecipients() {
+        return recipients.clone();
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        os.write(prefix);
+        os.write(content);
+    }
+
+    @Override
+    public void writeTo(OutputStream os, String[] ignoreList) throws IOException {
+        // 共有するメッセージには Bcc, Content-Lengthを含めないため ignoreListは考慮不要
+        writeTo(os);
+    }
+
+    private static byte[] buildHeader(InternetAddress[] to, InternetAddress[] cc, String envelopeFrom) {
+        StringBuilder header = new StringBuilder();
+        appendAddressHeader(header, TO_HEADER, to);
+        appendAddressHeader(header, CC_HEADER, cc);
+        // MailDateFormatはスレッドセーフではないため送信毎に生成する
+        header.append(DATE_HEADER).append(new MailDateFormat().format(new Date())).append(CRLF);
+        header.append(MESSAGE_ID_HEADER).append(UUID.randomUUID()).append('@').append(domainOf(envelopeFrom))
+                .append('>').append(CRLF);
+        return header.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendAddressHeader(StringBuilder header, String name, InternetAddress[] addresses) {
+        if (null == addresses || 0 == addresses.length) {
+            return;
+        }
+        // 折り返し位置はヘッダ名の分だけずらして数える
+        header.append(name).append(InternetAddress.toString(addresses, name.length())).append(CRLF);
+    }
+
+    private static String domainOf(String address) {
+        int at = address.lastIndexOf('@');
+        if (0 > at || address.length() - 1 == at) {
+            return DEFAULT_DOMAIN;
+        }
+        return address.substring(at + 1);
+    }
+}
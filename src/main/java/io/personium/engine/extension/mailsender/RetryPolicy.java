@@ -0,0 +1,199 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * SMTP送信の再試行方針.
+ * 一時的な失敗 (4xx応答, 接続の失敗・タイムアウト) のみを、ジッタ付きの指数バックオフで再試行する.
+ * メッセージの書き出しを始めた後に応答を得られなかった場合は、サーバが受理した可能性があるため再試行しない.
+ */
+class RetryPolicy {
+
+    private static final String RETRY_MAX_ATTEMPTS = "retry.maxAttempts";
+    private static final String RETRY_INITIAL_BACKOFF = "retry.initialBackoffMillis";
+    private static final String RETRY_MAX_BACKOFF = "retry.maxBackoffMillis";
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 200L;
+    private static final long DEFAULT_MAX_BACKOFF_MILLIS = 5000L;
+
+    private static final int TRANSIENT_REPLY_MIN = 400;
+    private static final int TRANSIENT_REPLY_MAX = 499;
+    private static final int MAX_SHIFT = 30;
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    /**
+     * コンストラクタ.
+     * @param maxAttempts 最大試行回数 (初回を含む)
+     * @param initialBackoffMillis 初回の再試行までの最大待ち時間(ミリ秒)
+     * @param maxBackoffMillis 再試行までの待ち時間の上限(ミリ秒)
+     */
+    RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = Math.max(0L, initialBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * 設定から再試行方針を生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 再試行方針
+     */
+    static RetryPolicy fromProperties(Properties properties) {
+        return new RetryPolicy(
+                ExtensionProperties.getInt(properties, RETRY_MAX_ATTEMPTS, DEFAULT_MAX_ATTEMPTS),
+                ExtensionProperties.getLong(properties, RETRY_INITIAL_BACKOFF, DEFAULT_INITIAL_BACKOFF_MILLIS),
+                ExtensionProperties.getLong(properties, RETRY_MAX_BACKOFF, DEFAULT_MAX_BACKOFF_MILLIS));
+    }
+
+    /**
+     * @return 最大試行回数 (初回を含む)
+     */
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * 再試行すべき一時的な失敗かどうかを判定する.
+     * @param e 送信時の例外
+     * @return 一時的な失敗の場合 true
+     */
+    boolean isTransient(MessagingException e) {
+        // 一部の宛先へ送信済みの場合、再送すると重複して届くため再試行しない
+        if (e instanceof SendFailedException) {
+            Address[] sent = ((SendFailedException) e).getValidSentAddresses();
+            if (null != sent && 0 < sent.length) {
+                return false;
+            }
+        }
+        Throwable current = e;
+        while (null != current) {
+            int returnCode = getReturnCode(current);
+            if (0 < returnCode) {
+                return TRANSIENT_REPLY_MIN <= returnCode && returnCode <= TRANSIENT_REPLY_MAX;
+            }
+            // ConnectException, NoRouteToHostException は SocketException, SocketTimeoutException は
+            // InterruptedIOException に含まれる
+            if (current instanceof SocketException || current instanceof InterruptedIOException) {
+                return true;
+            }
+            current = next(current);
+        }
+        return false;
+    }
+
+    /**
+     * 送信の段階を踏まえて、再試行すべき一時的な失敗かどうかを判定する.
+     * @param e 送信時の例外
+     * @param dataStarted メッセージの書き出しを始めていた場合 true
+     * @return 再試行すべき場合 true
+     */
+    boolean isTransient(MessagingException e, boolean dataStarted) {
+        // 書き出し後に応答が無いまま失敗した場合、受理されている可能性があり再送すると重複して届く
+        if (dataStarted && 0 >= findReturnCode(e)) {
+            return false;
+        }
+        return isTransient(e);
+    }
+
+    /**
+     * 再試行までの待ち時間を求める. 指数的に増える上限値から一様に選ぶ (full jitter).
+     * @param attempt 失敗した試行の回数 (1以上)
+     * @return 待ち時間(ミリ秒)
+     */
+    long backoffMillis(int attempt) {
+        int shift = Math.min(MAX_SHIFT, Math.max(0, attempt - 1));
+        long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << shift);
+        if (0L >= ceiling) {
+            return 0L;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * 再試行まで待機する.
+     * @param attempt 失敗した試行の回数 (1以上)
+     * @throws MessagingException 待機中に割り込まれた場合
+     */
+    void sleep(int attempt) throws MessagingException {
+        try {
+            Thread.sleep(backoffMillis(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting to retry.", e);
+        }
+    }
+
+    /**
+     * 例外の原因を辿り、SMTPサーバの応答コードを取得する.
+     * @param e 送信時の例外
+     * @return 応答コード. 応答コードを含まない場合は 0
+     */
+    static int findReturnCode(MessagingException e) {
+        Throwable current = e;
+        while (null != current) {
+            int returnCode = getReturnCode(current);
+            if (0 < returnCode) {
+                return returnCode;
+            }
+            current = next(current);
+        }
+        return 0;
+    }
+
+    private static int getReturnCode(Throwable t) {
+        if (t instanceof SMTPSendFailedException) {
+            return ((SMTPSendFailedException) t).getReturnCode();
+        }
+        if (t instanceof SMTPAddressFailedException) {
+            return ((SMTPAddressFailedException) t).getReturnCode();
+        }
+        if (t instanceof SMTPSenderFailedException) {
+            return ((SMTPSenderFailedException) t).getReturnCode();
+        }
+        return 0;
+    }
+
+    private static Throwable next(Throwable t) {
+        if (t instanceof MessagingException) {
+            Exception nextException = ((MessagingException) t).getNextException();
+            if (null != nextException) {
+                return nextException;
+            }
+        }
+        if (t.getCause() == t) {
+            return null;
+        }
+        return t.getCause();
+    }
+}
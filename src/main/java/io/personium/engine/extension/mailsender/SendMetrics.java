@@ -0,0 +1,230 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * 送信処理の段階毎の所要時間と結果の件数.
+ * プロセス内で共有され、JMX (MXBean) として公開される.
+ */
+class SendMetrics implements MailSenderMetricsMXBean {
+
+    /** MXBeanの ObjectName. */
+    static final String OBJECT_NAME = "io.personium.engine.extension:type=MailSender,name=SendMetrics";
+
+    /**
+     * 送信処理の段階.
+     */
+    enum Phase {
+        /** JSONからの値の取り出し. */
+        EXTRACT,
+        /** リクエストの検証. */
+        VALIDATE,
+        /** MIMEメッセージの組み立て. */
+        BUILD,
+        /** saveChanges. */
+        SAVE_CHANGES,
+        /** SMTP接続の取得. */
+        CONNECT,
+        /** MAIL FROM から DATA 終了まで. */
+        DATA
+    }
+
+    private static final String METRICS_JMX_ENABLED = "metrics.jmx.enabled";
+
+    private static final double P50 = 50d;
+    private static final double P90 = 90d;
+    private static final double P99 = 99d;
+
+    private static SendMetrics sharedInstance = null;
+
+    private final Map<Phase, LatencyHistogram> histograms = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+    private final LongAdder successCount = new LongAdder();
+    private final LongAdder invalidRequestCount = new LongAdder();
+    private final LongAdder sendFailedCount = new LongAdder();
+    private final LongAdder messagingErrorCount = new LongAdder();
+    private final LongAdder rateLimitedCount = new LongAdder();
+
+    /**
+     * コンストラクタ.
+     */
+    SendMetrics() {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * プロセス内で共有される計測値を取得する. 初回呼び出し時に MXBeanを登録する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有の計測値
+     */
+    static synchronized SendMetrics getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            sharedInstance = new SendMetrics();
+            if (ExtensionProperties.getBoolean(properties, METRICS_JMX_ENABLED, true)) {
+                sharedInstance.register();
+            }
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * 段階の所要時間を記録する.
+     * @param phase 段階
+     * @param startNanos 開始時刻 (System.nanoTime())
+     * @return 終了時刻. 続く段階の開始時刻として使える
+     */
+    long record(Phase phase, long startNanos) {
+        long now = System.nanoTime();
+        histograms.get(phase).record(now - startNanos);
+        return now;
+    }
+
+    /**
+     * 送信の成功を記録する.
+     */
+    void recordSuccess() {
+        successCount.increment();
+    }
+
+    /**
+     * リクエスト内容の不備を記録する.
+     */
+    void recordInvalidRequest() {
+        invalidRequestCount.increment();
+    }
+
+    /**
+     * 送信レートの上限による拒否を記録する.
+     */
+    void recordRateLimited() {
+        rateLimitedCount.increment();
+    }
+
+    /**
+     * 送信の失敗を記録する.
+     * @param e 送信時の例外
+     */
+    void recordFailure(MessagingException e) {
+        if (e instanceof SendFailedException) {
+            sendFailedCount.increment();
+        } else {
+            messagingErrorCount.increment();
+        }
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return successCount.sum();
+    }
+
+    @Override
+    public long getInvalidRequestCount() {
+        return invalidRequestCount.sum();
+    }
+
+    @Override
+    public long getSendFailedCount() {
+        return sendFailedCount.sum();
+    }
+
+    @Override
+    public long getMessagingErrorCount() {
+        return messagingErrorCount.sum();
+    }
+
+    @Override
+    public long getRateLimitedCount() {
+        return rateLimitedCount.sum();
+    }
+
+    @Override
+    public PhaseStatistics getExtract() {
+        return getStatistics(Phase.EXTRACT);
+    }
+
+    @Override
+    public PhaseStatistics getValidate() {
+        return getStatistics(Phase.VALIDATE);
+    }
+
+    @Override
+    public PhaseStatistics getBuild() {
+        return getStatistics(Phase.BUILD);
+    }
+
+    @Override
+    public PhaseStatistics getSaveChanges() {
+        return getStatistics(Phase.SAVE_CHANGES);
+    }
+
+    @Override
+    public PhaseStatistics getConnect() {
+        return getStatistics(Phase.CONNECT);
+    }
+
+    @Override
+    public PhaseStatistics getData() {
+        return getStatistics(Phase.DATA);
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        successCount.reset();
+        invalidRequestCount.reset();
+        sendFailedCount.reset();
+        messagingErrorCount.reset();
+        rateLimitedCount.reset();
+    }
+
+    /**
+     * 段階の所要時間の統計を返す.
+     * @param phase 段階
+     * @return 統計
+     */
+    PhaseStatistics getStatistics(Phase phase) {
+        LatencyHistogram histogram = histograms.get(phase);
+        return new PhaseStatistics(histogram.getCount(), histogram.getMeanMicros(), histogram.getMaxMicros(),
+                histogram.getPercentileMicros(P50), histogram.getPercentileMicros(P90),
+                histogram.getPercentileMicros(P99));
+    }
+
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // 別のクラスローダから登録済みの場合はそちらを優先する
+        } catch (JMException e) {
+            // JMXが利用できない場合も送信処理は継続する
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.Properties;
+
+import javax.mail.Session;
+
+/**
+ * javax.mail.Session のキャッシュ.
+ * (smtp.host, smtp.port) 毎に Sessionを保持し、送信毎の Properties生成とプロバイダ検索を省く.
+ * Sessionはメッセージの生成にのみ用い、送信はプールした接続の Sessionで行うため、
+ * envelope-fromは Sessionではなくメッセージ側に持たせる.
+ */
+class SessionCache {
+
+    private static final String JAVAMAIL_SMTP_PORT_KEY = "mail.smtp.port";
+    private static final String JAVAMAIL_SMTP_HOST_KEY = "mail.smtp.host";
+
+    private static final String SESSION_CACHE_SIZE = "session.cacheSize";
+    private static final int DEFAULT_CACHE_SIZE = 64;
+    private static final char KEY_SEPARATOR = '\0';
+
+    private static SessionCache sharedInstance = null;
+
+    private final LruCache<String, Session> sessions;
+
+    /**
+     * コンストラクタ.
+     * @param maxSize 保持する Sessionの最大数
+     */
+    SessionCache(int maxSize) {
+        this.sessions = new LruCache<String, Session>(maxSize);
+    }
+
+    /**
+     * プロセス内で共有されるキャッシュを取得する. 初回呼び出し時の設定でキャッシュを生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有キャッシュ
+     */
+    static synchronized SessionCache getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            sharedInstance = new SessionCache(
+                    ExtensionProperties.getInt(properties, SESSION_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Sessionを取得する. キャッシュに無い場合は生成して格納する.
+     * @param host SMTPホスト
+     * @param port SMTPポート
+     * @return Session
+     */
+    Session getSession(String host, String port) {
+        String key = new StringBuilder(host).append(KEY_SEPARATOR).append(port).toString();
+
+        Session session = sessions.get(key);
+        if (null != session) {
+            return session;
+        }
+
+        Properties prop = new Properties();
+        prop.put(JAVAMAIL_SMTP_HOST_KEY, host);
+        prop.put(JAVAMAIL_SMTP_PORT_KEY, port);
+        return sessions.putIfAbsent(key, Session.getInstance(prop));
+    }
+
+    /**
+     * @return ヒット数
+     */
+    long getHitCount() {
+        return sessions.getHitCount();
+    }
+
+    /**
+     * @return ミス数
+     */
+    long getMissCount() {
+        return sessions.getMissCount();
+    }
+
+    /**
+     * @return 保持している Sessionの数
+     */
+    int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * 同じホストの複数のプロセス(JVM)で共有する送信数の上限.
+ * メモリマップしたファイル上の時間枠毎のカウンタで直近の時間枠の送信数を数え (スライディングウィンドウ)、
+ * 全プロセスの合計が上限を超える送信を拒否する. カウンタの更新はファイルロックで排他する.
+ * FileChannelは割り込まれたスレッドが操作すると閉じられるため、ロック中は呼び出し元の割り込み状態を退避し、
+ * 閉じられていた場合は開き直す. マップしたカウンタはチャネルを閉じても有効なまま使い続ける.
+ * <pre>
+ * ファイルの構成
+ *   magic(int) slots(int) windowMillis(long) reserved(long)
+ *   slots 個の [時間枠の番号(long) 送信数(long)]
+ * </pre>
+ */
+class SharedQuota {
+
+    private static final String QUOTA_FILE = "quota.file";
+    private static final String QUOTA_LIMIT = "quota.limit";
+    private static final String QUOTA_WINDOW_MILLIS = "quota.windowMillis";
+    private static final String QUOTA_MAX_WAIT_MILLIS = "quota.maxWaitMillis";
+
+    private static final int DEFAULT_LIMIT = 0;
+    private static final long DEFAULT_WINDOW_MILLIS = 60000L;
+    private static final long DEFAULT_MAX_WAIT_MILLIS = 0L;
+
+    private static final int MAGIC = 0x4D535131;
+    /** 時間枠の数. ウィンドウをこの数に分割して数える. */
+    private static final int SLOTS = 60;
+    private static final int HEADER_SIZE = 24;
+    private static final int SLOT_SIZE = 16;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SLOTS_OFFSET = 4;
+    private static final int WINDOW_OFFSET = 8;
+
+    /**
+     * ファイルロックは JVM単位で保持されるため、同じ JVM内のスレッド間はこのモニタで排他する.
+     */
+    private static final Object JVM_LOCK = new Object();
+
+    private static SharedQuota sharedInstance = null;
+
+    private final int limit;
+    private final long slotMillis;
+    private final long maxWaitMillis;
+    private final Path path;
+    private final MappedByteBuffer counters;
+    /** JVM_LOCK で保護する. */
+    private FileChannel channel;
+    /** JVM_LOCK で保護する. */
+    private boolean closed = false;
+    /** ロックしたスレッドの割り込み状態を解放時に戻す場合 true. JVM_LOCK で保護する. */
+    private boolean restoreInterrupt = false;
+
+    /**
+     * コンストラクタ. ファイルが無い場合は作成して初期化する.
+     * @param file カウンタのファイル
+     * @param limit ウィンドウ内の送信数の上限
+     * @param windowMillis ウィンドウの長さ(ミリ秒)
+     * @param maxWaitMillis 上限を超えている場合に待つ最大時間(ミリ秒). 0の場合は待たずに拒否する
+     * @throws IOException ファイルの読み書きに失敗した場合、または他のプロセスと設定が異なる場合
+     */
+    SharedQuota(File file, int limit, long windowMillis, long maxWaitMillis) throws IOException {
+        this.limit = limit;
+        this.slotMillis = Math.max(1L, windowMillis / SLOTS);
+        this.maxWaitMillis = Math.max(0L, maxWaitMillis);
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (null != directory && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create quota directory: " + directory);
+        }
+        this.path = file.toPath();
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            this.counters = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + SLOTS * SLOT_SIZE);
+            synchronized (JVM_LOCK) {
+                FileLock lock = lockFile();
+                try {
+                    initialize(file);
+                } finally {
+                    unlockFile(lock);
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * プロセス内で共有される上限を取得する. quota.file または quota.limit が設定されていない場合は null を返す.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有の上限. 無効な場合は null
+     * @throws IOException ファイルの初期化に失敗した場合
+     */
+    static synchronized SharedQuota getInstance(Properties properties) throws IOException {
+        if (null == sharedInstance) {
+            String file = ExtensionProperties.getString(properties, QUOTA_FILE, null);
+            int limit = ExtensionProperties.getInt(properties, QUOTA_LIMIT, DEFAULT_LIMIT);
+            if (null == file || 0 >= limit) {
+                return null;
+            }
+            sharedInstance = new SharedQuota(new File(file), limit,
+                    ExtensionProperties.getLong(properties, QUOTA_WINDOW_MILLIS, DEFAULT_WINDOW_MILLIS),
+                    ExtensionProperties.getLong(properties, QUOTA_MAX_WAIT_MILLIS, DEFAULT_MAX_WAIT_MILLIS));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * 1通分の送信数を加算する. 上限に達している場合は、最大待ち時間以内に空きができるのであれば待つ.
+     * @return 加算できた場合 true. 上限に達している場合、または待機中に割り込まれた場合 false
+     * @throws IOException ファイルのロックに失敗した場合
+     */
+    boolean acquire() throws IOException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (true) {
+            long now = System.currentTimeMillis();
+            long retryAt = tryAcquire(now);
+            if (0L == retryAt) {
+                return true;
+            }
+            if (deadline < retryAt) {
+                return false;
+            }
+            try {
+                Thread.sleep(Math.max(1L, retryAt - now));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return 直近のウィンドウ内の全プロセスの送信数
+     * @throws IOException ファイルのロックに失敗した場合
+     */
+    long getCount() throws IOException {
+        long current = System.currentTimeMillis() / slotMillis;
+        synchronized (JVM_LOCK) {
+            FileLock lock = lockFile();
+            try {
+                long count = 0;
+                for (int i = 0; i < SLOTS; i++) {
+                    if (current - SLOTS < slotIndex(i)) {
+                        count += slotCount(i);
+                    }
+                }
+                return count;
+            } finally {
+                unlockFile(lock);
+            }
+        }
+    }
+
+    /**
+     * ファイルを閉じる.
+     * @throws IOException ファイルを閉じるのに失敗した場合
+     */
+    void close() throws IOException {
+        synchronized (JVM_LOCK) {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    /**
+     * 空きがあれば送信数を加算する.
+     * @param now 現在時刻(ミリ秒)
+     * @return 加算できた場合 0. できなかった場合は次に空きができる時刻(ミリ秒)
+     * @throws IOException ファイルのロックに失敗した場合
+     */
+    private long tryAcquire(long now) throws IOException {
+        long current = now / slotMillis;
+        synchronized (JVM_LOCK) {
+            FileLock lock = lockFile();
+            try {
+                long count = 0;
+                long oldest = current;
+                for (int i = 0; i < SLOTS; i++) {
+                    long index = slotIndex(i);
+                    long slotCount = slotCount(i);
+                    if (current - SLOTS < index && 0 < slotCount) {
+                        count += slotCount;
+                        oldest = Math.min(oldest, index);
+                    }
+                }
+                if (limit <= count) {
+                    // 最も古い時間枠がウィンドウから外れた時点で空きができる
+                    return (oldest + SLOTS) * slotMillis;
+                }
+                int slot = (int) (current % SLOTS);
+                if (slotIndex(slot) != current) {
+                    counters.putLong(slotOffset(slot), current);
+                    counters.putLong(slotOffset(slot) + Long.BYTES, 1L);
+                } else {
+                    counters.putLong(slotOffset(slot) + Long.BYTES, slotCount(slot) + 1L);
+                }
+                return 0L;
+            } finally {
+                unlockFile(lock);
+            }
+        }
+    }
+
+    /**
+     * ファイルをロックする. JVM_LOCK を保持して呼び出し、{@link #unlockFile(FileLock)} で解放すること.
+     * 呼び出し元の割り込み状態は解放まで退避する. チャネルが閉じられていた場合は開き直してロックする.
+     * @return ロック
+     * @throws IOException ロックに失敗した場合
+     */
+    private FileLock lockFile() throws IOException {
+        restoreInterrupt = Thread.interrupted();
+        try {
+            try {
+                return channel.lock();
+            } catch (ClosedChannelException e) {
+                if (closed) {
+                    throw e;
+                }
+                if (Thread.interrupted()) {
+                    restoreInterrupt = true;
+                }
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                return channel.lock();
+            }
+        } catch (IOException e) {
+            restoreInterruptFlag();
+            throw e;
+        }
+    }
+
+    /**
+     * ロックを解放し、退避した割り込み状態を戻す.
+     * @param lock {@link #lockFile()} で取得したロック
+     * @throws IOException 解放に失敗した場合
+     */
+    private void unlockFile(FileLock lock) throws IOException {
+        try {
+            lock.release();
+        } catch (ClosedChannelException e) {
+            // チャネルが閉じられた時点でロックも解放されている. 次のロック時に開き直す
+        } finally {
+            restoreInterruptFlag();
+        }
+    }
+
+    private void restoreInterruptFlag() {
+        if (restoreInterrupt) {
+            restoreInterrupt = false;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void initialize(File file) throws IOException {
+        int magic = counters.getInt(MAGIC_OFFSET);
+        if (0 == magic) {
+            counters.putInt(SLOTS_OFFSET, SLOTS);
+            counters.putLong(WINDOW_OFFSET, slotMillis * SLOTS);
+            counters.putInt(MAGIC_OFFSET, MAGIC);
+            return;
+        }
+        if (MAGIC != magic || SLOTS != counters.getInt(SLOTS_OFFSET)
+                || slotMillis * SLOTS != counters.getLong(WINDOW_OFFSET)) {
+            throw new IOException(String.format(
+                    "Quota file %s was created with a different configuration or is not a quota file.", file));
+        }
+    }
+
+    private long slotIndex(int slot) {
+        return counters.getLong(slotOffset(slot));
+    }
+
+    private long slotCount(int slot) {
+        return counters.getLong(slotOffset(slot) + Long.BYTES);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+}
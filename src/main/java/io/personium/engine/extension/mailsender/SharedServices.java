@@ -0,0 +1,211 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import io.personium.engine.extension.support.ExtensionLogger;
+
+/**
+ * プロセス全体で共有するサービスの集合.
+ * 初回に 1度だけ各サービスを取得し、全ての Ext_MailSenderインスタンスで使い回す.
+ * ファイルを開けずに無効としたサービスは null のまま保持し、インスタンスの生成毎に開き直したり警告を出力したりしない.
+ */
+final class SharedServices {
+
+    private static volatile SharedServices current = null;
+
+    private final SendMetrics metrics;
+    private final RateLimiter rateLimiter;
+    private final SharedQuota sharedQuota;
+    private final SmtpConnectionPool pool;
+    private final BulkSender bulkSender;
+    private final DkimSigner dkimSigner;
+    private final SessionCache sessionCache;
+    private final TemplateRegistry templateRegistry;
+    private final PreparedMessageRegistry preparedMessages;
+    private final AddressCache addressCache;
+    private final IdempotencyIndex idempotencyIndex;
+    private final OutboundQueue outboundQueue;
+    private final DeliveryStatusStore deliveryStatus;
+    private final MailSpool mailSpool;
+
+    private SharedServices(Properties properties, ExtensionLogger logger) {
+        this.metrics = SendMetrics.getInstance(properties);
+        this.rateLimiter = RateLimiter.getInstance(properties);
+        this.sharedQuota = openSharedQuota(properties, logger);
+        this.pool = SmtpConnectionPool.getInstance(properties);
+        this.bulkSender = BulkSender.getInstance(properties);
+        this.dkimSigner = DkimSigner.getInstance(properties);
+        this.sessionCache = SessionCache.getInstance(properties);
+        this.templateRegistry = TemplateRegistry.getInstance(properties);
+        this.preparedMessages = PreparedMessageRegistry.getInstance(properties);
+        this.addressCache = AddressCache.getInstance(properties);
+        this.idempotencyIndex = openIdempotencyIndex(properties, logger);
+        this.outboundQueue = OutboundQueue.getInstance(properties);
+        this.deliveryStatus = DeliveryStatusStore.getInstance(properties);
+        this.mailSpool = openMailSpool(properties, logger);
+    }
+
+    /**
+     * 共有するサービスを取得する. 初回呼び出し時の設定で各サービスを取得する.
+     * @param properties Ext_MailSender.properties の内容. 2回目以降の呼び出しでは参照しない
+     * @param logger サービスを開けなかった場合の警告の出力先
+     * @return 共有するサービス
+     */
+    static SharedServices getInstance(Properties properties, ExtensionLogger logger) {
+        SharedServices services = current;
+        if (null != services) {
+            return services;
+        }
+        synchronized (SharedServices.class) {
+            if (null == current) {
+                current = new SharedServices(properties, logger);
+            }
+            return current;
+        }
+    }
+
+    private static SharedQuota openSharedQuota(Properties properties, ExtensionLogger logger) {
+        try {
+            return SharedQuota.getInstance(properties);
+        } catch (IOException e) {
+            String message = "Failed to open quota file. Host-wide sending quota is not enforced.";
+            logger.warn(message, e);
+            return null;
+        }
+    }
+
+    private static IdempotencyIndex openIdempotencyIndex(Properties properties, ExtensionLogger logger) {
+        try {
+            return IdempotencyIndex.getInstance(properties);
+        } catch (IOException e) {
+            String message = "Failed to open idempotency file. Idempotency keys are ignored.";
+            logger.warn(message, e);
+            return null;
+        }
+    }
+
+    private static MailSpool openMailSpool(Properties properties, ExtensionLogger logger) {
+        try {
+            return MailSpool.getInstance(properties);
+        } catch (IOException e) {
+            String message = "Failed to open mail spool. Asynchronous sending is not persisted.";
+            logger.warn(message, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return 送信の計測値
+     */
+    SendMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return 送信元毎の送信レート制限
+     */
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @return ホスト全体の送信数の上限. 無効な場合は null
+     */
+    SharedQuota getSharedQuota() {
+        return sharedQuota;
+    }
+
+    /**
+     * @return SMTP接続のプール
+     */
+    SmtpConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return 一括送信の設定
+     */
+    BulkSender getBulkSender() {
+        return bulkSender;
+    }
+
+    /**
+     * @return DKIMの署名
+     */
+    DkimSigner getDkimSigner() {
+        return dkimSigner;
+    }
+
+    /**
+     * @return Sessionのキャッシュ
+     */
+    SessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    /**
+     * @return 登録済みのテンプレート
+     */
+    TemplateRegistry getTemplateRegistry() {
+        return templateRegistry;
+    }
+
+    /**
+     * @return 準備済みのメッセージ
+     */
+    PreparedMessageRegistry getPreparedMessages() {
+        return preparedMessages;
+    }
+
+    /**
+     * @return 解析済みのアドレスのキャッシュ
+     */
+    AddressCache getAddressCache() {
+        return addressCache;
+    }
+
+    /**
+     * @return 冪等キーの索引. 無効な場合は null
+     */
+    IdempotencyIndex getIdempotencyIndex() {
+        return idempotencyIndex;
+    }
+
+    /**
+     * @return 非同期送信のキュー
+     */
+    OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * @return 配送状況
+     */
+    DeliveryStatusStore getDeliveryStatus() {
+        return deliveryStatus;
+    }
+
+    /**
+     * @return 非同期送信のスプール. 無効な場合は null
+     */
+    MailSpool getMailSpool() {
+        return mailSpool;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * SMTP AUTHの設定.
+ * smtp.auth に応じて PLAIN, LOGIN または XOAUTH2 で認証する. 認証はプールの接続毎に接続時の 1度だけ行い、
+ * 送信毎には行わない. XOAUTH2のアクセストークンは {@link OAuthTokenCache} から取得する.
+ */
+final class SmtpAuth {
+
+    /** 認証方式. */
+    enum Mechanism {
+        /** 認証しない. */
+        NONE,
+        /** AUTH PLAIN. */
+        PLAIN,
+        /** AUTH LOGIN. */
+        LOGIN,
+        /** AUTH XOAUTH2 (OAuth 2.0 のアクセストークン). */
+        XOAUTH2
+    }
+
+    /** 認証しない設定. */
+    static final SmtpAuth NONE = new SmtpAuth(Mechanism.NONE, null, null, null, null);
+
+    private static final String JAVAMAIL_SMTP_AUTH_KEY = "mail.smtp.auth";
+    private static final String JAVAMAIL_SMTP_AUTH_MECHANISMS_KEY = "mail.smtp.auth.mechanisms";
+
+    private static final String SMTP_AUTH = "smtp.auth";
+    private static final String SMTP_AUTH_USER = "smtp.auth.user";
+    private static final String SMTP_AUTH_PASSWORD = "smtp.auth.password";
+
+    private static final String XOAUTH2_COMMAND = "AUTH XOAUTH2 ";
+    private static final int AUTH_SUCCEEDED = 235;
+
+    private final Mechanism mechanism;
+    private final String user;
+    private final String password;
+    private final OAuthTokenCache tokens;
+    /** 設定の誤り. 誤りがある場合は認証せずに送信せず、接続を失敗させる. */
+    private final String failure;
+
+    private SmtpAuth(Mechanism mechanism, String user, String password, OAuthTokenCache tokens, String failure) {
+        this.mechanism = mechanism;
+        this.user = user;
+        this.password = password;
+        this.tokens = tokens;
+        this.failure = failure;
+    }
+
+    /**
+     * PLAIN または LOGIN の設定を生成する.
+     * @param mechanism 認証方式
+     * @param user ユーザ名
+     * @param password パスワード
+     * @return 認証の設定
+     */
+    static SmtpAuth password(Mechanism mechanism, String user, String password) {
+        return new SmtpAuth(mechanism, user, password, null, null);
+    }
+
+    /**
+     * XOAUTH2の設定を生成する.
+     * @param user ユーザ名
+     * @param tokens アクセストークンのキャッシュ
+     * @return 認証の設定
+     */
+    static SmtpAuth oauth2(String user, OAuthTokenCache tokens) {
+        return new SmtpAuth(Mechanism.XOAUTH2, user, null, tokens, null);
+    }
+
+    /**
+     * Ext_MailSender.properties の内容から認証の設定を生成する.
+     * 認証が指定されているのにユーザ名が無い等の誤りがある場合は、認証せずに送信しないよう接続時に失敗させる.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 認証の設定
+     */
+    static SmtpAuth fromProperties(Properties properties) {
+        String value = ExtensionProperties.getString(properties, SMTP_AUTH, Mechanism.NONE.name());
+        Mechanism mechanism;
+        try {
+            mechanism = Mechanism.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return new SmtpAuth(Mechanism.NONE, null, null, null, String.format(
+                    "Unknown smtp.auth mechanism (%s). Use none, plain, login or xoauth2.", value));
+        }
+        if (Mechanism.NONE == mechanism) {
+            return NONE;
+        }
+        String user = ExtensionProperties.getString(properties, SMTP_AUTH_USER, null);
+        if (null == user) {
+            return new SmtpAuth(mechanism, null, null, null, "smtp.auth.user is not specified in configuration.");
+        }
+        if (Mechanism.XOAUTH2 == mechanism) {
+            OAuthTokenCache tokens = OAuthTokenCache.fromProperties(properties);
+            if (null == tokens) {
+                return new SmtpAuth(mechanism, user, null, null,
+                        "smtp.auth.oauth2.tokenEndpoint is not specified in configuration.");
+            }
+            tokens.start();
+            return oauth2(user, tokens);
+        }
+        return password(mechanism, user, ExtensionProperties.getString(properties, SMTP_AUTH_PASSWORD, ""));
+    }
+
+    /**
+     * JavaMailの Sessionの設定に認証の設定を加える.
+     * @param prop Sessionの設定
+     * @throws MessagingException 認証の設定に誤りがある場合
+     */
+    void configure(Properties prop) throws MessagingException {
+        if (null != failure) {
+            throw new MessagingException(failure);
+        }
+        if (Mechanism.PLAIN == mechanism || Mechanism.LOGIN == mechanism) {
+            prop.put(JAVAMAIL_SMTP_AUTH_KEY, "true");
+            prop.put(JAVAMAIL_SMTP_AUTH_MECHANISMS_KEY, mechanism.name());
+        }
+    }
+
+    /**
+     * SMTPサーバに接続し、認証する.
+     * @param transport 未接続の Transport
+     * @throws MessagingException 接続または認証に失敗した場合
+     */
+    void connect(Transport transport) throws MessagingException {
+        if (Mechanism.PLAIN == mechanism || Mechanism.LOGIN == mechanism) {
+            transport.connect(user, password);
+            return;
+        }
+        if (Mechanism.NONE == mechanism) {
+            transport.connect();
+            return;
+        }
+        // JavaMail 1.4.7 は XOAUTH2に対応していないため、接続後に AUTHコマンドを直接送る
+        String token = tokens.getToken();
+        transport.connect();
+        try {
+            ((SMTPTransport) transport).issueCommand(XOAUTH2_COMMAND + encodeXoauth2(user, token), AUTH_SUCCEEDED);
+        } catch (MessagingException e) {
+            transport.close();
+            throw e;
+        }
+    }
+
+    /**
+     * XOAUTH2の初期応答を生成する.
+     * @param user ユーザ名
+     * @param token アクセストークン
+     * @return Base64で符号化した初期応答
+     */
+    static String encodeXoauth2(String user, String token) {
+        String response = "user=" + user + "\u0001auth=Bearer " + token + "\u0001\u0001";
+        return Base64.getEncoder().encodeToString(response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return 認証方式
+     */
+    Mechanism getMechanism() {
+        return mechanism;
+    }
+}
@@ -0,0 +1,467 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * SMTP接続 (javax.mail.Transport) のプール.
+ * smtp.host / smtp.port ごとに接続済みの Transportを保持し、送信毎の TCP接続, EHLO, QUITを省く.
+ * TLSを有効にした場合、接続毎の TLSハンドシェイクもプールした接続の再利用とセッションの再開により省かれる.
+ * SMTP AUTHは接続時に 1度だけ行い、認証済みの接続を再利用する.
+ * プールはプロセス内の全 Ext_MailSenderインスタンスで共有される.
+ */
+class SmtpConnectionPool {
+
+    private static final String JAVAMAIL_SMTP_PORT_KEY = "mail.smtp.port";
+    private static final String JAVAMAIL_SMTP_HOST_KEY = "mail.smtp.host";
+    private static final String JAVAMAIL_SMTP_CONNECTION_TIMEOUT_KEY = "mail.smtp.connectiontimeout";
+    private static final String JAVAMAIL_SMTP_TIMEOUT_KEY = "mail.smtp.timeout";
+    private static final String SMTP_PROTOCOL = "smtp";
+
+    private static final String POOL_MAX_TOTAL = "pool.maxTotal";
+    private static final String POOL_MAX_IDLE = "pool.maxIdle";
+    private static final String POOL_IDLE_TIMEOUT = "pool.idleTimeoutMillis";
+    private static final String POOL_MAX_LIFETIME = "pool.maxLifetimeMillis";
+    private static final String POOL_BORROW_TIMEOUT = "pool.borrowTimeoutMillis";
+    private static final String SMTP_CONNECT_TIMEOUT = "smtp.connectTimeoutMillis";
+    private static final String SMTP_TIMEOUT = "smtp.timeoutMillis";
+
+    private static final int DEFAULT_MAX_TOTAL = 8;
+    private static final int DEFAULT_MAX_IDLE = 8;
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000L;
+    private static final long DEFAULT_MAX_LIFETIME_MILLIS = 300000L;
+    private static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 10000L;
+    private static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000L;
+    private static final long DEFAULT_TIMEOUT_MILLIS = 60000L;
+    private static final long MIN_EVICTION_INTERVAL_MILLIS = 1000L;
+
+    private static SmtpConnectionPool sharedInstance = null;
+
+    private final int maxTotal;
+    private final int maxIdle;
+    private final long idleTimeoutMillis;
+    private final long maxLifetimeMillis;
+    private final long borrowTimeoutMillis;
+    private final long connectTimeoutMillis;
+    private final long timeoutMillis;
+    private final SmtpTls tls;
+    private final SmtpAuth auth;
+
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+    private ScheduledExecutorService evictor = null;
+
+    /**
+     * コンストラクタ.
+     * @param settings プールの設定
+     */
+    SmtpConnectionPool(Settings settings) {
+        this.maxTotal = Math.max(1, settings.maxTotal);
+        this.maxIdle = Math.max(0, settings.maxIdle);
+        this.idleTimeoutMillis = settings.idleTimeoutMillis;
+        this.maxLifetimeMillis = settings.maxLifetimeMillis;
+        this.borrowTimeoutMillis = settings.borrowTimeoutMillis;
+        this.connectTimeoutMillis = settings.connectTimeoutMillis;
+        this.timeoutMillis = settings.timeoutMillis;
+        this.tls = settings.tls;
+        this.auth = settings.auth;
+    }
+
+    /**
+     * プロセス内で共有されるプールを取得する. 初回呼び出し時の設定でプールを生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有プール
+     */
+    static synchronized SmtpConnectionPool getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            SmtpConnectionPool pool = new SmtpConnectionPool(new Settings()
+                    .maxTotal(ExtensionProperties.getInt(properties, POOL_MAX_TOTAL, DEFAULT_MAX_TOTAL))
+                    .maxIdle(ExtensionProperties.getInt(properties, POOL_MAX_IDLE, DEFAULT_MAX_IDLE))
+                    .idleTimeoutMillis(ExtensionProperties.getLong(properties, POOL_IDLE_TIMEOUT,
+                            DEFAULT_IDLE_TIMEOUT_MILLIS))
+                    .maxLifetimeMillis(ExtensionProperties.getLong(properties, POOL_MAX_LIFETIME,
+                            DEFAULT_MAX_LIFETIME_MILLIS))
+                    .borrowTimeoutMillis(ExtensionProperties.getLong(properties, POOL_BORROW_TIMEOUT,
+                            DEFAULT_BORROW_TIMEOUT_MILLIS))
+                    .connectTimeoutMillis(ExtensionProperties.getLong(properties, SMTP_CONNECT_TIMEOUT,
+                            DEFAULT_CONNECT_TIMEOUT_MILLIS))
+                    .timeoutMillis(ExtensionProperties.getLong(properties, SMTP_TIMEOUT, DEFAULT_TIMEOUT_MILLIS))
+                    .tls(SmtpTls.fromProperties(properties))
+                    .auth(SmtpAuth.fromProperties(properties)));
+            pool.startEvictor();
+            sharedInstance = pool;
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * 接続を借り出す. アイドル接続があれば生存確認(NOOP)の上で再利用し、無ければ新規に接続する.
+     * 使用後は必ず {@link #release(PooledConnection)} または {@link #invalidate(PooledConnection)} を呼ぶこと.
+     * @param host SMTPホスト
+     * @param port SMTPポート
+     * @return 接続済みの接続
+     * @throws MessagingException 接続に失敗した場合、または空き待ちがタイムアウトした場合
+     */
+    PooledConnection borrow(String host, String port) throws MessagingException {
+        Partition partition = getPartition(host, port);
+        try {
+            if (!partition.permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new MessagingException(String.format(
+                        "Timed out waiting for an SMTP connection to %s.", partition.key));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for an SMTP connection.", e);
+        }
+
+        try {
+            PooledConnection connection = partition.pollIdle();
+            while (null != connection) {
+                if (!isExpired(connection, System.currentTimeMillis()) && connection.transport.isConnected()) {
+                    return connection;
+                }
+                connection.close();
+                connection = partition.pollIdle();
+            }
+            // 送信の失敗時に再試行の可否を判断できるよう、書き出しの開始を記録する Transportを用いる
+            Transport transport = new TrackedSmtpTransport(partition.session);
+            auth.connect(transport);
+            return new PooledConnection(partition, transport);
+        } catch (MessagingException e) {
+            partition.permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            partition.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 正常に使い終えた接続をプールに戻す.
+     * @param connection 接続
+     */
+    void release(PooledConnection connection) {
+        Partition partition = connection.partition;
+        long now = System.currentTimeMillis();
+        connection.lastUsedAt = now;
+        if (isExpired(connection, now) || !partition.offerIdle(connection, maxIdle)) {
+            connection.close();
+        }
+        partition.permits.release();
+    }
+
+    /**
+     * 送信中にエラーが発生した接続を破棄する.
+     * @param connection 接続
+     */
+    void invalidate(PooledConnection connection) {
+        connection.close();
+        connection.partition.permits.release();
+    }
+
+    /**
+     * SMTPサーバの生存を確認する. プールとは別に接続し、NOOPの応答を確認して切断する.
+     * @param host SMTPホスト
+     * @param port SMTPポート
+     * @return 応答があった場合 true
+     */
+    boolean probe(String host, String port) {
+        Transport transport = null;
+        try {
+            transport = getPartition(host, port).session.getTransport(SMTP_PROTOCOL);
+            auth.connect(transport);
+            return transport.isConnected();
+        } catch (MessagingException e) {
+            return false;
+        } finally {
+            if (null != transport) {
+                try {
+                    transport.close();
+                } catch (MessagingException e) {
+                    // 切断時のエラーは無視する
+                }
+            }
+        }
+    }
+
+    /**
+     * 保持している全てのアイドル接続を切断する.
+     */
+    void closeAll() {
+        for (Partition partition : partitions.values()) {
+            for (PooledConnection connection : partition.drainIdle()) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * アイドル時間または寿命を超えた接続を切断する.
+     */
+    void evict() {
+        long now = System.currentTimeMillis();
+        for (Partition partition : partitions.values()) {
+            for (PooledConnection connection : partition.removeIdleIf(this, now)) {
+                connection.close();
+            }
+        }
+    }
+
+    private boolean isExpired(PooledConnection connection, long now) {
+        return 0 < maxLifetimeMillis && maxLifetimeMillis <= now - connection.createdAt;
+    }
+
+    private boolean isIdleTooLong(PooledConnection connection, long now) {
+        return 0 < idleTimeoutMillis && idleTimeoutMillis <= now - connection.lastUsedAt;
+    }
+
+    private Partition getPartition(String host, String port) throws MessagingException {
+        String key = host + ":" + port;
+        Partition partition = partitions.get(key);
+        if (null == partition) {
+            Properties prop = new Properties();
+            prop.put(JAVAMAIL_SMTP_HOST_KEY, host);
+            prop.put(JAVAMAIL_SMTP_PORT_KEY, port);
+            if (0 < connectTimeoutMillis) {
+                prop.put(JAVAMAIL_SMTP_CONNECTION_TIMEOUT_KEY, String.valueOf(connectTimeoutMillis));
+            }
+            if (0 < timeoutMillis) {
+                prop.put(JAVAMAIL_SMTP_TIMEOUT_KEY, String.valueOf(timeoutMillis));
+            }
+            tls.configure(prop);
+            auth.configure(prop);
+            Partition created = new Partition(key, Session.getInstance(prop), maxTotal);
+            partition = partitions.putIfAbsent(key, created);
+            if (null == partition) {
+                partition = created;
+            }
+        }
+        return partition;
+    }
+
+    private synchronized void startEvictor() {
+        if (null != evictor || 0 >= idleTimeoutMillis) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MailSender-SmtpConnectionPool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.max(MIN_EVICTION_INTERVAL_MILLIS, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evict();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * プールの設定. 指定しない項目は既定値となる.
+     */
+    static final class Settings {
+        private int maxTotal = DEFAULT_MAX_TOTAL;
+        private int maxIdle = DEFAULT_MAX_IDLE;
+        private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+        private long maxLifetimeMillis = DEFAULT_MAX_LIFETIME_MILLIS;
+        private long borrowTimeoutMillis = DEFAULT_BORROW_TIMEOUT_MILLIS;
+        private long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        private SmtpTls tls = SmtpTls.PLAINTEXT;
+        private SmtpAuth auth = SmtpAuth.NONE;
+
+        /**
+         * @param value 接続先毎の最大接続数
+         * @return この設定
+         */
+        Settings maxTotal(int value) {
+            this.maxTotal = value;
+            return this;
+        }
+
+        /**
+         * @param value 接続先毎に保持するアイドル接続の最大数
+         * @return この設定
+         */
+        Settings maxIdle(int value) {
+            this.maxIdle = value;
+            return this;
+        }
+
+        /**
+         * @param value アイドル接続を破棄するまでの時間(ミリ秒)
+         * @return この設定
+         */
+        Settings idleTimeoutMillis(long value) {
+            this.idleTimeoutMillis = value;
+            return this;
+        }
+
+        /**
+         * @param value 接続の最大寿命(ミリ秒). 0以下の場合は無制限
+         * @return この設定
+         */
+        Settings maxLifetimeMillis(long value) {
+            this.maxLifetimeMillis = value;
+            return this;
+        }
+
+        /**
+         * @param value 接続の空きを待つ最大時間(ミリ秒)
+         * @return この設定
+         */
+        Settings borrowTimeoutMillis(long value) {
+            this.borrowTimeoutMillis = value;
+            return this;
+        }
+
+        /**
+         * @param value SMTPサーバへの接続タイムアウト(ミリ秒). 0以下の場合は無制限
+         * @return この設定
+         */
+        Settings connectTimeoutMillis(long value) {
+            this.connectTimeoutMillis = value;
+            return this;
+        }
+
+        /**
+         * @param value SMTPサーバからの応答タイムアウト(ミリ秒). 0以下の場合は無制限
+         * @return この設定
+         */
+        Settings timeoutMillis(long value) {
+            this.timeoutMillis = value;
+            return this;
+        }
+
+        /**
+         * @param value TLSの設定
+         * @return この設定
+         */
+        Settings tls(SmtpTls value) {
+            this.tls = value;
+            return this;
+        }
+
+        /**
+         * @param value SMTP AUTHの設定. 認証は接続時に 1度だけ行う
+         * @return この設定
+         */
+        Settings auth(SmtpAuth value) {
+            this.auth = value;
+            return this;
+        }
+    }
+
+    /**
+     * 接続先毎のアイドル接続と接続数上限.
+     */
+    private static final class Partition {
+        private final String key;
+        private final Session session;
+        private final Semaphore permits;
+        private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+
+        Partition(String key, Session session, int maxTotal) {
+            this.key = key;
+            this.session = session;
+            this.permits = new Semaphore(maxTotal, true);
+        }
+
+        synchronized PooledConnection pollIdle() {
+            return idle.pollFirst();
+        }
+
+        synchronized boolean offerIdle(PooledConnection connection, int maxIdle) {
+            if (maxIdle <= idle.size()) {
+                return false;
+            }
+            idle.offerFirst(connection);
+            return true;
+        }
+
+        synchronized List<PooledConnection> drainIdle() {
+            List<PooledConnection> drained = new ArrayList<PooledConnection>(idle);
+            idle.clear();
+            return drained;
+        }
+
+        synchronized List<PooledConnection> removeIdleIf(SmtpConnectionPool pool, long now) {
+            List<PooledConnection> removed = new ArrayList<PooledConnection>();
+            Iterator<PooledConnection> it = idle.iterator();
+            while (it.hasNext()) {
+                PooledConnection connection = it.next();
+                if (pool.isExpired(connection, now) || pool.isIdleTooLong(connection, now)) {
+                    it.remove();
+                    removed.add(connection);
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * プールから借り出された SMTP接続.
+     */
+    static final class PooledConnection {
+        private final Partition partition;
+        private final Transport transport;
+        private final long createdAt;
+        private volatile long lastUsedAt;
+
+        PooledConnection(Partition partition, Transport transport) {
+            this.partition = partition;
+            this.transport = transport;
+            this.createdAt = System.currentTimeMillis();
+            this.lastUsedAt = this.createdAt;
+        }
+
+        /**
+         * @return 接続済みの Transport
+         */
+        Transport getTransport() {
+            return transport;
+        }
+
+        private void close() {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                // 切断時のエラーは無視する
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+import io.personium.engine.extension.mailsender.RelayGroup.Relay;
+import io.personium.engine.extension.mailsender.SendMetrics.Phase;
+import io.personium.engine.extension.mailsender.SmtpConnectionPool.PooledConnection;
+
+/**
+ * プールした接続を使って SMTPリレーへメッセージを送信する.
+ * 一時的な失敗は再試行し、リレー毎のサーキットブレーカが開いているリレーへは送信しない.
+ */
+class SmtpDispatcher {
+
+    /** 切断を伴う応答 (421 Service not available). */
+    private static final int SERVICE_NOT_AVAILABLE = 421;
+
+    private final SmtpConnectionPool pool;
+    private final RetryPolicy retryPolicy;
+    private final SendMetrics metrics;
+
+    /**
+     * コンストラクタ.
+     * @param pool 接続プール
+     * @param retryPolicy 再試行方針
+     * @param metrics 計測値の記録先
+     */
+    SmtpDispatcher(SmtpConnectionPool pool, RetryPolicy retryPolicy, SendMetrics metrics) {
+        this.pool = pool;
+        this.retryPolicy = retryPolicy;
+        this.metrics = metrics;
+    }
+
+    /**
+     * メッセージを 1件送信する.
+     * @param relays 送信先のリレー
+     * @param message メッセージ
+     * @throws MessagingException 送信に失敗した場合
+     */
+    void send(RelayGroup relays, SMTPMessage message) throws MessagingException {
+        send(relays, message, true);
+    }
+
+    /**
+     * メッセージを 1件送信する.
+     * @param relays 送信先のリレー
+     * @param message メッセージ
+     * @param retryable 内容を繰り返し書き出せる場合 true. false の場合、書き出しを始めた後は再試行しない
+     * @throws MessagingException 送信に失敗した場合
+     */
+    void send(RelayGroup relays, SMTPMessage message, boolean retryable) throws MessagingException {
+        Batch batch = openBatch(relays);
+        try {
+            batch.send(message, retryable);
+        } finally {
+            batch.close();
+        }
+    }
+
+    /**
+     * 1つの接続で続けて送信するためのバッチを開始する. 使用後は必ず {@link Batch#close()} を呼ぶこと.
+     * @param relays 送信先のリレー
+     * @return バッチ
+     */
+    Batch openBatch(RelayGroup relays) {
+        return new Batch(relays);
+    }
+
+    /**
+     * 1つの接続を使い回して続けて送信する. 入出力の失敗で使えなくなった接続は破棄し、次の送信で新しい接続を借り出す.
+     * エラー応答を受けた接続はセッションが保たれているため使い続ける.
+     * 一時的な失敗の再試行は、他に利用可能なリレーがあればそちらへ待たずに切り替える.
+     */
+    final class Batch {
+        private final RelayGroup relays;
+        private Relay relay = null;
+        private PooledConnection connection = null;
+
+        private Batch(RelayGroup relays) {
+            this.relays = relays;
+        }
+
+        /**
+         * メッセージを送信する. 一時的な失敗は再試行する.
+         * @param message メッセージ
+         * @throws MessagingException 送信に失敗した場合
+         */
+        void send(SMTPMessage message) throws MessagingException {
+            send(message, true);
+        }
+
+        /**
+         * メッセージを送信する. 一時的な失敗は再試行する.
+         * @param message メッセージ
+         * @param retryable 内容を繰り返し書き出せる場合 true. false の場合、DATAを受け付けられた後は再試行しない
+         * @throws MessagingException 送信に失敗した場合
+         */
+        void send(SMTPMessage message, boolean retryable) throws MessagingException {
+            List<Relay> failed = new ArrayList<Relay>();
+            int attempt = 1;
+            while (true) {
+                if (null == connection || relay.getBreaker().isOpen()) {
+                    close();
+                    relay = relays.select(failed);
+                }
+                if (null == relay) {
+                    MessagingException e = new MessagingException(
+                            "No SMTP relay is available. Sending is suspended for a while.");
+                    metrics.recordFailure(e);
+                    throw e;
+                }
+                if (!relay.getBreaker().allowRequest()) {
+                    // 遮断明けの試行を他のスレッドが行っている. このリレーは遮断中として扱い、他のリレーを選び直す
+                    close();
+                    failed.add(relay);
+                    relay = null;
+                    continue;
+                }
+                boolean relayAvailable = false;
+                relay.getOutstanding().incrementAndGet();
+                try {
+                    long start = System.nanoTime();
+                    if (null == connection) {
+                        connection = pool.borrow(relay.getHost(), relay.getPort());
+                        start = metrics.record(Phase.CONNECT, start);
+                    }
+                    connection.getTransport().sendMessage(message, message.getAllRecipients());
+                    metrics.record(Phase.DATA, start);
+                    metrics.recordSuccess();
+                    relayAvailable = true;
+                    return;
+                } catch (MessagingException e) {
+                    // DATAが受け付けられるまでは内容を読み出していない
+                    boolean dataStarted = isDataStarted();
+                    boolean retry = retryPolicy.isTransient(e, dataStarted);
+                    // 恒久的なエラー応答はリレー自体が応答していることを示す
+                    relayAvailable = !retryPolicy.isTransient(e);
+                    if (isBroken(e)) {
+                        discardConnection();
+                    }
+                    // 1度しか読み出せない内容は、書き出しを始めた後は再送できない
+                    if (!retry || (!retryable && dataStarted) || retryPolicy.getMaxAttempts() <= attempt) {
+                        metrics.recordFailure(e);
+                        throw e;
+                    }
+                    // 再試行では他のリレーを選び直せるよう、使える接続はプールに返却する
+                    close();
+                } catch (RuntimeException e) {
+                    discardConnection();
+                    throw e;
+                } finally {
+                    relay.getOutstanding().decrementAndGet();
+                    if (relayAvailable) {
+                        relay.getBreaker().onSuccess();
+                    } else {
+                        relay.getBreaker().onFailure();
+                    }
+                }
+                failed.add(relay);
+                if (!relays.hasAlternative(failed)) {
+                    retryPolicy.sleep(attempt);
+                }
+                attempt++;
+            }
+        }
+
+        /**
+         * 使用していた接続をプールに返却する.
+         */
+        void close() {
+            if (null != connection) {
+                pool.release(connection);
+                connection = null;
+            }
+        }
+
+        private boolean isDataStarted() {
+            return null != connection && connection.getTransport() instanceof TrackedSmtpTransport
+                    && ((TrackedSmtpTransport) connection.getTransport()).isDataStarted();
+        }
+
+        /**
+         * 接続が使えなくなった失敗かどうかを判定する. エラー応答を受けた場合は JavaMailが RSETでセッションを戻している.
+         */
+        private boolean isBroken(MessagingException e) {
+            int returnCode = RetryPolicy.findReturnCode(e);
+            return 0 >= returnCode || SERVICE_NOT_AVAILABLE == returnCode;
+        }
+
+        private void discardConnection() {
+            if (null != connection) {
+                pool.invalidate(connection);
+                connection = null;
+            }
+        }
+    }
+}
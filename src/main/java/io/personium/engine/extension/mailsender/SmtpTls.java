@@ -0,0 +1,221 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * SMTPサーバとの TLSの設定.
+ * smtp.tls に応じて STARTTLS (starttls) または接続直後からの TLS (smtps) を有効にする.
+ * SSLContextはプロセス内で 1つだけ生成して全ての接続で共有し、クライアント側の TLSセッションキャッシュにより
+ * 同じ SMTPサーバへの 2本目以降の接続ではフルハンドシェイクを省いてセッションを再開する.
+ */
+final class SmtpTls {
+
+    /** TLSの方式. */
+    enum Mode {
+        /** 平文. */
+        NONE,
+        /** 平文で接続し、STARTTLSで TLSに切り替える. TLSに切り替えられない場合は送信しない. */
+        STARTTLS,
+        /** 接続直後から TLSで通信する. */
+        SMTPS
+    }
+
+    /** 平文の設定. */
+    static final SmtpTls PLAINTEXT = new SmtpTls(Mode.NONE, null, false, null, null);
+
+    private static final String JAVAMAIL_SMTP_STARTTLS_ENABLE_KEY = "mail.smtp.starttls.enable";
+    private static final String JAVAMAIL_SMTP_STARTTLS_REQUIRED_KEY = "mail.smtp.starttls.required";
+    private static final String JAVAMAIL_SMTP_SSL_ENABLE_KEY = "mail.smtp.ssl.enable";
+    private static final String JAVAMAIL_SMTP_SSL_SOCKET_FACTORY_KEY = "mail.smtp.ssl.socketFactory";
+    private static final String JAVAMAIL_SMTP_SSL_CHECK_SERVER_IDENTITY_KEY = "mail.smtp.ssl.checkserveridentity";
+    private static final String JAVAMAIL_SMTP_SSL_PROTOCOLS_KEY = "mail.smtp.ssl.protocols";
+
+    private static final String SMTP_TLS = "smtp.tls";
+    private static final String SMTP_TLS_TRUST_STORE = "smtp.tls.trustStore";
+    private static final String SMTP_TLS_TRUST_STORE_PASSWORD = "smtp.tls.trustStorePassword";
+    private static final String SMTP_TLS_TRUST_STORE_TYPE = "smtp.tls.trustStoreType";
+    private static final String SMTP_TLS_PROTOCOLS = "smtp.tls.protocols";
+    private static final String SMTP_TLS_CHECK_SERVER_IDENTITY = "smtp.tls.checkServerIdentity";
+    private static final String SMTP_TLS_SESSION_CACHE_SIZE = "smtp.tls.sessionCacheSize";
+    private static final String SMTP_TLS_SESSION_TIMEOUT = "smtp.tls.sessionTimeoutSeconds";
+
+    private static final String SSL_CONTEXT_PROTOCOL = "TLS";
+    /** JavaMailは ssl.protocols の指定が無いと TLSv1 のみを有効にするため、既定値を明示する. */
+    private static final String DEFAULT_PROTOCOLS = "TLSv1.2";
+    private static final int DEFAULT_SESSION_CACHE_SIZE = 256;
+    private static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 3600;
+
+    private final Mode mode;
+    private final SSLContext sslContext;
+    private final boolean checkServerIdentity;
+    private final String protocols;
+    /** 設定の誤り. 誤りがある場合は平文に戻さず、接続を失敗させる. */
+    private final String failure;
+
+    private SmtpTls(Mode mode, SSLContext sslContext, boolean checkServerIdentity, String protocols,
+            String failure) {
+        this.mode = mode;
+        this.sslContext = sslContext;
+        this.checkServerIdentity = checkServerIdentity;
+        this.protocols = protocols;
+        this.failure = failure;
+    }
+
+    /**
+     * TLSの設定を生成する.
+     * @param mode TLSの方式
+     * @param sslContext 全ての接続で共有する SSLContext
+     * @param checkServerIdentity サーバ証明書のホスト名を検証する場合 true
+     * @param protocols 有効にするプロトコル (空白区切り). 既定値 (TLSv1.2) とする場合は null
+     * @return TLSの設定
+     */
+    static SmtpTls create(Mode mode, SSLContext sslContext, boolean checkServerIdentity, String protocols) {
+        if (Mode.NONE == mode) {
+            return PLAINTEXT;
+        }
+        if (null == protocols) {
+            return new SmtpTls(mode, sslContext, checkServerIdentity, DEFAULT_PROTOCOLS, null);
+        }
+        return new SmtpTls(mode, sslContext, checkServerIdentity, protocols, null);
+    }
+
+    /**
+     * Ext_MailSender.properties の内容から TLSの設定を生成する.
+     * TLSが指定されているのにトラストストアを読み込めない等の誤りがある場合でも平文には戻さず、接続時に失敗させる.
+     * @param properties Ext_MailSender.properties の内容
+     * @return TLSの設定
+     */
+    static SmtpTls fromProperties(Properties properties) {
+        String value = ExtensionProperties.getString(properties, SMTP_TLS, Mode.NONE.name());
+        Mode mode;
+        try {
+            mode = Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return new SmtpTls(Mode.SMTPS, null, true, DEFAULT_PROTOCOLS, String.format(
+                    "Unknown smtp.tls mode (%s). Use none, starttls or smtps.", value));
+        }
+        if (Mode.NONE == mode) {
+            return PLAINTEXT;
+        }
+        String protocols = ExtensionProperties.getString(properties, SMTP_TLS_PROTOCOLS, DEFAULT_PROTOCOLS)
+                .replace(',', ' ').trim();
+        boolean checkServerIdentity = ExtensionProperties.getBoolean(properties, SMTP_TLS_CHECK_SERVER_IDENTITY, true);
+        try {
+            SSLContext sslContext = createContext(
+                    ExtensionProperties.getString(properties, SMTP_TLS_TRUST_STORE, null),
+                    ExtensionProperties.getString(properties, SMTP_TLS_TRUST_STORE_PASSWORD, null),
+                    ExtensionProperties.getString(properties, SMTP_TLS_TRUST_STORE_TYPE, KeyStore.getDefaultType()),
+                    ExtensionProperties.getInt(properties, SMTP_TLS_SESSION_CACHE_SIZE, DEFAULT_SESSION_CACHE_SIZE),
+                    ExtensionProperties.getInt(properties, SMTP_TLS_SESSION_TIMEOUT, DEFAULT_SESSION_TIMEOUT_SECONDS));
+            return new SmtpTls(mode, sslContext, checkServerIdentity, protocols, null);
+        } catch (GeneralSecurityException | IOException | InvalidPathException e) {
+            return new SmtpTls(mode, null, checkServerIdentity, protocols, String.format(
+                    "Failed to initialize TLS for SMTP. Cause: [%s]", e.getMessage()));
+        }
+    }
+
+    /**
+     * SSLContextを生成する.
+     * @param trustStore トラストストアのファイル. JDKの既定のトラストストアを用いる場合は null
+     * @param password トラストストアのパスワード. 無い場合は null
+     * @param type トラストストアの形式
+     * @param sessionCacheSize 再開のために保持する TLSセッションの最大数
+     * @param sessionTimeoutSeconds TLSセッションを再開できる期間(秒)
+     * @return SSLContext
+     * @throws GeneralSecurityException トラストストアが不正な場合
+     * @throws IOException トラストストアを読み込めない場合
+     */
+    static SSLContext createContext(String trustStore, String password, String type, int sessionCacheSize,
+            int sessionTimeoutSeconds) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = null;
+        if (null != trustStore) {
+            char[] passwordChars = null;
+            if (null != password) {
+                passwordChars = password.toCharArray();
+            }
+            keyStore = KeyStore.getInstance(type);
+            InputStream in = Files.newInputStream(Paths.get(trustStore));
+            try {
+                keyStore.load(in, passwordChars);
+            } finally {
+                in.close();
+            }
+        }
+        TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        SSLContext sslContext = SSLContext.getInstance(SSL_CONTEXT_PROTOCOL);
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        sslContext.getClientSessionContext().setSessionCacheSize(sessionCacheSize);
+        sslContext.getClientSessionContext().setSessionTimeout(sessionTimeoutSeconds);
+        return sslContext;
+    }
+
+    /**
+     * JavaMailの Sessionの設定に TLSの設定を加える.
+     * ソケットファクトリは共有の SSLContextから取得するため、全ての接続で TLSセッションキャッシュが共有される.
+     * @param prop Sessionの設定
+     * @throws MessagingException TLSの設定に誤りがある場合
+     */
+    void configure(Properties prop) throws MessagingException {
+        if (Mode.NONE == mode) {
+            return;
+        }
+        if (null != failure) {
+            throw new MessagingException(failure);
+        }
+        SSLSocketFactory socketFactory = sslContext.getSocketFactory();
+        prop.put(JAVAMAIL_SMTP_SSL_SOCKET_FACTORY_KEY, socketFactory);
+        prop.put(JAVAMAIL_SMTP_SSL_CHECK_SERVER_IDENTITY_KEY, String.valueOf(checkServerIdentity));
+        prop.put(JAVAMAIL_SMTP_SSL_PROTOCOLS_KEY, protocols);
+        if (Mode.SMTPS == mode) {
+            prop.put(JAVAMAIL_SMTP_SSL_ENABLE_KEY, "true");
+        } else {
+            prop.put(JAVAMAIL_SMTP_STARTTLS_ENABLE_KEY, "true");
+            prop.put(JAVAMAIL_SMTP_STARTTLS_REQUIRED_KEY, "true");
+        }
+    }
+
+    /**
+     * @return TLSの方式
+     */
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return 全ての接続で共有する SSLContext. 平文の場合、設定に誤りがある場合は null
+     */
+    SSLContext getSslContext() {
+        return sslContext;
+    }
+}
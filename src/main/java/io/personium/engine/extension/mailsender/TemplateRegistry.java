@@ -0,0 +1,108 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.Properties;
+
+/**
+ * registerTemplate で登録された件名・本文テンプレートの保持領域.
+ * 解析済みのテンプレートを名前毎に保持する. 上限を超えた場合は最も使われていないものから破棄する.
+ */
+class TemplateRegistry {
+
+    private static final String TEMPLATE_CACHE_SIZE = "template.cacheSize";
+    private static final int DEFAULT_CACHE_SIZE = 256;
+
+    private static TemplateRegistry sharedInstance = null;
+
+    private final LruCache<String, Entry> templates;
+
+    /**
+     * コンストラクタ.
+     * @param maxSize 保持するテンプレートの最大数
+     */
+    TemplateRegistry(int maxSize) {
+        this.templates = new LruCache<String, Entry>(maxSize);
+    }
+
+    /**
+     * プロセス内で共有される保持領域を取得する. 初回呼び出し時の設定で生成する.
+     * @param properties Ext_MailSender.properties の内容
+     * @return 共有の保持領域
+     */
+    static synchronized TemplateRegistry getInstance(Properties properties) {
+        if (null == sharedInstance) {
+            sharedInstance = new TemplateRegistry(
+                    ExtensionProperties.getInt(properties, TEMPLATE_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * テンプレートを解析して登録する. 同じ名前のテンプレートは置き換える.
+     * @param name テンプレート名
+     * @param subject 件名のテンプレート
+     * @param text 本文のテンプレート
+     * @throws IllegalArgumentException テンプレートの書式が不正な場合
+     */
+    void register(String name, String subject, String text) {
+        templates.put(name, new Entry(MailTemplate.compile(subject), MailTemplate.compile(text)));
+    }
+
+    /**
+     * テンプレートを取得する.
+     * @param name テンプレート名
+     * @return テンプレート. 登録されていない場合は null
+     */
+    Entry get(String name) {
+        return templates.get(name);
+    }
+
+    /**
+     * @return ヒット数
+     */
+    long getHitCount() {
+        return templates.getHitCount();
+    }
+
+    /**
+     * @return ミス数
+     */
+    long getMissCount() {
+        return templates.getMissCount();
+    }
+
+    /**
+     * @return 保持しているテンプレートの数
+     */
+    int size() {
+        return templates.size();
+    }
+
+    /**
+     * 件名と本文のテンプレートの組.
+     */
+    static final class Entry {
+        final MailTemplate subject;
+        final MailTemplate text;
+
+        Entry(MailTemplate subject, MailTemplate text) {
+            this.subject = subject;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ロックを取らないトークンバケット.
+ * トークン数の代わりに「次のトークンが補充される理論上の時刻」を 1つの AtomicLong で保持し (GCRA)、
+ * 取得は 1回の CAS で行う. 補充のためのスレッドやタイマーは持たない.
+ */
+final class TokenBucket {
+
+    /** 取得できなかったことを表す {@link #reserve(long, long)} の戻り値. */
+    static final long REJECTED = -1L;
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * コンストラクタ. バケットは満杯の状態で生成される.
+     * @param permitsPerSecond 1秒あたりに補充されるトークン数
+     * @param burst バケットの容量. 1未満の場合は 1
+     */
+    TokenBucket(double permitsPerSecond, int burst) {
+        this.intervalNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1L) / permitsPerSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        // 呼び出し側が生成前に取得した現在時刻でも満杯と判定されるよう、過去の時刻から始める
+        this.theoreticalArrival = new AtomicLong(System.nanoTime() - burstNanos);
+    }
+
+    /**
+     * トークンを 1つ予約する. トークンが無い場合は、待ち時間が maxWaitNanos 以内であれば補充される時刻の分を予約する.
+     * @param now 現在時刻 (System.nanoTime())
+     * @param maxWaitNanos 待つことのできる最大時間(ナノ秒)
+     * @return トークンを利用できるまでの待ち時間(ナノ秒). 予約できなかった場合は {@link #REJECTED}
+     */
+    long reserve(long now, long maxWaitNanos) {
+        while (true) {
+            long current = theoreticalArrival.get();
+            long next = Math.max(current, now) + intervalNanos;
+            long wait = Math.max(0L, next - now - burstNanos);
+            if (maxWaitNanos < wait) {
+                return REJECTED;
+            }
+            if (theoreticalArrival.compareAndSet(current, next)) {
+                return wait;
+            }
+        }
+    }
+
+    /**
+     * 予約したトークンを返却する.
+     */
+    void cancel() {
+        theoreticalArrival.addAndGet(-intervalNanos);
+    }
+
+    /**
+     * @param now 現在時刻 (System.nanoTime())
+     * @return バケットが満杯の場合 true. 満杯のバケットは新しく生成したものと区別できない
+     */
+    boolean isFull(long now) {
+        return theoreticalArrival.get() - now <= 0L;
+    }
+}
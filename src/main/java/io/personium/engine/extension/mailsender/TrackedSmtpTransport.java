@@ -0,0 +1,67 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.OutputStream;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * メッセージの書き出しを始めたかどうかを記録する SMTPTransport.
+ * DATAコマンドが受理された後に応答を得られずに失敗した場合、サーバがメッセージを受理したかどうかは分からない.
+ * 再送による重複を避けるため、送信側はこの記録で再試行の可否を判断する.
+ */
+class TrackedSmtpTransport extends SMTPTransport {
+
+    private static final String SMTP_PROTOCOL = "smtp";
+
+    private volatile boolean dataStarted = false;
+
+    /**
+     * コンストラクタ.
+     * @param session セッション
+     */
+    TrackedSmtpTransport(Session session) {
+        super(session, new URLName(SMTP_PROTOCOL, null, -1, null, null, null));
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        dataStarted = false;
+        super.sendMessage(message, addresses);
+    }
+
+    @Override
+    protected OutputStream data() throws MessagingException {
+        OutputStream out = super.data();
+        dataStarted = true;
+        return out;
+    }
+
+    /**
+     * @return 直前の sendMessage で DATAコマンドが受理され、メッセージの書き出しを始めた場合 true
+     */
+    boolean isDataStarted() {
+        return dataStarted;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.UnsupportedEncodingException;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+public class AddressCacheTest {
+
+    /**
+     * 同じ宛先は解析済みの結果の複製が返されること.
+     * @throws Exception
+     */
+    @Test
+    public void 同じ宛先は解析済みの結果の複製が返されること() throws Exception {
+        AddressCache cache = new AddressCache(8);
+        InternetAddress first = cache.resolve("taro1@example.com", "山田 太郎", "UTF-8");
+        InternetAddress second = cache.resolve("taro1@example.com", "山田 太郎", "UTF-8");
+
+        assertNotSame(first, second);
+        assertThat(second.getAddress(), is("taro1@example.com"));
+        assertThat(second.getPersonal(), is("山田 太郎"));
+        assertThat(second.toString(), is(first.toString()));
+        assertThat(cache.getMissCount(), is(1L));
+        assertThat(cache.getHitCount(), is(1L));
+
+        // 表示名や文字コードが異なれば別の宛先として扱う
+        InternetAddress other = cache.resolve("taro1@example.com", "山田 太郎", "ISO-2022-JP");
+        assertThat(other.toString().equals(first.toString()), is(false));
+        assertThat(cache.size(), is(2));
+    }
+
+    /**
+     * 区画に分けても上限を超えて保持しないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 区画に分けても上限を超えて保持しないこと() throws Exception {
+        AddressCache cache = new AddressCache(1024);
+        for (int i = 0; i < 4096; i++) {
+            cache.resolve("member" + i + "@example.com", null, "UTF-8");
+        }
+        assertThat(cache.size() <= 1024, is(true));
+
+        cache.resolve("member4095@example.com", null, "UTF-8");
+        assertThat(cache.getHitCount(), is(1L));
+    }
+
+    /**
+     * 不正なアドレスの検証エラーも保持されること.
+     * @throws Exception
+     */
+    @Test
+    public void 不正なアドレスの検証エラーも保持されること() throws Exception {
+        AddressCache cache = new AddressCache(8);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.resolve("taro1@@example.com", null, "UTF-8");
+                fail();
+            } catch (AddressException e) {
+                // 期待どおり
+            }
+        }
+        assertThat(cache.getMissCount(), is(1L));
+        assertThat(cache.getHitCount(), is(1L));
+    }
+
+    /**
+     * 未対応の文字コードはエンコードのエラーとなること.
+     * @throws Exception
+     */
+    @Test(expected = UnsupportedEncodingException.class)
+    public void 未対応の文字コードはエンコードのエラーとなること() throws Exception {
+        AddressCache cache = new AddressCache(8);
+        try {
+            cache.resolve("taro1@example.com", "山田", "NO-SUCH-CHARSET");
+        } catch (UnsupportedEncodingException e) {
+            // 保持された結果からも同じ種類の例外となる
+        }
+        cache.resolve("taro1@example.com", "山田", "NO-SUCH-CHARSET");
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+import com.dumbster.smtp.SimpleSmtpServer;
+import com.sun.mail.smtp.SMTPMessage;
+
+public class BulkSenderTest {
+
+    Session session = Session.getInstance(new Properties());
+    byte[] content = "Subject: bulk\r\n\r\nbody\r\n".getBytes();
+
+    /**
+     * 宛先がチャンク毎の件数に分けられること.
+     * @throws Exception
+     */
+    @Test
+    public void 宛先がチャンク毎の件数に分けられること() throws Exception {
+        BulkSender bulkSender = new BulkSender(50, 1000, 1);
+        List<RenderedMessage> chunks = bulkSender.split(session, content, newRecipients(120),
+                "bounce@example.org");
+
+        assertThat(chunks.size(), is(3));
+        assertThat(chunks.get(0).getAllRecipients().length, is(50));
+        assertThat(chunks.get(1).getAllRecipients().length, is(50));
+        assertThat(chunks.get(2).getAllRecipients().length, is(20));
+        assertThat(chunks.get(2).getAllRecipients()[0], is((Object) new InternetAddress("user100@example.com")));
+        assertThat(chunks.get(2).getEnvelopeFrom(), is("bounce@example.org"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        chunks.get(1).writeTo(out, new String[] {"Bcc" });
+        assertArrayEquals(content, out.toByteArray());
+    }
+
+    /**
+     * チャンクが並行して送信されること.
+     * @throws Exception
+     */
+    @Test
+    public void チャンクが並行して送信されること() throws Exception {
+        BulkSender bulkSender = new BulkSender(2, 1000, 3);
+        SimpleSmtpServer server = SimpleSmtpServer.start(1025);
+        MessagingException[] errors;
+        try {
+            SmtpConnectionPool pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                    .maxTotal(3)
+                    .maxIdle(0)
+                    .idleTimeoutMillis(0L)
+                    .maxLifetimeMillis(0L)
+                    .borrowTimeoutMillis(10000L));
+            SmtpDispatcher dispatcher = new SmtpDispatcher(pool, new RetryPolicy(1, 0L, 0L), new SendMetrics());
+            List<RenderedMessage> chunks = bulkSender.split(session, content, newRecipients(10),
+                    "john@example.com");
+            SMTPMessage[] messages = chunks.toArray(new SMTPMessage[chunks.size()]);
+            // 送信しないチャンク
+            messages[1] = null;
+            errors = bulkSender.sendAll(dispatcher, RelayGroup.single("localhost", "1025", new Properties()),
+                    messages);
+        } finally {
+            server.stop();
+            bulkSender.shutdown();
+        }
+        assertThat(errors.length, is(5));
+        for (MessagingException error : errors) {
+            assertThat(error, is(nullValue()));
+        }
+        assertThat(server.getReceivedEmailSize(), is(4));
+    }
+
+    /**
+     * 送信に失敗したチャンクのエラーが返されること.
+     * @throws Exception
+     */
+    @Test
+    public void 送信に失敗したチャンクのエラーが返されること() throws Exception {
+        BulkSender bulkSender = new BulkSender(5, 1000, 2);
+        try {
+            SmtpConnectionPool pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                    .maxTotal(2)
+                    .maxIdle(0)
+                    .idleTimeoutMillis(0L)
+                    .maxLifetimeMillis(0L)
+                    .borrowTimeoutMillis(1000L));
+            SmtpDispatcher dispatcher = new SmtpDispatcher(pool, new RetryPolicy(1, 0L, 0L), new SendMetrics());
+            List<RenderedMessage> chunks = bulkSender.split(session, content, newRecipients(10),
+                    "john@example.com");
+            MessagingException[] errors = bulkSender.sendAll(dispatcher,
+                    RelayGroup.single("localhost", "1", new Properties()),
+                    chunks.toArray(new SMTPMessage[chunks.size()]));
+            assertThat(errors.length, is(2));
+            assertThat(errors[0], is(notNullValue()));
+            assertThat(errors[1], is(notNullValue()));
+        } finally {
+            bulkSender.shutdown();
+        }
+    }
+
+    private static Address[] newRecipients(int count) throws Exception {
+        Address[] recipients = new Address[count];
+        for (int i = 0; i < count; i++) {
+            recipients[i] = new InternetAddress("user" + i + "@example.com");
+        }
+        return recipients;
+    }
+}
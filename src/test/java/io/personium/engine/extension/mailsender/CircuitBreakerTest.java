@@ -0,0 +1,75 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    /**
+     * 連続した失敗が閾値に達すると遮断されること.
+     */
+    @Test
+    public void 連続した失敗が閾値に達すると遮断されること() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 60000L);
+        breaker.onFailure();
+        assertThat(breaker.allowRequest(), is(true));
+        breaker.onFailure();
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat(breaker.allowRequest(), is(false));
+    }
+
+    /**
+     * 成功すると連続失敗回数がリセットされること.
+     */
+    @Test
+    public void 成功すると連続失敗回数がリセットされること() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 60000L);
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    /**
+     * 遮断時間の経過後は1件だけ試行が許されること.
+     * @throws Exception
+     */
+    @Test
+    public void 遮断時間の経過後は1件だけ試行が許されること() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50L);
+        breaker.onFailure();
+        Thread.sleep(100L);
+        assertThat(breaker.allowRequest(), is(true));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThat(breaker.allowRequest(), is(false));
+
+        // 試行が失敗すると再び遮断される
+        breaker.onFailure();
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        Thread.sleep(100L);
+
+        // 試行が成功すると通常に戻る
+        assertThat(breaker.allowRequest(), is(true));
+        breaker.onSuccess();
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.allowRequest(), is(true));
+    }
+}
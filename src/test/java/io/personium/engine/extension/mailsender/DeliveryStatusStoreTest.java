@@ -0,0 +1,88 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeliveryStatusStoreTest {
+
+    /**
+     * 記録が更新されること.
+     */
+    @Test
+    public void 記録が更新されること() {
+        DeliveryStatusStore store = new DeliveryStatusStore(4);
+        DeliveryStatusStore.Record queued = store.queued("id1", "john@example.com");
+        DeliveryStatusStore.Record sending = store.update(queued, DeliveryStatusStore.State.SENDING, 0, null);
+        store.update(sending, DeliveryStatusStore.State.FAILED, 550, "Mailbox unavailable");
+
+        DeliveryStatusStore.Record record = store.get("id1");
+        assertThat(record.state, is(DeliveryStatusStore.State.FAILED));
+        assertThat(record.replyCode, is(550));
+        assertThat(record.reply, is("Mailbox unavailable"));
+        assertThat(record.queuedAt, is(queued.queuedAt));
+        assertThat(store.get("unknown"), is(nullValue()));
+    }
+
+    /**
+     * 容量を超えると古い記録から上書きされること.
+     */
+    @Test
+    public void 容量を超えると古い記録から上書きされること() {
+        DeliveryStatusStore store = new DeliveryStatusStore(3);
+        assertThat(store.capacity(), is(4));
+
+        DeliveryStatusStore.Record first = store.queued("id0", "john@example.com");
+        for (int i = 1; i < 5; i++) {
+            store.queued("id" + i, "john@example.com");
+        }
+
+        assertThat(store.get("id0"), is(nullValue()));
+        assertThat(store.get("id1").messageId, is("id1"));
+        // 上書きされた記録への更新は破棄される
+        assertThat(store.update(first, DeliveryStatusStore.State.SENT, 0, null), is(nullValue()));
+        assertThat(store.get("id4").state, is(DeliveryStatusStore.State.QUEUED));
+    }
+
+    /**
+     * 条件に合う記録が新しい順に返されること.
+     */
+    @Test
+    public void 条件に合う記録が新しい順に返されること() {
+        DeliveryStatusStore store = new DeliveryStatusStore(8);
+        store.update(store.queued("id0", "john@example.com"), DeliveryStatusStore.State.SENT, 0, null);
+        store.queued("id1", "john@example.com");
+        store.update(store.queued("id2", "hanako@example.com"), DeliveryStatusStore.State.SENT, 0, null);
+        store.update(store.queued("id3", "john@example.com"), DeliveryStatusStore.State.SENT, 0, null);
+
+        List<DeliveryStatusStore.Record> sent = store.listRecent(DeliveryStatusStore.State.SENT, null, 10);
+        assertThat(sent.size(), is(3));
+        assertThat(sent.get(0).messageId, is("id3"));
+        assertThat(sent.get(2).messageId, is("id0"));
+
+        List<DeliveryStatusStore.Record> john = store.listRecent(null, "JOHN@example.com", 2);
+        assertThat(john.size(), is(2));
+        assertThat(john.get(0).messageId, is("id3"));
+        assertThat(john.get(1).messageId, is("id1"));
+    }
+}
@@ -18,13 +18,21 @@ package io.personium.engine.extension.mailsender;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.After;
 import org.junit.Before;
@@ -45,6 +53,7 @@ public class Ext_MailSenderTest {
     SimpleSmtpServer server = null;
     Field smtpHostField = null;
     Field smtpPortField = null;
+    Field sharedPoolField = null;
 
     @BeforeClass
     public static void beforeClass() {
@@ -60,6 +69,20 @@ public class Ext_MailSenderTest {
         smtpPortField = Ext_MailSender.class.getDeclaredField("smtpPort");
         smtpHostField.setAccessible(true);
         smtpPortField.setAccessible(true);
+
+        // SMTP mockは接続が閉じられるまで受信メールを確定しないため、送信毎に接続を閉じるプールに差し替える.
+        sharedPoolField = SmtpConnectionPool.class.getDeclaredField("sharedInstance");
+        sharedPoolField.setAccessible(true);
+        sharedPoolField.set(null, new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(1)
+                .maxIdle(0)
+                .idleTimeoutMillis(0L)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(1000L)));
+        // 差し替えたプールを使うよう、共有するサービスを取得し直させる
+        Field sharedServicesField = SharedServices.class.getDeclaredField("current");
+        sharedServicesField.setAccessible(true);
+        sharedServicesField.set(null, null);
     }
 
     @After
@@ -1124,4 +1147,779 @@ public class Ext_MailSenderTest {
         }
     }
 
+    /**
+     * プールした接続を再利用して連続してメール送信できること.
+     * @throws Exception
+     */
+    @Test
+    public void プールした接続を再利用して連続してメール送信できること() throws Exception {
+        SmtpConnectionPool pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(1)
+                .maxIdle(1)
+                .idleTimeoutMillis(0L)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(1000L));
+        sharedPoolField.set(null, pool);
+
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject sender = new NativeObject();
+        sender.put("address", sender, "john999@example.com");
+        sender.put("name", sender, "John Smith");
+
+        NativeObject recipient = new NativeObject();
+        recipient.put("address", recipient, "taro1@example.com");
+        recipient.put("name", recipient, "Taro Yamada");
+
+        NativeObject reqJson = new NativeObject();
+        reqJson.put("to", reqJson, new NativeArray(new Object[] {recipient }));
+        reqJson.put("reply-to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("from", reqJson, sender);
+        reqJson.put("subject", reqJson, "メール件名");
+        reqJson.put("text", reqJson, "メール本文\n本文だよ。");
+        reqJson.put("charset", reqJson, "UTF-8");
+        reqJson.put("envelope-from", reqJson, "john@example.com");
+        mailTransport.send(reqJson);
+        mailTransport.send(reqJson);
+
+        // 接続を閉じるとSMTP mockが受信メールを確定する
+        pool.closeAll();
+        assertThat(server.getReceivedEmailSize(), is(2));
+    }
+
+    /**
+     * 複数のメールを一括送信し不正なリクエストは結果に記録されること.
+     * @throws Exception
+     */
+    @Test
+    public void 複数のメールを一括送信し不正なリクエストは結果に記録されること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject sender = new NativeObject();
+        sender.put("address", sender, "john999@example.com");
+        sender.put("name", sender, "John Smith");
+
+        NativeObject recipient = new NativeObject();
+        recipient.put("address", recipient, "taro1@example.com");
+        recipient.put("name", recipient, "Taro Yamada");
+
+        NativeObject reqJson = new NativeObject();
+        reqJson.put("to", reqJson, new NativeArray(new Object[] {recipient }));
+        reqJson.put("reply-to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("from", reqJson, sender);
+        reqJson.put("subject", reqJson, "メール件名");
+        reqJson.put("text", reqJson, "メール本文\n本文だよ。");
+        reqJson.put("charset", reqJson, "UTF-8");
+
+        // 件名なし
+        NativeObject invalidReqJson = new NativeObject();
+        invalidReqJson.put("to", invalidReqJson, new NativeArray(new Object[] {recipient }));
+        invalidReqJson.put("reply-to", invalidReqJson, new NativeArray(new Object[] {sender }));
+        invalidReqJson.put("from", invalidReqJson, sender);
+        invalidReqJson.put("text", invalidReqJson, "メール本文\n本文だよ。");
+
+        NativeArray results = mailTransport.sendBatch(
+                new NativeArray(new Object[] {reqJson, invalidReqJson, reqJson }));
+
+        assertThat(results.size(), is(3));
+        NativeObject result0 = (NativeObject) results.get(0);
+        NativeObject result1 = (NativeObject) results.get(1);
+        NativeObject result2 = (NativeObject) results.get(2);
+        assertThat(result0.get("sent"), is((Object) true));
+        assertThat(result1.get("sent"), is((Object) false));
+        assertThat(result1.get("error"), is(notNullValue()));
+        assertThat(result2.get("sent"), is((Object) true));
+        assertThat(server.getReceivedEmailSize(), is(2));
+    }
+
+    /**
+     * 非同期送信でメッセージIDが返されメールが送信されること.
+     * @throws Exception
+     */
+    @Test
+    public void 非同期送信でメッセージIDが返されメールが送信されること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject sender = new NativeObject();
+        sender.put("address", sender, "john999@example.com");
+        sender.put("name", sender, "John Smith");
+
+        NativeObject recipient = new NativeObject();
+        recipient.put("address", recipient, "taro1@example.com");
+        recipient.put("name", recipient, "Taro Yamada");
+
+        NativeObject reqJson = new NativeObject();
+        reqJson.put("to", reqJson, new NativeArray(new Object[] {recipient }));
+        reqJson.put("reply-to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("from", reqJson, sender);
+        reqJson.put("subject", reqJson, "メール件名");
+        reqJson.put("text", reqJson, "メール本文\n本文だよ。");
+        reqJson.put("charset", reqJson, "UTF-8");
+        String messageId = mailTransport.sendAsync(reqJson);
+
+        assertThat(messageId, is(notNullValue()));
+        for (int i = 0; i < 50 && server.getReceivedEmailSize() == 0; i++) {
+            Thread.sleep(100L);
+        }
+        assertThat(server.getReceivedEmailSize(), is(1));
+    }
+
+    /**
+     * 非同期送信で不正なリクエストは直ちに例外を発すること.
+     * @throws Exception
+     */
+    @Test(expected = EcmaError.class)
+    public void 非同期送信で不正なリクエストは直ちに例外を発すること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject reqJson = new NativeObject();
+        reqJson.put("subject", reqJson, "メール件名");
+        mailTransport.sendAsync(reqJson);
+    }
+
+    /**
+     * 差し込み印刷で宛先毎に置換したメールが送信されること.
+     * @throws Exception
+     */
+    @Test
+    public void 差し込み印刷で宛先毎に置換したメールが送信されること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject sender = new NativeObject();
+        sender.put("address", sender, "john999@example.com");
+        sender.put("name", sender, "John Smith");
+
+        NativeObject vars1 = new NativeObject();
+        vars1.put("name", vars1, "Taro");
+        vars1.put("count", vars1, 3d);
+        NativeObject recipient1 = new NativeObject();
+        recipient1.put("address", recipient1, "taro1@example.com");
+        recipient1.put("vars", recipient1, vars1);
+
+        // addressなし
+        NativeObject recipient2 = new NativeObject();
+        recipient2.put("vars", recipient2, vars1);
+
+        NativeObject vars3 = new NativeObject();
+        vars3.put("name", vars3, "Hanako");
+        NativeObject recipient3 = new NativeObject();
+        recipient3.put("address", recipient3, "hanako1@example.com");
+        recipient3.put("vars", recipient3, vars3);
+
+        NativeObject reqJson = new NativeObject();
+        reqJson.put("recipients", reqJson, new NativeArray(new Object[] {recipient1, recipient2, recipient3 }));
+        reqJson.put("reply-to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("from", reqJson, sender);
+        reqJson.put("subject", reqJson, "Hello ${name}");
+        reqJson.put("text", reqJson, "Dear ${name}, you have ${count} new messages.");
+        reqJson.put("charset", reqJson, "UTF-8");
+        NativeArray results = mailTransport.sendMerge(reqJson);
+
+        assertThat(results.size(), is(3));
+        assertThat(((NativeObject) results.get(0)).get("sent"), is((Object) true));
+        assertThat(((NativeObject) results.get(1)).get("sent"), is((Object) false));
+        assertThat(((NativeObject) results.get(2)).get("sent"), is((Object) true));
+        assertThat(server.getReceivedEmailSize(), is(2));
+
+        Iterator<SmtpMessage> received = server.getReceivedEmail();
+        SmtpMessage first = received.next();
+        assertThat(first.getHeaderValue("Subject"), is("Hello Taro"));
+        assertTrue(first.getBody().contains("Dear Taro, you have 3 new messages."));
+        SmtpMessage second = received.next();
+        assertThat(second.getHeaderValue("Subject"), is("Hello Hanako"));
+        assertTrue(second.getBody().contains("Dear Hanako, you have  new messages."));
+    }
+
+    /**
+     * 登録したテンプレートを指定してメール送信できること.
+     * @throws Exception
+     */
+    @Test
+    public void 登録したテンプレートを指定してメール送信できること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject template = new NativeObject();
+        template.put("subject", template, "Order ${orderId}");
+        template.put("text", template, "Thank you, ${name}.");
+        mailTransport.registerTemplate("order", template);
+
+        NativeObject sender = new NativeObject();
+        sender.put("address", sender, "john999@example.com");
+        NativeObject recipient = new NativeObject();
+        recipient.put("address", recipient, "taro1@example.com");
+        NativeObject vars = new NativeObject();
+        vars.put("orderId", vars, 1234d);
+        vars.put("name", vars, "Taro");
+
+        NativeObject reqJson = new NativeObject();
+        reqJson.put("to", reqJson, new NativeArray(new Object[] {recipient }));
+        reqJson.put("reply-to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("from", reqJson, sender);
+        reqJson.put("template", reqJson, "order");
+        reqJson.put("vars", reqJson, vars);
+        reqJson.put("charset", reqJson, "UTF-8");
+        mailTransport.send(reqJson);
+
+        assertThat(server.getReceivedEmailSize(), is(1));
+        SmtpMessage received = server.getReceivedEmail().next();
+        assertThat(received.getHeaderValue("Subject"), is("Order 1234"));
+        assertTrue(received.getBody().contains("Thank you, Taro."));
+    }
+
+    /**
+     * 登録されていないテンプレートを指定した場合例外を発すること.
+     * @throws Exception
+     */
+    @Test(expected = EcmaError.class)
+    public void 登録されていないテンプレートを指定した場合例外を発すること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject sender = new NativeObject();
+        sender.put("address", sender, "john999@example.com");
+        NativeObject reqJson = new NativeObject();
+        reqJson.put("to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("reply-to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("from", reqJson, sender);
+        reqJson.put("template", reqJson, "not-registered");
+        mailTransport.send(reqJson);
+    }
+
+    /**
+     * ファンアウトで宛先毎に別のメッセージとして送信されること.
+     * @throws Exception
+     */
+    @Test
+    public void ファンアウトで宛先毎に別のメッセージとして送信されること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject sender = new NativeObject();
+        sender.put("address", sender, "john999@example.com");
+        sender.put("name", sender, "John Smith");
+
+        NativeObject recipient1 = new NativeObject();
+        recipient1.put("address", recipient1, "taro1@example.com");
+        recipient1.put("name", recipient1, "Taro Yamada");
+        NativeObject recipient2 = new NativeObject();
+        recipient2.put("address", recipient2, "invalid@@example.com");
+        NativeObject recipient3 = new NativeObject();
+        recipient3.put("address", recipient3, "hanako1@example.com");
+
+        NativeObject reqJson = new NativeObject();
+        reqJson.put("recipients", reqJson, new NativeArray(new Object[] {recipient1, recipient2, recipient3 }));
+        reqJson.put("reply-to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("from", reqJson, sender);
+        reqJson.put("subject", reqJson, "Notice");
+        reqJson.put("text", reqJson, "Same body for everyone.");
+        reqJson.put("charset", reqJson, "UTF-8");
+        NativeArray results = mailTransport.sendFanOut(reqJson);
+
+        assertThat(results.size(), is(3));
+        assertThat(((NativeObject) results.get(0)).get("sent"), is((Object) true));
+        assertThat(((NativeObject) results.get(1)).get("sent"), is((Object) false));
+        assertThat(((NativeObject) results.get(2)).get("sent"), is((Object) true));
+        assertThat(server.getReceivedEmailSize(), is(2));
+
+        Iterator<SmtpMessage> received = server.getReceivedEmail();
+        SmtpMessage first = received.next();
+        SmtpMessage second = received.next();
+        assertThat(first.getHeaderValue("To"), is("Taro Yamada <taro1@example.com>"));
+        assertThat(second.getHeaderValue("To"), is("hanako1@example.com"));
+        assertThat(first.getHeaderValue("Subject"), is("Notice"));
+        assertThat(second.getHeaderValue("Subject"), is("Notice"));
+        assertThat(first.getHeaderValue("Message-ID").equals(second.getHeaderValue("Message-ID")), is(false));
+        assertTrue(second.getBody().contains("Same body for everyone."));
+    }
+
+    /**
+     * ファンアウトでtoを指定した場合例外を発すること.
+     * @throws Exception
+     */
+    @Test(expected = EcmaError.class)
+    public void ファンアウトでtoを指定した場合例外を発すること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject sender = new NativeObject();
+        sender.put("address", sender, "john999@example.com");
+
+        NativeObject reqJson = new NativeObject();
+        reqJson.put("recipients", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("reply-to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("from", reqJson, sender);
+        reqJson.put("subject", reqJson, "Notice");
+        reqJson.put("text", reqJson, "body");
+        mailTransport.sendFanOut(reqJson);
+    }
+
+    /**
+     * ファイルとストリームを添付してメール送信できること.
+     * @throws Exception
+     */
+    @Test
+    public void ファイルとストリームを添付してメール送信できること() throws Exception {
+        Path baseDir = Files.createTempDirectory("mailsender-attachment");
+        Path report = Files.write(baseDir.resolve("report.txt"), "hello attachment".getBytes("UTF-8"));
+        try {
+            Ext_MailSender mailTransport = new Ext_MailSender();
+            smtpHostField.set(mailTransport, "localhost");
+            smtpPortField.set(mailTransport, "1025");
+            setAttachmentBaseDir(mailTransport, baseDir);
+
+            NativeObject fileAttachment = new NativeObject();
+            fileAttachment.put("filename", fileAttachment, "報告書.txt");
+            fileAttachment.put("path", fileAttachment, "report.txt");
+            NativeObject streamAttachment = new NativeObject();
+            streamAttachment.put("filename", streamAttachment, "data.bin");
+            streamAttachment.put("contentType", streamAttachment, "application/octet-stream");
+            streamAttachment.put("stream", streamAttachment, new ByteArrayInputStream(new byte[] {1, 2, 3 }));
+
+            NativeObject reqJson = newAttachmentRequest(fileAttachment, streamAttachment);
+            mailTransport.send(reqJson);
+
+            assertThat(server.getReceivedEmailSize(), is(1));
+            String body = server.getReceivedEmail().next().getBody();
+            assertTrue(body.contains("aGVsbG8gYXR0YWNobWVudA=="));
+            assertTrue(body.contains("AQID"));
+            assertTrue(body.contains("data.bin"));
+        } finally {
+            Files.delete(report);
+            Files.delete(baseDir);
+        }
+    }
+
+    /**
+     * 基準ディレクトリの外のファイルを添付しようとした場合例外を発すること.
+     * @throws Exception
+     */
+    @Test
+    public void 基準ディレクトリの外のファイルを添付しようとした場合例外を発すること() throws Exception {
+        Path root = Files.createTempDirectory("mailsender-attachment");
+        Path baseDir = Files.createDirectory(root.resolve("base"));
+        Path secret = Files.write(root.resolve("secret.txt"), "secret".getBytes("UTF-8"));
+        try {
+            Ext_MailSender mailTransport = new Ext_MailSender();
+            smtpHostField.set(mailTransport, "localhost");
+            smtpPortField.set(mailTransport, "1025");
+            setAttachmentBaseDir(mailTransport, baseDir);
+
+            NativeObject attachment = new NativeObject();
+            attachment.put("filename", attachment, "secret.txt");
+            attachment.put("path", attachment, "../secret.txt");
+            try {
+                mailTransport.send(newAttachmentRequest(attachment));
+                fail();
+            } catch (EcmaError e) {
+                assertThat(server.getReceivedEmailSize(), is(0));
+            }
+        } finally {
+            Files.delete(secret);
+            Files.delete(baseDir);
+            Files.delete(root);
+        }
+    }
+
+    /**
+     * 非同期送信でストリームを添付した場合例外を発すること.
+     * @throws Exception
+     */
+    @Test(expected = EcmaError.class)
+    public void 非同期送信でストリームを添付した場合例外を発すること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject attachment = new NativeObject();
+        attachment.put("filename", attachment, "data.bin");
+        attachment.put("stream", attachment, new ByteArrayInputStream(new byte[] {1, 2, 3 }));
+        mailTransport.sendAsync(newAttachmentRequest(attachment));
+    }
+
+    /**
+     * 送信元アドレス毎の送信レートの上限を超えた場合は送信されないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 送信元アドレス毎の送信レートの上限を超えた場合は送信されないこと() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+        Field rateLimiterField = Ext_MailSender.class.getDeclaredField("rateLimiter");
+        rateLimiterField.setAccessible(true);
+        rateLimiterField.set(mailTransport, new RateLimiter(0d, 0, 1d, 1, 0L));
+
+        NativeObject reqJson = newAttachmentRequest();
+        NativeArray results = mailTransport.sendBatch(new NativeArray(new Object[] {reqJson, reqJson }));
+
+        NativeObject result0 = (NativeObject) results.get(0);
+        NativeObject result1 = (NativeObject) results.get(1);
+        assertThat(result0.get("sent"), is((Object) true));
+        assertThat(result1.get("sent"), is((Object) false));
+        assertTrue(((String) result1.get("error")).startsWith("Sending rate limit exceeded"));
+        assertThat(server.getReceivedEmailSize(), is(1));
+    }
+
+    /**
+     * 同じ冪等キーで再送信した場合は送信されないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 同じ冪等キーで再送信した場合は送信されないこと() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject reqJson = newAttachmentRequest();
+        reqJson.put("idempotency-key", reqJson, "order-" + System.nanoTime());
+        mailTransport.send(reqJson);
+        mailTransport.send(reqJson);
+
+        NativeArray results = mailTransport.sendBatch(new NativeArray(new Object[] {reqJson }));
+        assertThat(((NativeObject) results.get(0)).get("sent"), is((Object) true));
+        assertThat(server.getReceivedEmailSize(), is(1));
+    }
+
+    /**
+     * 同じ冪等キーで非同期送信した場合は最初のメッセージIDが返されること.
+     * @throws Exception
+     */
+    @Test
+    public void 同じ冪等キーで非同期送信した場合は最初のメッセージIDが返されること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject reqJson = newAttachmentRequest();
+        reqJson.put("idempotency-key", reqJson, "async-" + System.nanoTime());
+        String messageId = mailTransport.sendAsync(reqJson);
+        assertThat(mailTransport.sendAsync(reqJson), is(messageId));
+        for (int i = 0; i < 50 && server.getReceivedEmailSize() == 0; i++) {
+            Thread.sleep(100L);
+        }
+        assertThat(server.getReceivedEmailSize(), is(1));
+    }
+
+    private static void setAttachmentBaseDir(Ext_MailSender mailTransport, Path baseDir) throws Exception {
+        Field field = Ext_MailSender.class.getDeclaredField("attachmentBaseDir");
+        field.setAccessible(true);
+        field.set(mailTransport, baseDir);
+    }
+
+    /**
+     * 一括送信でbccがチャンクに分けて送信されること.
+     * @throws Exception
+     */
+    @Test
+    public void 一括送信でbccがチャンクに分けて送信されること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+        Field bulkSenderField = Ext_MailSender.class.getDeclaredField("bulkSender");
+        bulkSenderField.setAccessible(true);
+        bulkSenderField.set(mailTransport, new BulkSender(50, 1000, 1));
+
+        Object[] bcc = new Object[119];
+        for (int i = 0; i < bcc.length; i++) {
+            NativeObject recipient = new NativeObject();
+            recipient.put("address", recipient, "member" + i + "@example.com");
+            bcc[i] = recipient;
+        }
+        NativeObject reqJson = newAttachmentRequest();
+        reqJson.put("bcc", reqJson, new NativeArray(bcc));
+        NativeArray results = mailTransport.sendBulk(reqJson);
+
+        assertThat(results.size(), is(3));
+        assertThat(((NativeObject) results.get(0)).get("sent"), is((Object) true));
+        assertThat(((NativeObject) results.get(0)).get("recipients"), is((Object) 50));
+        assertThat(((NativeObject) results.get(2)).get("sent"), is((Object) true));
+        assertThat(((NativeObject) results.get(2)).get("recipients"), is((Object) 20));
+        assertThat(server.getReceivedEmailSize(), is(3));
+        Iterator<SmtpMessage> received = server.getReceivedEmail();
+        while (received.hasNext()) {
+            SmtpMessage message = received.next();
+            assertThat(message.getHeaderValue("To"), is("taro1@example.com"));
+            assertThat(message.getHeaderValue("Bcc"), is((String) null));
+        }
+    }
+
+    /**
+     * 一括送信でtoとccの合計が制限値を超える場合例外を発すること.
+     * @throws Exception
+     */
+    @Test(expected = EcmaError.class)
+    public void 一括送信でtoとccの合計が制限値を超える場合例外を発すること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        Object[] cc = new Object[50];
+        for (int i = 0; i < cc.length; i++) {
+            NativeObject recipient = new NativeObject();
+            recipient.put("address", recipient, "member" + i + "@example.com");
+            cc[i] = recipient;
+        }
+        NativeObject reqJson = newAttachmentRequest();
+        reqJson.put("cc", reqJson, new NativeArray(cc));
+        mailTransport.sendBulk(reqJson);
+    }
+
+    /**
+     * 準備したメッセージを宛先を差し替えて繰り返し送信できること.
+     * @throws Exception
+     */
+    @Test
+    public void 準備したメッセージを宛先を差し替えて繰り返し送信できること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        String handle = mailTransport.prepare(newAttachmentRequest());
+        mailTransport.sendPrepared(handle, null);
+        NativeObject hanako = new NativeObject();
+        hanako.put("address", hanako, "hanako1@example.com");
+        NativeObject overrides = new NativeObject();
+        overrides.put("to", overrides, new NativeArray(new Object[] {hanako }));
+        mailTransport.sendPrepared(handle, overrides);
+
+        assertThat(server.getReceivedEmailSize(), is(2));
+        Iterator<SmtpMessage> received = server.getReceivedEmail();
+        SmtpMessage first = received.next();
+        SmtpMessage second = received.next();
+        assertThat(first.getHeaderValue("To"), is("taro1@example.com"));
+        assertThat(second.getHeaderValue("To"), is("hanako1@example.com"));
+        assertThat(second.getHeaderValue("Subject"), is("report"));
+        assertThat(first.getHeaderValue("Message-ID").equals(second.getHeaderValue("Message-ID")), is(false));
+    }
+
+    /**
+     * 準備したテンプレートに送信毎の差し込み値が置換されること.
+     * @throws Exception
+     */
+    @Test
+    public void 準備したテンプレートに送信毎の差し込み値が置換されること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject reqJson = newAttachmentRequest();
+        reqJson.put("subject", reqJson, "Hello ${name} from ${sender}");
+        NativeObject defaults = new NativeObject();
+        defaults.put("name", defaults, "customer");
+        defaults.put("sender", defaults, "Personium");
+        reqJson.put("vars", reqJson, defaults);
+        String handle = mailTransport.prepare(reqJson);
+        NativeObject vars = new NativeObject();
+        vars.put("name", vars, "Taro");
+        NativeObject overrides = new NativeObject();
+        overrides.put("vars", overrides, vars);
+        mailTransport.sendPrepared(handle, overrides);
+
+        assertThat(server.getReceivedEmailSize(), is(1));
+        assertThat(server.getReceivedEmail().next().getHeaderValue("Subject"), is("Hello Taro from Personium"));
+    }
+
+    /**
+     * テンプレートを指定せずに準備した件名がそのまま送信されること.
+     * @throws Exception
+     */
+    @Test
+    public void テンプレートを指定せずに準備した件名がそのまま送信されること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        NativeObject reqJson = newAttachmentRequest();
+        reqJson.put("subject", reqJson, "Price ${price}");
+        reqJson.put("text", reqJson, "Unclosed ${ is fine");
+        String handle = mailTransport.prepare(reqJson);
+        mailTransport.sendPrepared(handle, null);
+
+        assertThat(server.getReceivedEmailSize(), is(1));
+        SmtpMessage message = server.getReceivedEmail().next();
+        assertThat(message.getHeaderValue("Subject"), is("Price ${price}"));
+        assertThat(message.getBody().contains("Unclosed ${ is fine"), is(true));
+    }
+
+    /**
+     * 準備されていないハンドルを指定した場合例外を発すること.
+     * @throws Exception
+     */
+    @Test(expected = EcmaError.class)
+    public void 準備されていないハンドルを指定した場合例外を発すること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+        mailTransport.sendPrepared("unknown", null);
+    }
+
+    /**
+     * DKIMの設定がある送信元のメールに署名して送信されること.
+     * @throws Exception
+     */
+    @Test
+    public void DKIMの設定がある送信元のメールに署名して送信されること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        Path keyFile = Files.createTempFile("mailsender-dkim", ".der");
+        try {
+            Files.write(keyFile, generator.generateKeyPair().getPrivate().getEncoded());
+            Field dkimSignerField = Ext_MailSender.class.getDeclaredField("dkimSigner");
+            dkimSignerField.setAccessible(true);
+            dkimSignerField.set(mailTransport, new DkimSigner("example.com:sel:" + keyFile, "from:to:subject"));
+
+            NativeObject reqJson = newAttachmentRequest();
+            NativeArray results = mailTransport.sendBatch(new NativeArray(new Object[] {reqJson, reqJson }));
+
+            assertThat(((NativeObject) results.get(0)).get("sent"), is((Object) true));
+            assertThat(((NativeObject) results.get(1)).get("sent"), is((Object) true));
+            assertThat(server.getReceivedEmailSize(), is(2));
+            Iterator<SmtpMessage> received = server.getReceivedEmail();
+            while (received.hasNext()) {
+                SmtpMessage message = received.next();
+                assertTrue(message.getHeaderValue("DKIM-Signature").startsWith("v=1; a=rsa-sha256;"));
+                assertThat(message.getHeaderValue("Bcc"), is(nullValue()));
+                assertTrue(message.getBody().contains("see attached"));
+            }
+        } finally {
+            Files.delete(keyFile);
+        }
+    }
+
+    /**
+     * DKIMで署名しスプールから回収したメッセージがBccの宛先にも送信されること.
+     * @throws Exception
+     */
+    @Test
+    public void DKIMで署名しスプールから回収したメッセージがBccの宛先にも送信されること() throws Exception {
+        TlsSmtpServer relay = new TlsSmtpServer(null, false, false);
+        Path keyFile = Files.createTempFile("mailsender-dkim", ".der");
+        File spoolDir = Files.createTempDirectory("mailsender-spool").toFile();
+        try {
+            Ext_MailSender mailTransport = new Ext_MailSender();
+            smtpHostField.set(mailTransport, "localhost");
+            smtpPortField.set(mailTransport, relay.getPort());
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(1024);
+            Files.write(keyFile, generator.generateKeyPair().getPrivate().getEncoded());
+            Field dkimSignerField = Ext_MailSender.class.getDeclaredField("dkimSigner");
+            dkimSignerField.setAccessible(true);
+            dkimSignerField.set(mailTransport, new DkimSigner("example.com:sel:" + keyFile, "from:to:subject"));
+            Field mailSpoolField = Ext_MailSender.class.getDeclaredField("mailSpool");
+            mailSpoolField.setAccessible(true);
+            Field outboundQueueField = Ext_MailSender.class.getDeclaredField("outboundQueue");
+            outboundQueueField.setAccessible(true);
+
+            // ワーカースレッドを塞いだキューに積み、送信前に停止する
+            final CountDownLatch release = new CountDownLatch(1);
+            OutboundQueue stalled = new OutboundQueue(10, 1, OutboundQueue.POLICY_ABORT);
+            stalled.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            MailSpool spool = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+            mailSpoolField.set(mailTransport, spool);
+            outboundQueueField.set(mailTransport, stalled);
+            NativeObject hidden = new NativeObject();
+            hidden.put("address", hidden, "hidden@example.com");
+            NativeObject reqJson = newAttachmentRequest();
+            reqJson.put("bcc", reqJson, new NativeArray(new Object[] {hidden }));
+            mailTransport.sendAsync(reqJson);
+            stalled.shutdown();
+            spool.close();
+
+            MailSpool reopened = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+            OutboundQueue queue = new OutboundQueue(10, 1, OutboundQueue.POLICY_ABORT);
+            mailSpoolField.set(mailTransport, reopened);
+            outboundQueueField.set(mailTransport, queue);
+            Method resubmit = Ext_MailSender.class.getDeclaredMethod("resubmitRecoveredMessages");
+            resubmit.setAccessible(true);
+            resubmit.invoke(mailTransport);
+            assertTrue(queue.awaitTermination(10000L));
+            reopened.close();
+
+            assertThat(relay.getPlainReceivedCount(), is(1));
+            assertThat(relay.getRecipients().contains("<hidden@example.com>"), is(true));
+            assertThat(relay.getRecipients().contains("<taro1@example.com>"), is(true));
+        } finally {
+            relay.close();
+            Files.delete(keyFile);
+            for (File file : spoolDir.listFiles()) {
+                file.delete();
+            }
+            spoolDir.delete();
+        }
+    }
+
+    /**
+     * 非同期送信の配送状況を照会できること.
+     * @throws Exception
+     */
+    @Test
+    public void 非同期送信の配送状況を照会できること() throws Exception {
+        Ext_MailSender mailTransport = new Ext_MailSender();
+        smtpHostField.set(mailTransport, "localhost");
+        smtpPortField.set(mailTransport, "1025");
+
+        String messageId = mailTransport.sendAsync(newAttachmentRequest());
+        NativeObject status = mailTransport.getStatus(messageId);
+        for (int i = 0; i < 50 && !"sent".equals(status.get("state")); i++) {
+            Thread.sleep(100L);
+            status = mailTransport.getStatus(messageId);
+        }
+
+        assertThat(status.get("state"), is((Object) "sent"));
+        assertThat(status.get("from"), is((Object) "john999@example.com"));
+        NativeObject filter = new NativeObject();
+        filter.put("state", filter, "sent");
+        filter.put("from", filter, "john999@example.com");
+        filter.put("limit", filter, 1d);
+        NativeArray recent = mailTransport.listRecent(filter);
+        assertThat(recent.size(), is(1));
+        assertThat(((NativeObject) recent.get(0)).get("messageId"), is((Object) messageId));
+        assertThat(mailTransport.getStatus("unknown"), is(nullValue()));
+    }
+
+    private static NativeObject newAttachmentRequest(Object... attachments) {
+        NativeObject sender = new NativeObject();
+        sender.put("address", sender, "john999@example.com");
+        NativeObject recipient = new NativeObject();
+        recipient.put("address", recipient, "taro1@example.com");
+
+        NativeObject reqJson = new NativeObject();
+        reqJson.put("to", reqJson, new NativeArray(new Object[] {recipient }));
+        reqJson.put("reply-to", reqJson, new NativeArray(new Object[] {sender }));
+        reqJson.put("from", reqJson, sender);
+        reqJson.put("subject", reqJson, "report");
+        reqJson.put("text", reqJson, "see attached");
+        reqJson.put("charset", reqJson, "UTF-8");
+        reqJson.put("attachments", reqJson, new NativeArray(attachments));
+        return reqJson;
+    }
+
 }
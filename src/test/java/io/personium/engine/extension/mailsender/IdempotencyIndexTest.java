@@ -0,0 +1,145 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+
+import org.junit.Test;
+
+public class IdempotencyIndexTest {
+
+    /**
+     * 送信済みのキーは記録した結果が返されること.
+     * @throws Exception
+     */
+    @Test
+    public void 送信済みのキーは記録した結果が返されること() throws Exception {
+        IdempotencyIndex index = new IdempotencyIndex(60000L, 10, null);
+        assertThat(index.begin("key1"), is(nullValue()));
+        index.complete("key1", "message-1");
+
+        IdempotencyIndex.Entry entry = index.begin("key1");
+        assertThat(entry, is(notNullValue()));
+        assertThat(entry.isPending(), is(false));
+        assertThat(entry.getResult(), is("message-1"));
+    }
+
+    /**
+     * 処理中のキーは処理中として返され中止すると再び登録できること.
+     * @throws Exception
+     */
+    @Test
+    public void 処理中のキーは処理中として返され中止すると再び登録できること() throws Exception {
+        IdempotencyIndex index = new IdempotencyIndex(60000L, 10, null);
+        assertThat(index.begin("key1"), is(nullValue()));
+        assertThat(index.begin("key1").isPending(), is(true));
+        index.abort("key1");
+        assertThat(index.begin("key1"), is(nullValue()));
+    }
+
+    /**
+     * 期限切れのキーは再び登録できること.
+     * @throws Exception
+     */
+    @Test
+    public void 期限切れのキーは再び登録できること() throws Exception {
+        IdempotencyIndex index = new IdempotencyIndex(50L, 10, null);
+        index.begin("key1");
+        index.complete("key1", "message-1");
+        Thread.sleep(100L);
+        assertThat(index.begin("key1"), is(nullValue()));
+    }
+
+    /**
+     * 上限を超えた場合は古いキーから破棄されること.
+     * @throws Exception
+     */
+    @Test
+    public void 上限を超えた場合は古いキーから破棄されること() throws Exception {
+        IdempotencyIndex index = new IdempotencyIndex(60000L, 2, null);
+        for (int i = 0; i < 3; i++) {
+            index.begin("key" + i);
+            index.complete("key" + i, "message-" + i);
+        }
+        assertThat(index.size(), is(2));
+        assertThat(index.begin("key0"), is(nullValue()));
+        assertThat(index.begin("key2").getResult(), is("message-2"));
+    }
+
+    /**
+     * ファイルに記録したキーが再起動後も引き継がれること.
+     * @throws Exception
+     */
+    @Test
+    public void ファイルに記録したキーが再起動後も引き継がれること() throws Exception {
+        File file = File.createTempFile("mailsender", ".idempotency");
+        try {
+            IdempotencyIndex index = new IdempotencyIndex(60000L, 10, file);
+            index.begin("key1");
+            index.complete("key1", "message-1");
+            index.begin("key2");
+            index.close();
+
+            IdempotencyIndex reopened = new IdempotencyIndex(60000L, 10, file);
+            assertThat(reopened.begin("key1").getResult(), is("message-1"));
+            // 処理中だったキーは記録されない
+            assertThat(reopened.begin("key2"), is(nullValue()));
+            reopened.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * 割り込まれたスレッドから記録してもファイルへの記録が続けられること.
+     * @throws Exception
+     */
+    @Test
+    public void 割り込まれたスレッドから記録してもファイルへの記録が続けられること() throws Exception {
+        File file = File.createTempFile("mailsender", ".idempotency");
+        try {
+            IdempotencyIndex index = new IdempotencyIndex(60000L, 10, file);
+            index.begin("key1");
+            Thread.currentThread().interrupt();
+            index.complete("key1", "message-1");
+            // 割り込み状態は呼び出し元に戻される
+            assertThat(Thread.interrupted(), is(true));
+
+            // 割り込みでファイルが閉じられた場合は書き直して開き直す
+            Field channelField = IdempotencyIndex.class.getDeclaredField("channel");
+            channelField.setAccessible(true);
+            ((FileChannel) channelField.get(index)).close();
+            index.begin("key2");
+            index.complete("key2", "message-2");
+            index.close();
+
+            IdempotencyIndex reopened = new IdempotencyIndex(60000L, 10, file);
+            assertThat(reopened.begin("key1").getResult(), is("message-1"));
+            assertThat(reopened.begin("key2").getResult(), is("message-2"));
+            reopened.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    /**
+     * 件数と平均と最大が記録した値から求められること.
+     */
+    @Test
+    public void 件数と平均と最大が記録した値から求められること() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(100L));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(300L));
+        assertThat(histogram.getCount(), is(2L));
+        assertThat(histogram.getMeanMicros(), is(200L));
+        assertThat(histogram.getMaxMicros(), is(300L));
+    }
+
+    /**
+     * パーセンタイルが実際の値以上かつ2倍未満となること.
+     */
+    @Test
+    public void パーセンタイルが実際の値以上かつ2倍未満となること() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        long p50 = histogram.getPercentileMicros(50d);
+        long p99 = histogram.getPercentileMicros(99d);
+        assertTrue(500L <= p50 && p50 < 1000L);
+        assertTrue(990L <= p99 && p99 <= 1000L);
+        assertThat(histogram.getPercentileMicros(100d), is(1000L));
+    }
+
+    /**
+     * resetで記録が消去されること.
+     */
+    @Test
+    public void resetで記録が消去されること() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(5L));
+        histogram.reset();
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getMaxMicros(), is(0L));
+        assertThat(histogram.getPercentileMicros(50d), is(0L));
+    }
+}
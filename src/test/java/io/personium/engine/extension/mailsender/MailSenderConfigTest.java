@@ -0,0 +1,125 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Test;
+
+import io.personium.engine.extension.support.ExtensionLogger;
+
+public class MailSenderConfigTest {
+
+    private static final String PREFIX = ExtensionProperties.PREFIX;
+
+    ExtensionLogger logger = new ExtensionLogger(MailSenderConfig.class);
+
+    @After
+    public void after() {
+        MailSenderConfig.shutdown();
+    }
+
+    /**
+     * スナップショットが共有され元の設定の変更は反映されないこと.
+     */
+    @Test
+    public void スナップショットが共有され元の設定の変更は反映されないこと() {
+        MailSenderConfig.shutdown();
+        Properties properties = new Properties();
+        properties.setProperty(PREFIX + "smtp.host", "smtp1.example.com");
+        MailSenderConfig first = MailSenderConfig.getInstance(properties, logger);
+
+        properties.setProperty(PREFIX + "smtp.host", "smtp2.example.com");
+        MailSenderConfig second = MailSenderConfig.getInstance(properties, logger);
+
+        assertSame(first, second);
+        assertThat(second.getSmtpHost(), is("smtp1.example.com"));
+        assertThat(second.getSmtpPort(), is("25"));
+    }
+
+    /**
+     * 設定ファイルの変更でスナップショットが差し替えられること.
+     * @throws Exception
+     */
+    @Test
+    public void 設定ファイルの変更でスナップショットが差し替えられること() throws Exception {
+        MailSenderConfig.shutdown();
+        Path dir = Files.createTempDirectory("mailsender-config");
+        Path file = dir.resolve("Ext_MailSender.properties");
+        write(file, "smtp.host=smtp1.example.com", "config.file=" + file);
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        MailSenderConfig first = MailSenderConfig.getInstance(properties, logger);
+        assertThat(first.getSmtpHost(), is("smtp1.example.com"));
+
+        write(file, "smtp.host=smtp2.example.com", "smtp.port=2525", "config.file=" + file);
+        long deadline = System.currentTimeMillis() + 10000L;
+        MailSenderConfig current = MailSenderConfig.getInstance(null, logger);
+        while (first == current && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+            current = MailSenderConfig.getInstance(null, logger);
+        }
+
+        assertThat(current.getSmtpHost(), is("smtp2.example.com"));
+        assertThat(current.getSmtpPort(), is("2525"));
+        // 差し替え前のスナップショットは変わらない
+        assertThat(first.getSmtpHost(), is("smtp1.example.com"));
+        assertThat(first.getSmtpPort(), is("25"));
+    }
+
+    /**
+     * 送信先の無い設定ファイルは読み込まれないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 送信先の無い設定ファイルは読み込まれないこと() throws Exception {
+        MailSenderConfig.shutdown();
+        Properties properties = new Properties();
+        properties.setProperty(PREFIX + "smtp.host", "smtp1.example.com");
+        MailSenderConfig first = MailSenderConfig.getInstance(properties, logger);
+
+        Path file = Files.createTempFile("mailsender-config", ".properties");
+        write(file, "smtp.port=2525");
+        try {
+            MailSenderConfig.reload(file);
+            fail("IOException is expected.");
+        } catch (IOException e) {
+            assertSame(first, MailSenderConfig.getInstance(null, logger));
+        }
+    }
+
+    private static void write(Path file, String... lines) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (String line : lines) {
+            content.append(PREFIX).append(line).append('\n');
+        }
+        Files.write(file, content.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MailSpoolTest {
+
+    private static final String[] RECIPIENTS = new String[] {"taro@example.com" };
+
+    File spoolDir = null;
+
+    @Before
+    public void before() throws Exception {
+        spoolDir = Files.createTempDirectory("mailsender-spool").toFile();
+    }
+
+    @After
+    public void after() {
+        File[] files = spoolDir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spoolDir.delete();
+    }
+
+    /**
+     * 送信完了していないメッセージが再起動後に回収されること.
+     * @throws Exception
+     */
+    @Test
+    public void 送信完了していないメッセージが再起動後に回収されること() throws Exception {
+        MailSpool spool = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+        spool.append("id-1", "john@example.com", "jane@example.com", RECIPIENTS, "message-1".getBytes("UTF-8"));
+        spool.append("id-2", null, "jane@example.com", new String[] {"taro@example.com", "hidden@example.com" },
+                "message-2".getBytes("UTF-8"));
+        spool.acknowledge("id-1");
+        spool.close();
+
+        MailSpool reopened = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+        List<MailSpool.Entry> recovered = reopened.drainRecovered();
+        MailSpool.Content content = reopened.read(recovered.get(0));
+        reopened.close();
+
+        assertThat(recovered.size(), is(1));
+        assertThat(recovered.get(0).messageId, is("id-2"));
+        assertThat(recovered.get(0).envelopeFrom, is((String) null));
+        assertArrayEquals("message-2".getBytes("UTF-8"), content.message);
+        assertArrayEquals(new String[] {"taro@example.com", "hidden@example.com" }, content.recipients);
+    }
+
+    /**
+     * 書き込み途中で途切れたレコードは無視されること.
+     * @throws Exception
+     */
+    @Test
+    public void 書き込み途中で途切れたレコードは無視されること() throws Exception {
+        MailSpool spool = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+        spool.append("id-1", "john@example.com", "jane@example.com", RECIPIENTS, "message-1".getBytes("UTF-8"));
+        spool.close();
+
+        FileOutputStream out = new FileOutputStream(new File(spoolDir, "mailsender.journal"), true);
+        out.write(new byte[] {0, 0, 1, 0, 1, 2, 3 });
+        out.close();
+
+        MailSpool reopened = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+        List<MailSpool.Entry> recovered = reopened.drainRecovered();
+        reopened.close();
+
+        assertThat(recovered.size(), is(1));
+        assertThat(recovered.get(0).messageId, is("id-1"));
+        assertThat(recovered.get(0).envelopeFrom, is("john@example.com"));
+        assertThat(recovered.get(0).from, is("jane@example.com"));
+    }
+
+    /**
+     * 書き込みに失敗したレコードの後に追記したメッセージが回収されること.
+     * @throws Exception
+     */
+    @Test
+    public void 書き込みに失敗したレコードの後に追記したメッセージが回収されること() throws Exception {
+        MailSpool spool = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+        spool.append("id-1", null, "jane@example.com", RECIPIENTS, "message-1".getBytes("UTF-8"));
+        // 書き込み途中で失敗したレコードを残す
+        FileOutputStream out = new FileOutputStream(new File(spoolDir, "mailsender.journal"), true);
+        out.write(new byte[] {0, 0, 1, 0, 1, 2, 3 });
+        out.close();
+        spool.append("id-2", null, "jane@example.com", RECIPIENTS, "message-2".getBytes("UTF-8"));
+        spool.close();
+
+        MailSpool reopened = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+        List<MailSpool.Entry> recovered = reopened.drainRecovered();
+        assertThat(recovered.size(), is(2));
+        assertThat(recovered.get(1).messageId, is("id-2"));
+        assertArrayEquals("message-2".getBytes("UTF-8"), reopened.read(recovered.get(1)).message);
+        reopened.close();
+    }
+
+    /**
+     * 壊れたレコードの長さを信用せず読み込みを終えること.
+     * @throws Exception
+     */
+    @Test
+    public void 壊れたレコードの長さを信用せず読み込みを終えること() throws Exception {
+        MailSpool spool = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+        spool.append("id-1", null, "jane@example.com", RECIPIENTS, "message-1".getBytes("UTF-8"));
+        spool.close();
+
+        FileOutputStream out = new FileOutputStream(new File(spoolDir, "mailsender.journal"), true);
+        out.write(new byte[] {0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1, 2, 3 });
+        out.close();
+
+        MailSpool reopened = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+        List<MailSpool.Entry> recovered = reopened.drainRecovered();
+        assertThat(recovered.size(), is(1));
+        assertArrayEquals("message-1".getBytes("UTF-8"), reopened.read(recovered.get(0)).message);
+        reopened.close();
+    }
+
+    /**
+     * 送信中のメッセージがあってもジャーナルが切り詰められること.
+     * @throws Exception
+     */
+    @Test
+    public void 送信中のメッセージがあってもジャーナルが切り詰められること() throws Exception {
+        MailSpool spool = new MailSpool(spoolDir, 16, 4096L);
+        spool.append("id-live", null, "jane@example.com", RECIPIENTS, "live".getBytes("UTF-8"));
+        byte[] content = new byte[1024];
+        for (int i = 0; i < 100; i++) {
+            spool.append("id-" + i, null, "jane@example.com", RECIPIENTS, content);
+            spool.acknowledge("id-" + i);
+        }
+        // 完了記録の確定を待つ
+        spool.append("id-last", null, "jane@example.com", RECIPIENTS, content);
+        spool.close();
+
+        assertThat(new File(spoolDir, "mailsender.journal").length() < 8192L, is(true));
+        MailSpool reopened = new MailSpool(spoolDir, 16, 4096L);
+        List<MailSpool.Entry> recovered = reopened.drainRecovered();
+        assertThat(recovered.size(), is(2));
+        assertThat(recovered.get(0).messageId, is("id-live"));
+        assertArrayEquals("live".getBytes("UTF-8"), reopened.read(recovered.get(0)).message);
+        assertThat(recovered.get(1).messageId, is("id-last"));
+        reopened.close();
+    }
+
+    /**
+     * 回収したメッセージは2回目以降取り出されないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 回収したメッセージは2回目以降取り出されないこと() throws Exception {
+        MailSpool spool = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+        spool.append("id-1", null, "jane@example.com", RECIPIENTS, "message-1".getBytes("UTF-8"));
+        spool.close();
+
+        MailSpool reopened = new MailSpool(spoolDir, 16, Long.MAX_VALUE);
+        assertThat(reopened.drainRecovered().size(), is(1));
+        assertThat(reopened.drainRecovered().size(), is(0));
+        reopened.close();
+    }
+}
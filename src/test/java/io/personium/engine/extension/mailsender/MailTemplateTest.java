@@ -0,0 +1,89 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MailTemplateTest {
+
+    /**
+     * プレースホルダが値に置換されること.
+     */
+    @Test
+    public void プレースホルダが値に置換されること() {
+        Map<String, String> vars = new HashMap<String, String>();
+        vars.put("name", "山田");
+        vars.put("date", "4/1");
+        MailTemplate template = MailTemplate.compile("${name}様\n${ date }のご予約を承りました。${name}");
+        assertThat(template.render(vars), is("山田様\n4/1のご予約を承りました。山田"));
+    }
+
+    /**
+     * 値の無いプレースホルダは空文字列に置換されること.
+     */
+    @Test
+    public void 値の無いプレースホルダは空文字列に置換されること() {
+        MailTemplate template = MailTemplate.compile("[${missing}]");
+        assertThat(template.render(new HashMap<String, String>()), is("[]"));
+    }
+
+    /**
+     * エスケープしたプレースホルダは置換されないこと.
+     */
+    @Test
+    public void エスケープしたプレースホルダは置換されないこと() {
+        Map<String, String> vars = new HashMap<String, String>();
+        vars.put("name", "Taro");
+        MailTemplate template = MailTemplate.compile("$${name} is ${name}, $ is $");
+        assertThat(template.render(vars), is("${name} is Taro, $ is $"));
+    }
+
+    /**
+     * プレースホルダを含まないテンプレートが判別できること.
+     */
+    @Test
+    public void プレースホルダを含まないテンプレートが判別できること() {
+        assertThat(MailTemplate.compile("plain $${text}").isConstant(), is(true));
+        assertThat(MailTemplate.compile("Hello ${name}").isConstant(), is(false));
+    }
+
+    /**
+     * 出力先のバッファに追記されること.
+     */
+    @Test
+    public void 出力先のバッファに追記されること() {
+        Map<String, String> vars = new HashMap<String, String>();
+        vars.put("n", "1");
+        StringBuilder buffer = new StringBuilder("No.");
+        MailTemplate.compile("${n}").renderTo(vars, buffer);
+        assertThat(buffer.toString(), is("No.1"));
+    }
+
+    /**
+     * 閉じていないプレースホルダはエラーとなること.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void 閉じていないプレースホルダはエラーとなること() {
+        MailTemplate.compile("Hello ${name");
+    }
+}
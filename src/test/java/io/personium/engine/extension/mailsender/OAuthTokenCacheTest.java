@@ -0,0 +1,197 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OAuthTokenCacheTest {
+
+    private OAuthTokenCache tokens = null;
+
+    /**
+     * 更新を停止する.
+     */
+    @After
+    public void after() {
+        if (null != tokens) {
+            tokens.stop();
+        }
+    }
+
+    /**
+     * 取得したトークンがキャッシュされること.
+     * @throws Exception 例外
+     */
+    @Test
+    public void 取得したトークンがキャッシュされること() throws Exception {
+        CountingSource source = new CountingSource(60000L, 0);
+        tokens = new OAuthTokenCache(source, 1000L, 100L);
+
+        assertThat(tokens.getToken(), is("token1"));
+        assertThat(tokens.getToken(), is("token1"));
+        assertThat(source.count.get(), is(1));
+    }
+
+    /**
+     * 失効前にバックグラウンドで更新されること.
+     * @throws Exception 例外
+     */
+    @Test
+    public void 失効前にバックグラウンドで更新されること() throws Exception {
+        // 1.5秒で失効するトークンを、失効の 0.4秒前に更新する
+        CountingSource source = new CountingSource(1500L, 0);
+        tokens = new OAuthTokenCache(source, 400L, 100L);
+        tokens.start();
+
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (2 > source.count.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+        assertThat(tokens.getToken(), is("token2"));
+    }
+
+    /**
+     * 更新に失敗しても失効までは古いトークンが使われること.
+     * @throws Exception 例外
+     */
+    @Test
+    public void 更新に失敗しても失効までは古いトークンが使われること() throws Exception {
+        // 2回目以降の取得は失敗する. 最初のトークンは 1.5秒で失効し、1秒後から更新を試みる
+        CountingSource source = new CountingSource(1500L, 1);
+        tokens = new OAuthTokenCache(source, 1400L, 100L);
+        tokens.start();
+
+        Thread.sleep(500L);
+        assertThat(tokens.getToken(), is("token1"));
+        Thread.sleep(1500L);
+        try {
+            tokens.getToken();
+            fail("Expired token was returned.");
+        } catch (MessagingException e) {
+            assertTrue(e.getMessage().contains("token endpoint is down"));
+        }
+    }
+
+    /**
+     * トークンエンドポイントの応答が解析されること.
+     * @throws Exception 例外
+     */
+    @Test
+    public void トークンエンドポイントの応答が解析されること() throws Exception {
+        OAuthTokenCache.Token token = OAuthTokenCache.parseTokenResponse(
+                "{\"access_token\" : \"ya29.a\\/b\", \"token_type\":\"Bearer\",\"expires_in\":3599}", 1000L);
+
+        assertThat(token.getValue(), is("ya29.a/b"));
+        assertThat(token.isExpired(3599999L), is(false));
+        assertThat(token.isExpired(3600000L), is(true));
+    }
+
+    /**
+     * 応答に含まれる新しいリフレッシュトークンが取り出されること.
+     * @throws Exception 例外
+     */
+    @Test
+    public void 応答に含まれる新しいリフレッシュトークンが取り出されること() throws Exception {
+        OAuthTokenCache.Token rotated = OAuthTokenCache.parseTokenResponse(
+                "{\"access_token\":\"a\",\"expires_in\":3599,\"refresh_token\":\"r2\"}", 0L);
+        OAuthTokenCache.Token kept = OAuthTokenCache.parseTokenResponse(
+                "{\"access_token\":\"a\",\"expires_in\":3599}", 0L);
+
+        assertThat(rotated.getRefreshToken(), is("r2"));
+        assertThat(kept.getRefreshToken(), is((String) null));
+    }
+
+    /**
+     * 最初のトークンの取得がバックグラウンドの更新と重なっても 1度しか取得しないこと.
+     * @throws Exception 例外
+     */
+    @Test
+    public void 最初のトークンの取得がバックグラウンドの更新と重なっても1度しか取得しないこと() throws Exception {
+        CountingSource source = new CountingSource(60000L, 0, 300L);
+        tokens = new OAuthTokenCache(source, 1000L, 100L);
+        tokens.start();
+
+        assertThat(tokens.getToken(), is("token1"));
+        Thread.sleep(500L);
+        assertThat(tokens.getToken(), is("token1"));
+        assertThat(source.count.get(), is(1));
+    }
+
+    /**
+     * access_tokenが無い応答は例外とすること.
+     */
+    @Test(expected = IOException.class)
+    public void access_tokenが無い応答は例外とすること() throws Exception {
+        OAuthTokenCache.parseTokenResponse("{\"error\":\"invalid_grant\"}", 0L);
+    }
+
+    /**
+     * 取得毎に token1, token2, ... を返す取得元.
+     */
+    private static final class CountingSource implements OAuthTokenCache.TokenSource {
+        private final AtomicInteger count = new AtomicInteger();
+        private final long lifetimeMillis;
+        private final int successes;
+        private final long latencyMillis;
+
+        /**
+         * コンストラクタ.
+         * @param lifetimeMillis トークンの有効期間(ミリ秒)
+         * @param successes 成功する取得の回数. 0の場合は常に成功する
+         */
+        CountingSource(long lifetimeMillis, int successes) {
+            this(lifetimeMillis, successes, 0L);
+        }
+
+        /**
+         * コンストラクタ.
+         * @param lifetimeMillis トークンの有効期間(ミリ秒)
+         * @param successes 成功する取得の回数. 0の場合は常に成功する
+         * @param latencyMillis 取得にかかる時間(ミリ秒)
+         */
+        CountingSource(long lifetimeMillis, int successes, long latencyMillis) {
+            this.lifetimeMillis = lifetimeMillis;
+            this.successes = successes;
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public OAuthTokenCache.Token fetch() throws IOException {
+            int n = count.incrementAndGet();
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted", e);
+            }
+            if (0 < successes && successes < n) {
+                throw new IOException("token endpoint is down");
+            }
+            return new OAuthTokenCache.Token("token" + n, System.currentTimeMillis() + lifetimeMillis);
+        }
+    }
+}
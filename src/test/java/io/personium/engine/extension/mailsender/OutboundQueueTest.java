@@ -0,0 +1,159 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OutboundQueueTest {
+
+    OutboundQueue queue = null;
+    CountDownLatch blocker = new CountDownLatch(1);
+
+    @After
+    public void after() {
+        blocker.countDown();
+        if (null != queue) {
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * キューが満杯の場合に拒否されること.
+     * @throws Exception
+     */
+    @Test(expected = RejectedExecutionException.class)
+    public void キューが満杯の場合に拒否されること() throws Exception {
+        queue = new OutboundQueue(1, 1, OutboundQueue.POLICY_ABORT);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        queue.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                await(blocker);
+            }
+        });
+        started.await(1, TimeUnit.SECONDS);
+        queue.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        queue.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    /**
+     * キューが満杯の場合に呼び出し元で実行されること.
+     * @throws Exception
+     */
+    @Test
+    public void キューが満杯の場合に呼び出し元で実行されること() throws Exception {
+        queue = new OutboundQueue(1, 1, OutboundQueue.POLICY_CALLER_RUNS);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        queue.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                await(blocker);
+            }
+        });
+        started.await(1, TimeUnit.SECONDS);
+        queue.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+
+        final Thread caller = Thread.currentThread();
+        final Thread[] executedOn = new Thread[1];
+        queue.submit(new Runnable() {
+            @Override
+            public void run() {
+                executedOn[0] = Thread.currentThread();
+            }
+        });
+        assertThat(executedOn[0], is(caller));
+    }
+
+    /**
+     * 呼び出し元で実行する設定でも、ワーカースレッドで実行する処理は呼び出し元で実行されないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 呼び出し元で実行する設定でもワーカースレッドで実行する処理は呼び出し元で実行されないこと() throws Exception {
+        queue = new OutboundQueue(1, 1, OutboundQueue.POLICY_CALLER_RUNS);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        queue.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                await(blocker);
+            }
+        });
+        started.await(1, TimeUnit.SECONDS);
+        final Thread caller = Thread.currentThread();
+        final Thread[] executedOn = new Thread[2];
+        final CountDownLatch executed = new CountDownLatch(1);
+        queue.submitInBackground(new Runnable() {
+            @Override
+            public void run() {
+                executedOn[0] = Thread.currentThread();
+                executed.countDown();
+            }
+        });
+
+        boolean rejected = false;
+        try {
+            queue.submitInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    executedOn[1] = Thread.currentThread();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected = true;
+        }
+        assertThat(rejected, is(true));
+        assertThat(executedOn[1], is((Thread) null));
+
+        blocker.countDown();
+        assertThat(executed.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(executedOn[0] == caller, is(false));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class PreparedMessageRegistryTest {
+
+    /**
+     * 登録毎に別のハンドルが返されること.
+     */
+    @Test
+    public void 登録毎に別のハンドルが返されること() {
+        PreparedMessageRegistry registry = new PreparedMessageRegistry(2);
+        PreparedMessageRegistry.Entry entry = new PreparedMessageRegistry.Entry(null, null, null, null, new byte[0]);
+        String first = registry.register(entry);
+        String second = registry.register(entry);
+
+        assertThat(first, is(not(second)));
+        assertSame(entry, registry.get(first));
+        assertThat(registry.get("unknown"), is(nullValue()));
+    }
+
+    /**
+     * 送信毎に本文を差し込むメッセージは本文ハッシュを保持しないこと.
+     */
+    @Test
+    public void 送信毎に本文を差し込むメッセージは本文ハッシュを保持しないこと() {
+        assertThat(new PreparedMessageRegistry.Entry(null, null, null, null, new byte[0]).bodyHash,
+                is(notNullValue()));
+        assertThat(new PreparedMessageRegistry.Entry(null, null, null, null, null).bodyHash, is(nullValue()));
+    }
+
+    /**
+     * 上限を超えると最も使われていないメッセージが破棄されること.
+     */
+    @Test
+    public void 上限を超えると最も使われていないメッセージが破棄されること() {
+        PreparedMessageRegistry registry = new PreparedMessageRegistry(2);
+        String a = registry.register(new PreparedMessageRegistry.Entry(null, null, null, null, new byte[0]));
+        String b = registry.register(new PreparedMessageRegistry.Entry(null, null, null, null, new byte[0]));
+        registry.get(a);
+        String c = registry.register(new PreparedMessageRegistry.Entry(null, null, null, null, new byte[0]));
+
+        assertThat(registry.size(), is(2));
+        assertThat(registry.get(b), is(nullValue()));
+        assertThat(registry.get(a), is(not(nullValue())));
+        assertThat(registry.get(c), is(not(nullValue())));
+    }
+}
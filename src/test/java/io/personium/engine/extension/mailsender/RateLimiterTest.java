@@ -0,0 +1,90 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    /**
+     * 送信元アドレス毎に制限されること.
+     */
+    @Test
+    public void 送信元アドレス毎に制限されること() {
+        RateLimiter limiter = new RateLimiter(0d, 0, 1d, 2, 0L);
+        assertThat(limiter.acquire("john@example.com"), is(true));
+        assertThat(limiter.acquire("JOHN@example.com"), is(true));
+        assertThat(limiter.acquire("john@example.com"), is(false));
+        assertThat(limiter.acquire("jane@example.com"), is(true));
+        assertThat(limiter.getTrackedSenderCount(), is(2));
+    }
+
+    /**
+     * プロセス全体の上限で拒否された場合は送信元のトークンを消費しないこと.
+     * @throws Exception
+     */
+    @Test
+    public void プロセス全体の上限で拒否された場合は送信元のトークンを消費しないこと() throws Exception {
+        // 送信元毎は 10秒に 1通、全体は 1秒に 1通
+        RateLimiter limiter = new RateLimiter(1d, 1, 0.1d, 1, 0L);
+        assertThat(limiter.acquire("john@example.com"), is(true));
+        assertThat(limiter.acquire("jane@example.com"), is(false));
+        Thread.sleep(1100L);
+        // jane のトークンは返却されているため、全体のトークンが補充されれば送信できる
+        assertThat(limiter.acquire("jane@example.com"), is(true));
+    }
+
+    /**
+     * 返却した許可は再び取得できること.
+     */
+    @Test
+    public void 返却した許可は再び取得できること() {
+        RateLimiter limiter = new RateLimiter(0.1d, 1, 0.1d, 1, 0L);
+        assertThat(limiter.acquire("john@example.com"), is(true));
+        assertThat(limiter.acquire("john@example.com"), is(false));
+        limiter.release("JOHN@example.com");
+        assertThat(limiter.acquire("john@example.com"), is(true));
+    }
+
+    /**
+     * 最大待ち時間以内であれば補充を待って許可されること.
+     */
+    @Test
+    public void 最大待ち時間以内であれば補充を待って許可されること() {
+        RateLimiter limiter = new RateLimiter(0d, 0, 20d, 1, 1000L);
+        assertThat(limiter.acquire("john@example.com"), is(true));
+        long start = System.nanoTime();
+        assertThat(limiter.acquire("john@example.com"), is(true));
+        assertTrue(40000000L <= System.nanoTime() - start);
+    }
+
+    /**
+     * 設定が無い場合は制限しないこと.
+     */
+    @Test
+    public void 設定が無い場合は制限しないこと() {
+        RateLimiter limiter = new RateLimiter(0d, 0, 0d, 0, 0L);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(limiter.acquire("john@example.com"), is(true));
+        }
+        assertThat(limiter.getTrackedSenderCount(), is(0));
+    }
+}
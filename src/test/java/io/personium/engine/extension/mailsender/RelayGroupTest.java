@@ -0,0 +1,155 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+import com.dumbster.smtp.SimpleSmtpServer;
+import com.sun.mail.smtp.SMTPMessage;
+
+import io.personium.engine.extension.mailsender.RelayGroup.Relay;
+
+public class RelayGroupTest {
+
+    Properties properties = new Properties();
+
+    /**
+     * リレーの設定を解析できること.
+     */
+    @Test
+    public void リレーの設定を解析できること() {
+        List<Relay> relays = RelayGroup.parseRelays("smtp1.example.com:2525:3, smtp2.example.com,,", properties);
+        assertThat(relays.size(), is(2));
+        assertThat(relays.get(0).getHost(), is("smtp1.example.com"));
+        assertThat(relays.get(0).getPort(), is("2525"));
+        assertThat(relays.get(0).getWeight(), is(3));
+        assertThat(relays.get(1).getHost(), is("smtp2.example.com"));
+        assertThat(relays.get(1).getPort(), is("25"));
+        assertThat(relays.get(1).getWeight(), is(1));
+    }
+
+    /**
+     * 重み付きラウンドロビンで重みに応じて振り分けられること.
+     */
+    @Test
+    public void 重み付きラウンドロビンで重みに応じて振り分けられること() {
+        RelayGroup group = new RelayGroup(RelayGroup.parseRelays("wrr1:25:3,wrr2:25:1", properties),
+                RelayGroup.BALANCING_WEIGHTED_ROUND_ROBIN);
+        Relay first = group.getRelays().get(0);
+        int count = 0;
+        for (int i = 0; i < 8; i++) {
+            if (first == group.select(Collections.<Relay>emptyList())) {
+                count++;
+            }
+        }
+        assertThat(count, is(6));
+    }
+
+    /**
+     * 処理中の送信が少ないリレーが選ばれること.
+     */
+    @Test
+    public void 処理中の送信が少ないリレーが選ばれること() {
+        RelayGroup group = new RelayGroup(RelayGroup.parseRelays("lor1:25:2,lor2:25:1", properties),
+                RelayGroup.BALANCING_LEAST_OUTSTANDING);
+        Relay first = group.getRelays().get(0);
+        Relay second = group.getRelays().get(1);
+        first.getOutstanding().set(3);
+        second.getOutstanding().set(1);
+        assertSame(second, group.select(Collections.<Relay>emptyList()));
+
+        // 重み 2 に対して 3件は、重み 1 に対して 2件より少ない
+        second.getOutstanding().set(2);
+        assertSame(first, group.select(Collections.<Relay>emptyList()));
+    }
+
+    /**
+     * 応答の無いリレーは他に候補が無い場合に限り選ばれること.
+     */
+    @Test
+    public void 応答の無いリレーは他に候補が無い場合に限り選ばれること() throws Exception {
+        SimpleSmtpServer server = SimpleSmtpServer.start(1025);
+        try {
+            RelayGroup group = new RelayGroup(RelayGroup.parseRelays("localhost:1,localhost:1025", properties),
+                    RelayGroup.BALANCING_LEAST_OUTSTANDING);
+            Relay down = group.getRelays().get(0);
+            Relay up = group.getRelays().get(1);
+            SmtpConnectionPool pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                    .maxTotal(1)
+                    .maxIdle(0)
+                    .idleTimeoutMillis(0L)
+                    .maxLifetimeMillis(0L)
+                    .borrowTimeoutMillis(1000L));
+            group.checkHealth(pool);
+            assertThat(down.isHealthy(), is(false));
+            assertThat(up.isHealthy(), is(true));
+            for (int i = 0; i < 4; i++) {
+                assertSame(up, group.select(Collections.<Relay>emptyList()));
+            }
+
+            List<Relay> avoid = new ArrayList<Relay>();
+            avoid.add(up);
+            assertThat(group.hasAlternative(avoid), is(false));
+            assertThat(null != group.select(avoid), is(true));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * 接続できないリレーから他のリレーへ切り替えて送信されること.
+     * @throws Exception
+     */
+    @Test
+    public void 接続できないリレーから他のリレーへ切り替えて送信されること() throws Exception {
+        SimpleSmtpServer server = SimpleSmtpServer.start(1025);
+        try {
+            RelayGroup group = new RelayGroup(RelayGroup.parseRelays("localhost:1:100,localhost:1025:1", properties),
+                    RelayGroup.BALANCING_WEIGHTED_ROUND_ROBIN);
+            SmtpConnectionPool pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                    .maxTotal(1)
+                    .maxIdle(0)
+                    .idleTimeoutMillis(0L)
+                    .maxLifetimeMillis(0L)
+                    .borrowTimeoutMillis(1000L));
+            SmtpDispatcher dispatcher = new SmtpDispatcher(pool, new RetryPolicy(2, 0L, 0L), new SendMetrics());
+
+            SMTPMessage message = new SMTPMessage(Session.getInstance(new Properties()));
+            message.setFrom(new InternetAddress("john@example.com"));
+            message.setRecipient(RecipientType.TO, new InternetAddress("alice@example.com"));
+            message.setSubject("failover");
+            message.setText("body");
+            dispatcher.send(group, message);
+        } finally {
+            server.stop();
+        }
+        assertThat(server.getReceivedEmailSize(), is(1));
+    }
+}
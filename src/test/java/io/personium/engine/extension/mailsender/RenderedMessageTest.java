@@ -0,0 +1,208 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+public class RenderedMessageTest {
+
+    Session session = Session.getInstance(new Properties());
+
+    /**
+     * 宛先毎のヘッダが共有するメッセージの前に付けられること.
+     * @throws Exception
+     */
+    @Test
+    public void 宛先毎のヘッダが共有するメッセージの前に付けられること() throws Exception {
+        MimeMessage source = new MimeMessage(session);
+        source.setFrom(new InternetAddress("john@example.com"));
+        source.setSubject("件名", "UTF-8");
+        source.setText("本文", "UTF-8");
+        source.saveChanges();
+        byte[] content = RenderedMessage.render(source);
+
+        InternetAddress recipient = new InternetAddress("taro1@example.com");
+        recipient.setPersonal("山田 太郎", "UTF-8");
+        RenderedMessage message = new RenderedMessage(session, content, recipient, "bounce@example.org");
+
+        assertThat(message.getAllRecipients().length, is(1));
+        assertThat(message.getAllRecipients()[0], is((Object) recipient));
+        assertThat(message.getEnvelopeFrom(), is("bounce@example.org"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out, new String[] {"Bcc" });
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+        assertThat(parsed.getRecipients(RecipientType.TO)[0], is((Object) recipient));
+        assertThat(parsed.getHeader("Message-ID").length, is(1));
+        assertTrue(parsed.getMessageID().endsWith("@example.org>"));
+        assertThat(parsed.getSubject(), is("件名"));
+        assertThat((String) parsed.getContent(), is("本文"));
+    }
+
+    /**
+     * 送信毎のDateヘッダが付けられること.
+     * @throws Exception
+     */
+    @Test
+    public void 送信毎のDateヘッダが付けられること() throws Exception {
+        MimeMessage source = new MimeMessage(session);
+        source.setFrom(new InternetAddress("john@example.com"));
+        source.setSubject("subject");
+        source.setText("body");
+        source.setSentDate(new Date(0L));
+        source.saveChanges();
+        byte[] content = RenderedMessage.render(source);
+
+        long before = System.currentTimeMillis() - 1000L;
+        RenderedMessage message = new RenderedMessage(session, content, new InternetAddress("a@example.com"),
+                "john@example.com");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+        assertThat(parsed.getHeader("Date").length, is(1));
+        assertTrue(before <= parsed.getSentDate().getTime());
+    }
+
+    /**
+     * 共有するメッセージは変更されないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 共有するメッセージは変更されないこと() throws Exception {
+        MimeMessage source = new MimeMessage(session);
+        source.setFrom(new InternetAddress("john@example.com"));
+        source.setSubject("subject");
+        source.setText("body");
+        source.saveChanges();
+        byte[] content = RenderedMessage.render(source);
+        byte[] copy = content.clone();
+
+        for (String address : new String[] {"a@example.com", "b@example.com" }) {
+            new RenderedMessage(session, content, new InternetAddress(address), "john@example.com")
+                    .writeTo(new ByteArrayOutputStream());
+        }
+        assertTrue(Arrays.equals(copy, content));
+    }
+
+    /**
+     * 複数の宛先のToとCcヘッダが付けられること.
+     * @throws Exception
+     */
+    @Test
+    public void 複数の宛先のToとCcヘッダが付けられること() throws Exception {
+        MimeMessage source = new MimeMessage(session);
+        source.setFrom(new InternetAddress("john@example.com"));
+        source.setSubject("subject");
+        source.setText("body");
+        source.saveChanges();
+        byte[] content = RenderedMessage.render(source);
+
+        InternetAddress[] to = new InternetAddress[] {new InternetAddress("a@example.com"),
+                new InternetAddress("b@example.com") };
+        InternetAddress[] cc = new InternetAddress[] {new InternetAddress("c@example.com") };
+        InternetAddress bcc = new InternetAddress("d@example.com");
+        RenderedMessage message = new RenderedMessage(session, content, to, cc,
+                new InternetAddress[] {to[0], to[1], cc[0], bcc }, "john@example.com");
+
+        assertThat(message.getAllRecipients().length, is(4));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+        assertThat(parsed.getRecipients(RecipientType.TO).length, is(2));
+        assertThat(parsed.getRecipients(RecipientType.CC)[0], is((Object) cc[0]));
+        assertThat(parsed.getRecipients(RecipientType.BCC), is((Object) null));
+        assertThat(parsed.getSubject(), is("subject"));
+    }
+
+    /**
+     * 宛先のヘッダがヘッダ名を含めて1行76文字で折り返されること.
+     * @throws Exception
+     */
+    @Test
+    public void 宛先のヘッダがヘッダ名を含めて1行76文字で折り返されること() throws Exception {
+        MimeMessage source = new MimeMessage(session);
+        source.setFrom(new InternetAddress("john@example.com"));
+        source.setSubject("subject");
+        source.setText("body");
+        source.saveChanges();
+        byte[] content = RenderedMessage.render(source);
+
+        InternetAddress[] to = new InternetAddress[] {
+                new InternetAddress("abcdefghij0123456789abcdefgh@example.com"),
+                new InternetAddress("abcdefghij0123@example.com"), new InternetAddress("z@example.com") };
+        RenderedMessage message = new RenderedMessage(session, content, to, null, to, "john@example.com");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        String[] lines = new String(out.toByteArray(), StandardCharsets.US_ASCII).split("\r\n");
+
+        assertThat(lines[0], is("To: abcdefghij0123456789abcdefgh@example.com, abcdefghij0123@example.com, "));
+        assertThat(lines[1], is("\tz@example.com"));
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+        assertThat(parsed.getRecipients(RecipientType.TO).length, is(3));
+    }
+
+    /**
+     * 書き出し済みのメッセージがそのまま書き出されること.
+     * @throws Exception
+     */
+    @Test
+    public void 書き出し済みのメッセージがそのまま書き出されること() throws Exception {
+        byte[] content = "Subject: subject\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII);
+        InternetAddress[] recipients = new InternetAddress[] {new InternetAddress("a@example.com") };
+
+        RenderedMessage message = RenderedMessage.of(session, content, recipients, "bounce@example.org");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out, new String[] {"Bcc" });
+        assertTrue(Arrays.equals(content, out.toByteArray()));
+        assertThat(message.getEnvelopeFrom(), is("bounce@example.org"));
+    }
+
+    /**
+     * 書き出し済みのメッセージの前に指定したヘッダが付けられること.
+     * @throws Exception
+     */
+    @Test
+    public void 書き出し済みのメッセージの前に指定したヘッダが付けられること() throws Exception {
+        byte[] content = "Subject: subject\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] header = "DKIM-Signature: v=1\r\n".getBytes(StandardCharsets.US_ASCII);
+        InternetAddress[] recipients = new InternetAddress[] {new InternetAddress("a@example.com") };
+
+        RenderedMessage signed = RenderedMessage.withHeader(session, header, content, recipients,
+                "bounce@example.org");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        signed.writeTo(out);
+        assertThat(new String(out.toByteArray(), StandardCharsets.US_ASCII),
+                is("DKIM-Signature: v=1\r\nSubject: subject\r\n\r\nbody\r\n"));
+        assertThat(signed.getAllRecipients().length, is(1));
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+public class RetryPolicyTest {
+
+    RetryPolicy policy = new RetryPolicy(3, 100L, 1000L);
+
+    /**
+     * 4xx応答と接続の失敗が一時的な失敗と判定されること.
+     * @throws Exception
+     */
+    @Test
+    public void 応答4xxと接続の失敗が一時的な失敗と判定されること() throws Exception {
+        assertThat(policy.isTransient(new SMTPSendFailedException(
+                "DATA", 451, "451 try again later", null, null, null, null)), is(true));
+        assertThat(policy.isTransient(new MessagingException(
+                "Could not connect to SMTP host", new ConnectException("Connection refused"))), is(true));
+    }
+
+    /**
+     * 5xx応答と原因不明の失敗が恒久的な失敗と判定されること.
+     * @throws Exception
+     */
+    @Test
+    public void 応答5xxと原因不明の失敗が恒久的な失敗と判定されること() throws Exception {
+        assertThat(policy.isTransient(new SMTPSendFailedException(
+                "DATA", 554, "554 rejected", null, null, null, null)), is(false));
+        assertThat(policy.isTransient(new MessagingException("unknown")), is(false));
+    }
+
+    /**
+     * 一部の宛先へ送信済みの場合は再試行しないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 一部の宛先へ送信済みの場合は再試行しないこと() throws Exception {
+        InternetAddress sent = new InternetAddress("sent@example.com");
+        InternetAddress failed = new InternetAddress("failed@example.com");
+        SendFailedException e = new SendFailedException("Invalid Addresses",
+                new SMTPAddressFailedException(failed, "RCPT TO", 450, "450 mailbox busy"),
+                new Address[] {sent}, new Address[0], new Address[] {failed});
+        assertThat(policy.isTransient(e), is(false));
+    }
+
+    /**
+     * 書き出し後に応答が無いまま失敗した場合は再試行しないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 書き出し後に応答が無いまま失敗した場合は再試行しないこと() throws Exception {
+        MessagingException timeout = new MessagingException("Exception reading response",
+                new SocketTimeoutException("Read timed out"));
+        assertThat(policy.isTransient(timeout, false), is(true));
+        assertThat(policy.isTransient(timeout, true), is(false));
+        assertThat(policy.isTransient(new SMTPSendFailedException(
+                ".", 451, "451 try again later", null, null, null, null), true), is(true));
+    }
+
+    /**
+     * 待ち時間が上限を超えないこと.
+     */
+    @Test
+    public void 待ち時間が上限を超えないこと() {
+        for (int attempt = 1; attempt <= 40; attempt++) {
+            long backoff = policy.backoffMillis(attempt);
+            assertTrue(0L <= backoff);
+            assertTrue(Math.min(1000L, 100L << Math.min(30, attempt - 1)) >= backoff);
+        }
+    }
+}
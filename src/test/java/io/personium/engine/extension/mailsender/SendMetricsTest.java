@@ -0,0 +1,83 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+public class SendMetricsTest {
+
+    /**
+     * 送信結果が種類毎に数えられること.
+     */
+    @Test
+    public void 送信結果が種類毎に数えられること() {
+        SendMetrics metrics = new SendMetrics();
+        metrics.recordSuccess();
+        metrics.recordInvalidRequest();
+        metrics.recordFailure(new SendFailedException("rejected"));
+        metrics.recordFailure(new MessagingException("connection refused"));
+        metrics.recordFailure(new MessagingException("connection refused"));
+        assertThat(metrics.getSuccessCount(), is(1L));
+        assertThat(metrics.getInvalidRequestCount(), is(1L));
+        assertThat(metrics.getSendFailedCount(), is(1L));
+        assertThat(metrics.getMessagingErrorCount(), is(2L));
+
+        metrics.reset();
+        assertThat(metrics.getMessagingErrorCount(), is(0L));
+    }
+
+    /**
+     * 段階毎に所要時間が記録されること.
+     */
+    @Test
+    public void 段階毎に所要時間が記録されること() {
+        SendMetrics metrics = new SendMetrics();
+        long start = System.nanoTime();
+        long end = metrics.record(SendMetrics.Phase.BUILD, start);
+        assertThat(start <= end, is(true));
+        assertThat(metrics.getBuild().getCount(), is(1L));
+        assertThat(metrics.getSaveChanges().getCount(), is(0L));
+    }
+
+    /**
+     * MXBeanとして属性を参照できること.
+     * @throws Exception
+     */
+    @Test
+    public void MXBeanとして属性を参照できること() throws Exception {
+        SendMetrics metrics = SendMetrics.getInstance(new Properties());
+        metrics.record(SendMetrics.Phase.DATA, System.nanoTime());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(SendMetrics.OBJECT_NAME);
+        assertThat(server.getAttribute(name, "SuccessCount"), is((Object) metrics.getSuccessCount()));
+        CompositeData data = (CompositeData) server.getAttribute(name, "Data");
+        assertThat(0L < (Long) data.get("count"), is(true));
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+import javax.mail.Session;
+
+import org.junit.Test;
+
+public class SessionCacheTest {
+
+    /**
+     * 同じ接続先ではキャッシュしたSessionが返されること.
+     */
+    @Test
+    public void 同じ接続先ではキャッシュしたSessionが返されること() {
+        SessionCache cache = new SessionCache(2);
+
+        Session first = cache.getSession("localhost", "1025");
+        Session second = cache.getSession("localhost", "1025");
+
+        assertSame(first, second);
+        assertThat(first.getProperty("mail.smtp.host"), is("localhost"));
+        assertThat(first.getProperty("mail.smtp.from"), is((String) null));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getMissCount(), is(1L));
+    }
+
+    /**
+     * 接続先が異なる場合は別のSessionが返されること.
+     */
+    @Test
+    public void 接続先が異なる場合は別のSessionが返されること() {
+        SessionCache cache = new SessionCache(2);
+
+        Session first = cache.getSession("localhost", "1025");
+        Session second = cache.getSession("localhost", "1026");
+
+        assertNotSame(first, second);
+        assertThat(second.getProperty("mail.smtp.port"), is("1026"));
+        assertThat(cache.getMissCount(), is(2L));
+    }
+
+    /**
+     * 上限を超えた場合は最も使われていないSessionが破棄されること.
+     */
+    @Test
+    public void 上限を超えた場合は最も使われていないSessionが破棄されること() {
+        SessionCache cache = new SessionCache(2);
+
+        Session first = cache.getSession("smtp1.example.com", "25");
+        cache.getSession("smtp2.example.com", "25");
+        cache.getSession("smtp3.example.com", "25");
+
+        assertThat(cache.size(), is(2));
+        assertNotSame(first, cache.getSession("smtp1.example.com", "25"));
+    }
+}
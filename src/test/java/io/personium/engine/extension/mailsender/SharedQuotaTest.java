@@ -0,0 +1,140 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedQuotaTest {
+
+    private File file;
+
+    @Before
+    public void before() throws Exception {
+        file = File.createTempFile("mailsender", ".quota");
+        // 空のファイルから初期化させる
+        file.delete();
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    /**
+     * 同じファイルを開いた全ての上限で送信数が合算されること.
+     * @throws Exception
+     */
+    @Test
+    public void 同じファイルを開いた全ての上限で送信数が合算されること() throws Exception {
+        SharedQuota quota1 = new SharedQuota(file, 3, 60000L, 0L);
+        SharedQuota quota2 = new SharedQuota(file, 3, 60000L, 0L);
+        try {
+            assertThat(quota1.acquire(), is(true));
+            assertThat(quota2.acquire(), is(true));
+            assertThat(quota1.acquire(), is(true));
+            assertThat(quota2.acquire(), is(false));
+            assertThat(quota1.getCount(), is(3L));
+        } finally {
+            quota1.close();
+            quota2.close();
+        }
+    }
+
+    /**
+     * ウィンドウから外れた送信数は数えないこと.
+     * @throws Exception
+     */
+    @Test
+    public void ウィンドウから外れた送信数は数えないこと() throws Exception {
+        SharedQuota quota = new SharedQuota(file, 1, 600L, 0L);
+        try {
+            assertThat(quota.acquire(), is(true));
+            assertThat(quota.acquire(), is(false));
+            Thread.sleep(700L);
+            assertThat(quota.acquire(), is(true));
+        } finally {
+            quota.close();
+        }
+    }
+
+    /**
+     * 最大待ち時間以内に空きができる場合は待って加算すること.
+     * @throws Exception
+     */
+    @Test
+    public void 最大待ち時間以内に空きができる場合は待って加算すること() throws Exception {
+        SharedQuota quota = new SharedQuota(file, 1, 300L, 1000L);
+        try {
+            assertThat(quota.acquire(), is(true));
+            long start = System.currentTimeMillis();
+            assertThat(quota.acquire(), is(true));
+            assertThat(200L <= System.currentTimeMillis() - start, is(true));
+        } finally {
+            quota.close();
+        }
+    }
+
+    /**
+     * 割り込まれたスレッドから呼び出してもファイルを使い続けられること.
+     * @throws Exception
+     */
+    @Test
+    public void 割り込まれたスレッドから呼び出してもファイルを使い続けられること() throws Exception {
+        SharedQuota quota = new SharedQuota(file, 3, 60000L, 0L);
+        try {
+            Thread.currentThread().interrupt();
+            assertThat(quota.acquire(), is(true));
+            // 割り込み状態は呼び出し元に戻される
+            assertThat(Thread.interrupted(), is(true));
+
+            // 割り込みでチャネルが閉じられた場合は開き直す
+            Field channelField = SharedQuota.class.getDeclaredField("channel");
+            channelField.setAccessible(true);
+            ((FileChannel) channelField.get(quota)).close();
+            assertThat(quota.acquire(), is(true));
+            assertThat(quota.getCount(), is(2L));
+        } finally {
+            quota.close();
+        }
+    }
+
+    /**
+     * 異なる設定で作成されたファイルは開けないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 異なる設定で作成されたファイルは開けないこと() throws Exception {
+        new SharedQuota(file, 1, 60000L, 0L).close();
+        try {
+            new SharedQuota(file, 1, 120000L, 0L);
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage().contains("different configuration"), is(true));
+        }
+    }
+}
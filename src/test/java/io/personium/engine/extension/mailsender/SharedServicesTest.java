@@ -0,0 +1,77 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.personium.engine.extension.support.ExtensionLogger;
+
+public class SharedServicesTest {
+
+    ExtensionLogger logger = new ExtensionLogger(SharedServices.class);
+    Field currentField = null;
+
+    @Before
+    public void before() throws Exception {
+        currentField = SharedServices.class.getDeclaredField("current");
+        currentField.setAccessible(true);
+        currentField.set(null, null);
+    }
+
+    @After
+    public void after() throws Exception {
+        currentField.set(null, null);
+    }
+
+    /**
+     * 開けなかったサービスをインスタンスの取得毎に開き直さないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 開けなかったサービスをインスタンスの取得毎に開き直さないこと() throws Exception {
+        File blocker = Files.createTempFile("mailsender-spool", ".tmp").toFile();
+        try {
+            Properties properties = new Properties();
+            // ファイルの下にはスプールディレクトリを作れない
+            properties.setProperty(ExtensionProperties.PREFIX + "spool.dir",
+                    new File(blocker, "spool").getAbsolutePath());
+            SharedServices first = SharedServices.getInstance(properties, logger);
+            assertThat(first.getMailSpool(), is(nullValue()));
+
+            // 開けるようになっても、初回に取得したサービスを使い続ける
+            blocker.delete();
+            SharedServices second = SharedServices.getInstance(properties, logger);
+            assertSame(first, second);
+            assertThat(second.getMailSpool(), is(nullValue()));
+        } finally {
+            new File(blocker, "spool").delete();
+            blocker.delete();
+        }
+    }
+}
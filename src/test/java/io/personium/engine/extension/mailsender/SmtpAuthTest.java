@@ -0,0 +1,171 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.personium.engine.extension.mailsender.SmtpConnectionPool.PooledConnection;
+
+public class SmtpAuthTest {
+
+    private TlsSmtpServer server = null;
+    private SmtpConnectionPool pool = null;
+
+    /**
+     * 平文の SMTPサーバを起動する.
+     * @throws Exception 例外
+     */
+    @Before
+    public void before() throws Exception {
+        server = new TlsSmtpServer(null, false, false);
+    }
+
+    /**
+     * プールとサーバを停止する.
+     * @throws Exception 例外
+     */
+    @After
+    public void after() throws Exception {
+        if (null != pool) {
+            pool.closeAll();
+        }
+        server.close();
+    }
+
+    /**
+     * PLAINで接続毎に1度だけ認証されること.
+     * @throws Exception 例外
+     */
+    @Test
+    public void PLAINで接続毎に1度だけ認証されること() throws Exception {
+        pool = newPool(1, SmtpAuth.password(SmtpAuth.Mechanism.PLAIN, "user", "secret"));
+
+        send();
+        send();
+
+        assertThat(server.getConnectionCount(), is(1));
+        assertThat(server.getPlainReceivedCount(), is(2));
+        assertThat(server.getCredentials().size(), is(1));
+        assertTrue(server.getCredentials().get(0).startsWith("PLAIN "));
+        assertTrue(server.getCredentials().get(0).endsWith("user\u0000secret"));
+    }
+
+    /**
+     * LOGINで認証されること.
+     * @throws Exception 例外
+     */
+    @Test
+    public void LOGINで認証されること() throws Exception {
+        pool = newPool(1, SmtpAuth.password(SmtpAuth.Mechanism.LOGIN, "user", "secret"));
+
+        send();
+
+        assertThat(server.getCredentials().size(), is(1));
+        assertThat(server.getCredentials().get(0), is("LOGIN user:secret"));
+    }
+
+    /**
+     * XOAUTH2でキャッシュしたトークンが使われること.
+     * @throws Exception 例外
+     */
+    @Test
+    public void XOAUTH2でキャッシュしたトークンが使われること() throws Exception {
+        final AtomicInteger fetchCount = new AtomicInteger();
+        OAuthTokenCache tokens = new OAuthTokenCache(new OAuthTokenCache.TokenSource() {
+            @Override
+            public OAuthTokenCache.Token fetch() throws IOException {
+                fetchCount.incrementAndGet();
+                return new OAuthTokenCache.Token("token1", System.currentTimeMillis() + 60000L);
+            }
+        }, 1000L, 1000L);
+        // アイドル接続を保持しないプールのため、送信毎に接続して認証する
+        pool = newPool(0, SmtpAuth.oauth2("user@example.com", tokens));
+
+        send();
+        send();
+
+        assertThat(server.getCredentials().size(), is(2));
+        assertThat(server.getCredentials().get(1),
+                is("XOAUTH2 user=user@example.com\u0001auth=Bearer token1\u0001\u0001"));
+        assertThat(fetchCount.get(), is(1));
+    }
+
+    /**
+     * ユーザ名が設定されていない場合は接続しないこと.
+     * @throws Exception 例外
+     */
+    @Test
+    public void ユーザ名が設定されていない場合は接続しないこと() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(ExtensionProperties.PREFIX + "smtp.auth", "plain");
+        pool = newPool(1, SmtpAuth.fromProperties(properties));
+
+        try {
+            pool.borrow("localhost", server.getPort());
+            fail("Connected without authentication.");
+        } catch (MessagingException e) {
+            assertThat(e.getMessage(), is("smtp.auth.user is not specified in configuration."));
+            assertThat(server.getConnectionCount(), is(0));
+        }
+    }
+
+    private static SmtpConnectionPool newPool(int maxIdle, SmtpAuth auth) {
+        return new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(1)
+                .maxIdle(maxIdle)
+                .idleTimeoutMillis(0L)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(1000L)
+                .connectTimeoutMillis(5000L)
+                .timeoutMillis(5000L)
+                .auth(auth));
+    }
+
+    private void send() throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom(new InternetAddress("john@example.com"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("taro@example.com"));
+        message.setSubject("auth");
+        message.setText("hello");
+        message.saveChanges();
+        PooledConnection connection = pool.borrow("localhost", server.getPort());
+        try {
+            connection.getTransport().sendMessage(message, message.getAllRecipients());
+            pool.release(connection);
+        } catch (MessagingException e) {
+            pool.invalidate(connection);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.mail.MessagingException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dumbster.smtp.SimpleSmtpServer;
+
+import io.personium.engine.extension.mailsender.SmtpConnectionPool.PooledConnection;
+
+public class SmtpConnectionPoolTest {
+
+    // SMTP mock object.
+    SimpleSmtpServer server = null;
+    SmtpConnectionPool pool = null;
+
+    @Before
+    public void before() throws Exception {
+        server = SimpleSmtpServer.start(1025);
+    }
+
+    @After
+    public void after() {
+        if (null != pool) {
+            pool.closeAll();
+        }
+        server.stop();
+    }
+
+    /**
+     * 返却した接続が再利用されること.
+     * @throws Exception
+     */
+    @Test
+    public void 返却した接続が再利用されること() throws Exception {
+        pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(1)
+                .maxIdle(1)
+                .idleTimeoutMillis(0L)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(1000L));
+
+        PooledConnection first = pool.borrow("localhost", "1025");
+        assertTrue(first.getTransport().isConnected());
+        pool.release(first);
+
+        PooledConnection second = pool.borrow("localhost", "1025");
+        assertSame(first.getTransport(), second.getTransport());
+        pool.release(second);
+    }
+
+    /**
+     * 破棄した接続は再利用されないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 破棄した接続は再利用されないこと() throws Exception {
+        pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(1)
+                .maxIdle(1)
+                .idleTimeoutMillis(0L)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(1000L));
+
+        PooledConnection first = pool.borrow("localhost", "1025");
+        pool.invalidate(first);
+
+        PooledConnection second = pool.borrow("localhost", "1025");
+        assertNotSame(first.getTransport(), second.getTransport());
+        pool.release(second);
+    }
+
+    /**
+     * 最大寿命を超えた接続は再利用されないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 最大寿命を超えた接続は再利用されないこと() throws Exception {
+        pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(1)
+                .maxIdle(1)
+                .idleTimeoutMillis(0L)
+                .maxLifetimeMillis(1L)
+                .borrowTimeoutMillis(1000L));
+
+        PooledConnection first = pool.borrow("localhost", "1025");
+        Thread.sleep(10L);
+        pool.release(first);
+
+        PooledConnection second = pool.borrow("localhost", "1025");
+        assertNotSame(first.getTransport(), second.getTransport());
+        pool.release(second);
+    }
+
+    /**
+     * アイドル時間を超えた接続が切断されること.
+     * @throws Exception
+     */
+    @Test
+    public void アイドル時間を超えた接続が切断されること() throws Exception {
+        pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(1)
+                .maxIdle(1)
+                .idleTimeoutMillis(1L)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(1000L));
+
+        PooledConnection first = pool.borrow("localhost", "1025");
+        pool.release(first);
+        Thread.sleep(10L);
+        pool.evict();
+
+        PooledConnection second = pool.borrow("localhost", "1025");
+        assertNotSame(first.getTransport(), second.getTransport());
+        pool.release(second);
+    }
+
+    /**
+     * 最大接続数を超えて借り出そうとした場合に例外を発すること.
+     * @throws Exception
+     */
+    @Test(expected = MessagingException.class)
+    public void 最大接続数を超えて借り出そうとした場合に例外を発すること() throws Exception {
+        pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(1)
+                .maxIdle(1)
+                .idleTimeoutMillis(0L)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(100L));
+
+        PooledConnection first = pool.borrow("localhost", "1025");
+        try {
+            pool.borrow("localhost", "1025");
+        } finally {
+            pool.release(first);
+        }
+    }
+}
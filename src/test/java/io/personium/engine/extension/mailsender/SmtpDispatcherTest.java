@@ -0,0 +1,179 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+public class SmtpDispatcherTest {
+
+    private TlsSmtpServer server;
+    private SmtpConnectionPool pool;
+    private SmtpDispatcher dispatcher;
+    private RelayGroup relays;
+    private Session session = Session.getInstance(new Properties());
+
+    @Before
+    public void before() throws Exception {
+        server = new TlsSmtpServer(null, false, false);
+        pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(2)
+                .maxIdle(2)
+                .idleTimeoutMillis(60000L)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(1000L));
+        dispatcher = new SmtpDispatcher(pool, new RetryPolicy(3, 0L, 0L), new SendMetrics());
+        relays = RelayGroup.single("localhost", server.getPort(), new Properties());
+    }
+
+    @After
+    public void after() throws Exception {
+        pool.closeAll();
+        server.close();
+    }
+
+    /**
+     * 一時的な失敗は再試行されること.
+     * @throws Exception
+     */
+    @Test
+    public void 一時的な失敗は再試行されること() throws Exception {
+        server.setDataReply("451 Try again later");
+        try {
+            dispatcher.send(relays, newMessage());
+            fail();
+        } catch (MessagingException e) {
+            assertThat(RetryPolicy.findReturnCode(e), is(451));
+        }
+        assertThat(server.getPlainReceivedCount(), is(3));
+    }
+
+    /**
+     * ストリームを添付したメッセージは書き出し後に再試行されないこと.
+     * @throws Exception
+     */
+    @Test
+    public void ストリームを添付したメッセージは書き出し後に再試行されないこと() throws Exception {
+        server.setDataReply("451 Try again later");
+        try {
+            dispatcher.send(relays, newStreamMessage(), false);
+            fail();
+        } catch (MessagingException e) {
+            // ストリームの再読み込みのエラーではなく SMTPサーバの応答が返される
+            assertThat(RetryPolicy.findReturnCode(e), is(451));
+        }
+        assertThat(server.getPlainReceivedCount(), is(1));
+    }
+
+    /**
+     * ストリームを添付したメッセージは書き出し前の失敗では再試行されること.
+     * @throws Exception
+     */
+    @Test
+    public void ストリームを添付したメッセージは書き出し前の失敗では再試行されること() throws Exception {
+        server.rejectRecipients(1, "451 Try again later");
+        dispatcher.send(relays, newStreamMessage(), false);
+        assertThat(server.getPlainReceivedCount(), is(1));
+    }
+
+    /**
+     * エラー応答を受けた接続が続けて使われること.
+     * @throws Exception
+     */
+    @Test
+    public void エラー応答を受けた接続が続けて使われること() throws Exception {
+        SmtpDispatcher.Batch batch = dispatcher.openBatch(relays);
+        try {
+            server.setDataReply("554 Rejected");
+            try {
+                batch.send(newMessage());
+                fail();
+            } catch (MessagingException e) {
+                assertThat(RetryPolicy.findReturnCode(e), is(554));
+            }
+            server.setDataReply("250 OK");
+            batch.send(newMessage());
+        } finally {
+            batch.close();
+        }
+        assertThat(server.getPlainReceivedCount(), is(2));
+        assertThat(server.getConnectionCount(), is(1));
+    }
+
+    /**
+     * 書き出し後に応答が無いまま失敗した場合は再試行されないこと.
+     * @throws Exception
+     */
+    @Test
+    public void 書き出し後に応答が無いまま失敗した場合は再試行されないこと() throws Exception {
+        pool.closeAll();
+        pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(2)
+                .maxIdle(2)
+                .borrowTimeoutMillis(1000L)
+                .timeoutMillis(500L));
+        dispatcher = new SmtpDispatcher(pool, new RetryPolicy(3, 0L, 0L), new SendMetrics());
+        server.setDataReply(null);
+        try {
+            dispatcher.send(relays, newMessage());
+            fail();
+        } catch (MessagingException e) {
+            assertThat(RetryPolicy.findReturnCode(e), is(0));
+        }
+        assertThat(server.getPlainReceivedCount(), is(1));
+    }
+
+    private SMTPMessage newMessage() throws MessagingException {
+        SMTPMessage message = new SMTPMessage(session);
+        message.setFrom(new InternetAddress("john@example.com"));
+        message.setRecipient(SMTPMessage.RecipientType.TO, new InternetAddress("taro@example.com"));
+        message.setSubject("subject");
+        message.setText("body");
+        return message;
+    }
+
+    private SMTPMessage newStreamMessage() throws MessagingException {
+        SMTPMessage message = newMessage();
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(MailAttachment.fromStream(
+                new ByteArrayInputStream(new byte[] {1, 2, 3 }), "data.bin", null).getDataSource()));
+        // 符号化方式を決めるために内容が読み出されないようにする
+        part.setHeader("Content-Transfer-Encoding", "base64");
+        multipart.addBodyPart(part);
+        message.setContent(multipart);
+        message.saveChanges();
+        return message;
+    }
+}
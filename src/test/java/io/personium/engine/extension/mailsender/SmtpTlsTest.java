@@ -0,0 +1,225 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.personium.engine.extension.mailsender.SmtpConnectionPool.PooledConnection;
+
+public class SmtpTlsTest {
+
+    private static final String PASSWORD = "changeit";
+
+    private static Path keyStoreFile;
+    private static SSLContext serverContext;
+
+    private TlsSmtpServer server = null;
+    private SmtpConnectionPool pool = null;
+
+    /**
+     * localhost の自己署名証明書を keytool で生成し、サーバ用の SSLContextを準備する.
+     * @throws Exception 例外
+     */
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        keyStoreFile = Files.createTempFile("mailsender-tls", ".p12");
+        Files.delete(keyStoreFile);
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "smtp", "-keyalg", "RSA",
+                "-keysize", "2048", "-dname", "CN=localhost", "-ext", "san=dns:localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keyStoreFile.toString(), "-storepass", PASSWORD,
+                "-keypass", PASSWORD).redirectErrorStream(true).start();
+        assertThat(process.waitFor(), is(0));
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = Files.newInputStream(keyStoreFile);
+        try {
+            keyStore.load(in, PASSWORD.toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, PASSWORD.toCharArray());
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+    }
+
+    /**
+     * 証明書のファイルを削除する.
+     * @throws Exception 例外
+     */
+    @AfterClass
+    public static void afterClass() throws Exception {
+        Files.deleteIfExists(keyStoreFile);
+    }
+
+    /**
+     * プールとサーバを停止する.
+     * @throws Exception 例外
+     */
+    @After
+    public void after() throws Exception {
+        if (null != pool) {
+            pool.closeAll();
+        }
+        if (null != server) {
+            server.close();
+        }
+    }
+
+    /**
+     * STARTTLSでTLSに切り替えて送信されること.
+     * @throws Exception 例外
+     */
+    @Test
+    public void STARTTLSでTLSに切り替えて送信されること() throws Exception {
+        server = new TlsSmtpServer(serverContext, false, true);
+        pool = newPool(SmtpTls.Mode.STARTTLS);
+
+        send();
+
+        assertThat(server.getReceivedCount(), is(1));
+        assertThat(server.getSessionIds().size(), is(1));
+    }
+
+    /**
+     * SMTPSで2本目の接続はTLSセッションを再開すること.
+     * @throws Exception 例外
+     */
+    @Test
+    public void SMTPSで2本目の接続はTLSセッションを再開すること() throws Exception {
+        server = new TlsSmtpServer(serverContext, true, false);
+        pool = newPool(SmtpTls.Mode.SMTPS);
+
+        // アイドル接続を保持しないプールのため、送信毎に新しく接続する
+        send();
+        send();
+
+        assertThat(server.getConnectionCount(), is(2));
+        assertThat(server.getReceivedCount(), is(2));
+        assertThat(server.getSessionIds().get(1), is(server.getSessionIds().get(0)));
+    }
+
+    /**
+     * STARTTLSに対応していないサーバには送信しないこと.
+     * @throws Exception 例外
+     */
+    @Test
+    public void STARTTLSに対応していないサーバには送信しないこと() throws Exception {
+        server = new TlsSmtpServer(serverContext, false, false);
+        pool = newPool(SmtpTls.Mode.STARTTLS);
+
+        try {
+            pool.borrow("localhost", server.getPort());
+            fail("STARTTLS was not required.");
+        } catch (MessagingException e) {
+            assertThat(server.getReceivedCount(), is(0));
+        }
+    }
+
+    /**
+     * TLSの設定に誤りがある場合は平文で接続しないこと.
+     * @throws Exception 例外
+     */
+    @Test
+    public void TLSの設定に誤りがある場合は平文で接続しないこと() throws Exception {
+        server = new TlsSmtpServer(serverContext, false, true);
+        Properties properties = new Properties();
+        properties.setProperty(ExtensionProperties.PREFIX + "smtp.tls", "tls1.3");
+        SmtpTls tls = SmtpTls.fromProperties(properties);
+        assertThat(tls.getSslContext(), is(nullValue()));
+        pool = new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(1)
+                .maxIdle(0)
+                .idleTimeoutMillis(0L)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(1000L)
+                .connectTimeoutMillis(1000L)
+                .timeoutMillis(1000L)
+                .tls(tls));
+
+        try {
+            pool.borrow("localhost", server.getPort());
+            fail("Connected without TLS.");
+        } catch (MessagingException e) {
+            assertTrue(e.getMessage().startsWith("Unknown smtp.tls mode"));
+            assertThat(server.getConnectionCount(), is(0));
+        }
+    }
+
+    /**
+     * 設定が無い場合は平文となること.
+     */
+    @Test
+    public void 設定が無い場合は平文となること() {
+        assertThat(SmtpTls.fromProperties(new Properties()).getMode(), is(SmtpTls.Mode.NONE));
+    }
+
+    private static SmtpConnectionPool newPool(SmtpTls.Mode mode) throws Exception {
+        SSLContext clientContext = SmtpTls.createContext(keyStoreFile.toString(), PASSWORD, "PKCS12", 16, 60);
+        return new SmtpConnectionPool(new SmtpConnectionPool.Settings()
+                .maxTotal(1)
+                .maxIdle(0)
+                .idleTimeoutMillis(0L)
+                .maxLifetimeMillis(0L)
+                .borrowTimeoutMillis(1000L)
+                .connectTimeoutMillis(5000L)
+                .timeoutMillis(5000L)
+                .tls(SmtpTls.create(mode, clientContext, true, null)));
+    }
+
+    private void send() throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom(new InternetAddress("john@example.com"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("taro@example.com"));
+        message.setSubject("tls");
+        message.setText("hello");
+        message.saveChanges();
+        PooledConnection connection = pool.borrow("localhost", server.getPort());
+        try {
+            connection.getTransport().sendMessage(message, message.getAllRecipients());
+            pool.release(connection);
+        } catch (MessagingException e) {
+            pool.invalidate(connection);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class TemplateRegistryTest {
+
+    /**
+     * 上限を超えると最も使われていないテンプレートが破棄されること.
+     */
+    @Test
+    public void 上限を超えると最も使われていないテンプレートが破棄されること() {
+        TemplateRegistry registry = new TemplateRegistry(2);
+        registry.register("a", "A", "a");
+        registry.register("b", "B", "b");
+        registry.get("a");
+        registry.register("c", "C", "c");
+
+        assertThat(registry.size(), is(2));
+        assertThat(registry.get("b"), is(nullValue()));
+        assertThat(registry.get("a").subject.render(Collections.<String, String>emptyMap()), is("A"));
+        assertThat(registry.get("c").text.render(Collections.<String, String>emptyMap()), is("c"));
+    }
+
+    /**
+     * 同じ名前で登録すると置き換えられること.
+     */
+    @Test
+    public void 同じ名前で登録すると置き換えられること() {
+        TemplateRegistry registry = new TemplateRegistry(2);
+        registry.register("a", "old", "old");
+        registry.register("a", "new ${x}", "new");
+
+        assertThat(registry.size(), is(1));
+        assertThat(registry.get("a").subject.render(Collections.singletonMap("x", "1")), is("new 1"));
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * テスト用の TLS, SMTP AUTH対応 SMTPサーバ.
+ * STARTTLS または接続直後からの TLS (SMTPS) で待ち受け、TLSハンドシェイク毎のセッションIDと、
+ * TLS上で受信したメッセージの数を記録する. TLSは TLSv1.2 に限定し、セッションの再開をセッションIDで確認できるようにする.
+ * AUTH (PLAIN, LOGIN, XOAUTH2) は全て受理し、復号した認証情報を記録する. sslContext が null の場合は平文のみで待ち受ける.
+ * メッセージの受信後の応答は {@link #setDataReply(String)} で変更できる.
+ */
+final class TlsSmtpServer implements Closeable {
+
+    private static final String CRLF = "\r\n";
+    private static final String[] PROTOCOLS = new String[] {"TLSv1.2"};
+
+    private final ServerSocket serverSocket;
+    private final SSLContext sslContext;
+    private final boolean implicitTls;
+    private final boolean startTls;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TlsSmtpServer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger receivedCount = new AtomicInteger();
+    private final AtomicInteger plainReceivedCount = new AtomicInteger();
+    private final List<String> credentials = new CopyOnWriteArrayList<String>();
+    private final List<String> sessionIds = new CopyOnWriteArrayList<String>();
+    private final List<String> recipients = new CopyOnWriteArrayList<String>();
+    private volatile String dataReply = "250 OK";
+    private final AtomicInteger recipientRejections = new AtomicInteger();
+    private volatile String recipientReply = null;
+    private volatile boolean closed = false;
+
+    /**
+     * ループバックアドレスの空きポートで待ち受けを開始する.
+     * @param sslContext サーバ証明書を設定した SSLContext
+     * @param implicitTls 接続直後から TLSで通信する場合 true
+     * @param startTls STARTTLSに対応する場合 true. implicitTls が true の場合は参照しない
+     * @throws IOException 待ち受けに失敗した場合
+     */
+    TlsSmtpServer(SSLContext sslContext, boolean implicitTls, boolean startTls) throws IOException {
+        this.sslContext = sslContext;
+        this.implicitTls = implicitTls;
+        this.startTls = startTls;
+        this.serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    /**
+     * @return 待ち受けポート
+     */
+    String getPort() {
+        return String.valueOf(serverSocket.getLocalPort());
+    }
+
+    /**
+     * @return 受け付けた接続の数
+     */
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return TLS上で受信したメッセージの数
+     */
+    int getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * @return 平文で受信したメッセージの数
+     */
+    int getPlainReceivedCount() {
+        return plainReceivedCount.get();
+    }
+
+    /**
+     * @param reply メッセージの受信後に返す応答. null の場合は応答しない
+     */
+    void setDataReply(String reply) {
+        this.dataReply = reply;
+    }
+
+    /**
+     * 以降の RCPTコマンドを指定した回数だけ拒否する.
+     * @param times 拒否する回数
+     * @param reply 拒否する際の応答
+     */
+    void rejectRecipients(int times, String reply) {
+        this.recipientReply = reply;
+        this.recipientRejections.set(times);
+    }
+
+    /**
+     * @return AUTH毎の "方式 復号した認証情報"
+     */
+    List<String> getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * @return TLSハンドシェイク毎のセッションID
+     */
+    List<String> getSessionIds() {
+        return sessionIds;
+    }
+
+    /**
+     * @return RCPTコマンド毎の宛先
+     */
+    List<String> getRecipients() {
+        return recipients;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connectionCount.incrementAndGet();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // close()による待ち受けの終了
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket plain) {
+        Socket socket = plain;
+        try {
+            boolean tls = false;
+            if (implicitTls) {
+                socket = upgrade(plain);
+                tls = true;
+            }
+            BufferedReader reader = newReader(socket);
+            reply(socket, "220 localhost ESMTP");
+            boolean inData = false;
+            String line = reader.readLine();
+            for (; null != line; line = reader.readLine()) {
+                if (inData) {
+                    if (".".equals(line)) {
+                        inData = false;
+                        if (tls) {
+                            receivedCount.incrementAndGet();
+                        } else {
+                            plainReceivedCount.incrementAndGet();
+                        }
+                        String current = dataReply;
+                        if (null != current) {
+                            reply(socket, current);
+                        }
+                    }
+                    continue;
+                }
+                String command = line.toUpperCase(Locale.ROOT);
+                if (command.startsWith("EHLO")) {
+                    if (!tls && startTls) {
+                        reply(socket, "250-localhost" + CRLF + "250-AUTH PLAIN LOGIN XOAUTH2" + CRLF + "250 STARTTLS");
+                    } else {
+                        reply(socket, "250-localhost" + CRLF + "250 AUTH PLAIN LOGIN XOAUTH2");
+                    }
+                } else if (command.startsWith("AUTH")) {
+                    authenticate(socket, reader, line.split(" "));
+                } else if (command.startsWith("STARTTLS") && !tls && startTls) {
+                    reply(socket, "220 Ready to start TLS");
+                    socket = upgrade(socket);
+                    reader = newReader(socket);
+                    tls = true;
+                } else if (command.startsWith("DATA")) {
+                    inData = true;
+                    reply(socket, "354 End data with <CR><LF>.<CR><LF>");
+                } else if (command.startsWith("QUIT")) {
+                    reply(socket, "221 Bye");
+                    return;
+                } else if (command.startsWith("RCPT TO:") && 0 <= recipientRejections.decrementAndGet()) {
+                    reply(socket, recipientReply);
+                } else {
+                    if (command.startsWith("RCPT TO:")) {
+                        recipients.add(line.substring("RCPT TO:".length()));
+                    }
+                    // HELO, MAIL, RCPT, RSET, NOOP
+                    reply(socket, "250 OK");
+                }
+            }
+        } catch (IOException e) {
+            // クライアントによる切断、ハンドシェイクの失敗
+            return;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 切断時のエラーは無視する
+            }
+        }
+    }
+
+    private void authenticate(Socket socket, BufferedReader reader, String[] command) throws IOException {
+        String mechanism = command[1].toUpperCase(Locale.ROOT);
+        String credential;
+        if ("LOGIN".equals(mechanism)) {
+            reply(socket, "334 VXNlcm5hbWU6");
+            String user = decode(reader.readLine());
+            reply(socket, "334 UGFzc3dvcmQ6");
+            credential = user + ":" + decode(reader.readLine());
+        } else if (2 < command.length) {
+            credential = decode(command[2]);
+        } else {
+            reply(socket, "334 ");
+            credential = decode(reader.readLine());
+        }
+        credentials.add(mechanism + " " + credential);
+        reply(socket, "235 Authentication successful");
+    }
+
+    private static String decode(String base64) {
+        return new String(Base64.getDecoder().decode(base64.trim()), StandardCharsets.UTF_8);
+    }
+
+    private Socket upgrade(Socket socket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket,
+                socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        sslSocket.setEnabledProtocols(PROTOCOLS);
+        sslSocket.startHandshake();
+        StringBuilder id = new StringBuilder();
+        for (byte b : sslSocket.getSession().getId()) {
+            id.append(String.format("%02x", b));
+        }
+        sessionIds.add(id.toString());
+        return sslSocket;
+    }
+
+    private static BufferedReader newReader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+    }
+
+    private static void reply(Socket socket, String line) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write((line + CRLF).getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * personium.io
+ * Copyright 2026 Personium Project Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.mailsender;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1L);
+
+    /**
+     * 容量分は待たずに取得できること.
+     */
+    @Test
+    public void 容量分は待たずに取得できること() {
+        TokenBucket bucket = new TokenBucket(1d, 3);
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertThat(bucket.reserve(now, 0L), is(0L));
+        }
+        assertThat(bucket.reserve(now, 0L), is(TokenBucket.REJECTED));
+    }
+
+    /**
+     * 補充までの待ち時間が最大待ち時間以内であれば予約できること.
+     */
+    @Test
+    public void 補充までの待ち時間が最大待ち時間以内であれば予約できること() {
+        TokenBucket bucket = new TokenBucket(2d, 1);
+        long now = System.nanoTime();
+        assertThat(bucket.reserve(now, 0L), is(0L));
+        assertThat(bucket.reserve(now, SECOND / 4), is(TokenBucket.REJECTED));
+        assertThat(bucket.reserve(now, SECOND), is(SECOND / 2));
+        assertThat(bucket.reserve(now, SECOND), is(SECOND));
+    }
+
+    /**
+     * 時間の経過で補充されること.
+     */
+    @Test
+    public void 時間の経過で補充されること() {
+        TokenBucket bucket = new TokenBucket(10d, 1);
+        long now = System.nanoTime();
+        assertThat(bucket.reserve(now, 0L), is(0L));
+        assertThat(bucket.isFull(now), is(false));
+        assertThat(bucket.reserve(now + SECOND / 10, 0L), is(0L));
+        assertThat(bucket.isFull(now + SECOND), is(true));
+    }
+
+    /**
+     * 返却したトークンを再び取得できること.
+     */
+    @Test
+    public void 返却したトークンを再び取得できること() {
+        TokenBucket bucket = new TokenBucket(1d, 1);
+        long now = System.nanoTime();
+        assertThat(bucket.reserve(now, 0L), is(0L));
+        bucket.cancel();
+        assertThat(bucket.reserve(now, 0L), is(0L));
+    }
+}